@@ -0,0 +1,54 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of folding one HttpServerActor entity action batch into the server activity summary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActivitySummaryBenchmark {
+  @Param({ "100", "1000", "10000" })
+  int batchSize;
+
+  private HttpServer.ServerActivitySummary serverActivitySummary;
+  private HttpServer.EntityActionBatch entityActionBatch;
+
+  @Setup
+  public void setup() {
+    serverActivitySummary = new HttpServer.ServerActivitySummary();
+    final var entityActions = new ArrayList<HttpServer.EntityAction>();
+    final var messageCounts = new HashMap<String, Integer>();
+    for (int entity = 0; entity < batchSize; entity++) {
+      final var httpServer = TreeFixture.memberId((entity / TreeFixture.members) % TreeFixture.members);
+      entityActions.add(new HttpServer.EntityAction(TreeFixture.memberIdOf(entity), TreeFixture.shardIdOf(entity),
+          TreeFixture.entityId(entity), entity % 10 == 0 ? "start" : "ping", httpServer));
+      messageCounts.merge(httpServer, 1, Integer::sum);
+    }
+    entityActionBatch = new HttpServer.EntityActionBatch(entityActions, messageCounts);
+  }
+
+  @Benchmark
+  public HttpServer.ServerActivitySummary load() {
+    serverActivitySummary.load(entityActionBatch);
+    return serverActivitySummary;
+  }
+}
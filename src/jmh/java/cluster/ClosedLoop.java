@@ -0,0 +1,147 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+
+/**
+ * Closed loop EntityActor request driver for the benchmark harnesses. Keeps a fixed number of asks
+ * in flight, each completed request immediately sends the next one, until the requests run out.
+ * Workers are spread round robin over the given nodes' ClusterSharding so traffic enters the
+ * cluster on every node.
+ *
+ * A batch request sends its changes the way command-batch-size does, one ChangeValueBatch ask to the
+ * ShardBatchActor of each shard, and completes when all of them are answered. Its latency is that of
+ * the whole batch and each acknowledged change counts as one completed message.
+ */
+class ClosedLoop {
+  private final List<ClusterSharding> nodes;
+  private final int concurrency;
+  private final Duration requestTimeout;
+
+  ClosedLoop(List<ClusterSharding> nodes, int concurrency, Duration requestTimeout) {
+    this.nodes = nodes;
+    this.concurrency = concurrency;
+    this.requestTimeout = requestTimeout;
+  }
+
+  Result run(Requests requests) {
+    final var result = new Result();
+    final var workers = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < concurrency; i++) {
+      final var done = new CompletableFuture<Void>();
+      workers.add(done);
+      next(nodes.get(i % nodes.size()), requests, result, done);
+    }
+    CompletableFuture.allOf(workers.toArray(CompletableFuture[]::new)).join();
+    return result;
+  }
+
+  private void next(ClusterSharding clusterSharding, Requests requests, Result result, CompletableFuture<Void> done) {
+    final var request = requests.next();
+    if (request == null) {
+      done.complete(null);
+      return;
+    }
+    final var start = System.nanoTime();
+    send(clusterSharding, request).whenComplete((acknowledged, error) -> {
+      if (error == null) {
+        result.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        result.completed.add(acknowledged);
+        result.failed.add(request.messages() - acknowledged);
+      } else {
+        result.failed.add(request.messages());
+      }
+      next(clusterSharding, requests, result, done);
+    });
+  }
+
+  // Completes with the number of acknowledged messages.
+  private CompletionStage<Integer> send(ClusterSharding clusterSharding, Request request) {
+    if (request.batch != null) {
+      return sendBatch(clusterSharding, request.batch);
+    }
+    final var entityRef = clusterSharding.entityRefFor(EntityActor.entityTypeKey, request.entityId);
+    final var id = new EntityActor.Id(request.entityId);
+    final CompletionStage<EntityActor.Command> reply = request.read
+        ? entityRef.ask(replyTo -> new EntityActor.GetValue(id, replyTo), requestTimeout)
+        : entityRef.ask(replyTo -> new EntityActor.ChangeValue(id, new EntityActor.Value(new Date()), replyTo), requestTimeout);
+    return reply.thenApply(command -> 1);
+  }
+
+  private CompletionStage<Integer> sendBatch(ClusterSharding clusterSharding, Map<String, List<String>> batch) {
+    final var value = new EntityActor.Value(new Date());
+    final var acks = batch.entrySet().stream()
+        .map(shard -> {
+          final var changes = shard.getValue().stream()
+              .map(entityId -> new ShardBatchActor.Change(new EntityActor.Id(entityId), value))
+              .collect(Collectors.toList());
+          return clusterSharding.entityRefFor(EntityActor.entityTypeKey, ShardBatchActor.batchEntityId(shard.getKey()))
+              .<EntityActor.Command>ask(replyTo -> new ShardBatchActor.ChangeValueBatch(shard.getKey(), changes, replyTo), requestTimeout)
+              .thenApply(reply -> ((ShardBatchActor.ChangeValueBatchAck) reply).acks.size())
+              .toCompletableFuture();
+        })
+        .collect(Collectors.toList());
+    return CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new))
+        .thenApply(done -> acks.stream().mapToInt(CompletableFuture::join).sum());
+  }
+
+  static class Request {
+    final String entityId;
+    final boolean read;
+    // Entity ids by shard id for a batch of changes, null for a single message
+    final Map<String, List<String>> batch;
+
+    Request(String entityId, boolean read) {
+      this.entityId = entityId;
+      this.read = read;
+      batch = null;
+    }
+
+    Request(Map<String, List<String>> batch) {
+      entityId = null;
+      read = false;
+      this.batch = batch;
+    }
+
+    int messages() {
+      return batch == null ? 1 : batch.values().stream().mapToInt(List::size).sum();
+    }
+  }
+
+  interface Requests {
+    // Returns null when there are no more requests, called concurrently by the workers.
+    Request next();
+  }
+
+  static class Result {
+    private final Recorder latency = new Recorder(3);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    long completed() {
+      return completed.sum();
+    }
+
+    long failed() {
+      return failed.sum();
+    }
+
+    // Latency in microseconds.
+    Histogram latency() {
+      return latency.getIntervalHistogram();
+    }
+  }
+}
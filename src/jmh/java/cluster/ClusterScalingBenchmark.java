@@ -0,0 +1,283 @@
+package cluster;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.slf4j.LoggerFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+import ch.qos.logback.classic.Level;
+
+/**
+ * Scale out curve for the sharded EntityActor on loopback. Boots cluster nodes as ActorSystems in
+ * this JVM with Main.setupClusterNodeConfig, one port after the other from first-port, and at each of
+ * the node counts waits for the cluster to converge, runs an unrecorded warmup and then measures a
+ * fixed closed loop load spread over all nodes. Reports throughput, latency, allocation and GC per
+ * node count, and how the active entities are spread over the nodes. The results are written as
+ * JSON to cluster-scaling.result-file so runs can be compared.
+ *
+ * The node counts are measured once for each of the allocation-strategies, the nodes are stopped and
+ * started again in between. With zipfian keys a few shards get most of the requests, which is where
+ * the load-aware strategy should pay off over least-shard, if it does.
+ *
+ * Args are config overrides, e.g. cluster-scaling.node-counts=[1,3,5] cluster-scaling.concurrency=256
+ * or cluster-scaling.node-counts=[3] cluster-scaling.key-distribution=zipfian
+ * cluster-scaling.allocation-strategies=[least-shard,load-aware]
+ */
+public class ClusterScalingBenchmark {
+  private final Config config;
+  private final Settings settings;
+  private final List<Node> nodes = new ArrayList<>();
+  // The workers call requestsFor's supplier from the threads that complete their asks.
+  private final ThreadLocal<SplittableRandom> random = ThreadLocal.withInitial(SplittableRandom::new);
+
+  private ClusterScalingBenchmark(Config config) {
+    this.config = config;
+    settings = new Settings(config);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final var config = benchmarkConfig(args);
+    final var root = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+    root.setLevel(Level.toLevel(config.getString("cluster-scaling.log-level")));
+
+    final var benchmark = new ClusterScalingBenchmark(config);
+    try {
+      benchmark.run();
+    } finally {
+      benchmark.stopNodes();
+    }
+  }
+
+  private static Config benchmarkConfig(String[] args) {
+    return ConfigFactory.parseString(String.join("\n", args))
+        .withFallback(ConfigFactory.parseResources("benchmark.conf"));
+  }
+
+  private void run() throws Exception {
+    final var steps = new ArrayList<Step>();
+    for (final var allocationStrategy : settings.allocationStrategies) {
+      run(allocationStrategy, steps);
+      stopNodes();
+    }
+
+    final var resultFile = Path.of(settings.resultFile);
+    if (resultFile.getParent() != null) {
+      Files.createDirectories(resultFile.getParent());
+    }
+    Files.writeString(resultFile, new ObjectMapper().writer().withDefaultPrettyPrinter().writeValueAsString(new Result(Instant.now(), settings, steps)));
+    System.out.printf("Results written to %s%n", resultFile.toAbsolutePath());
+  }
+
+  private void run(String allocationStrategy, List<Step> steps) throws InterruptedException {
+    for (final var nodeCount : settings.nodeCounts) {
+      while (nodes.size() < nodeCount) {
+        nodes.add(startNode(settings.firstPort + nodes.size(), allocationStrategy));
+      }
+      awaitConvergence();
+
+      final var closedLoop = new ClosedLoop(nodes.stream().map(node -> node.clusterSharding).collect(Collectors.toList()),
+          settings.concurrency, settings.requestTimeout);
+      closedLoop.run(requestsFor(settings.warmup));
+
+      final var messagesBefore = nodes.stream().map(node -> node.shardLoad.totalMessages()).collect(Collectors.toList());
+      final var before = JvmResources.sample();
+      final var result = closedLoop.run(requestsFor(settings.measurement));
+      final var after = JvmResources.sample();
+      final var messagesPerNode = new ArrayList<Long>();
+      for (int i = 0; i < nodes.size(); i++) {
+        messagesPerNode.add(nodes.get(i).shardLoad.totalMessages() - messagesBefore.get(i));
+      }
+
+      final var step = new Step(allocationStrategy, nodeCount, result.completed(), result.failed(), before, after,
+          new LoadGeneratorActor.Latency(result.latency()),
+          nodes.stream().map(node -> node.activeEntities.size()).collect(Collectors.toList()), messagesPerNode);
+      System.out.println(step.toText());
+      steps.add(step);
+    }
+  }
+
+  private Node startNode(int port, String allocationStrategy) {
+    final var nodeConfig = ConfigFactory.parseString(String.format("shard-allocation.strategy = \"%s\"", allocationStrategy))
+        .withFallback(config.getConfig("cluster-scaling.overrides"))
+        .withFallback(config)
+        .withFallback(Main.setupClusterNodeConfig(Integer.toString(port)))
+        .resolve();
+    final var actorSystem = ActorSystem.create(Behaviors.<Void>empty(), "cluster", nodeConfig);
+    final var entityPassivation = EntityPassivation.create(nodeConfig);
+    final var shardLoad = Main.shardLoad(actorSystem);
+    actorSystem.systemActorOf(ShardLoadActor.create(shardLoad), ShardLoadActor.class.getSimpleName(), Props.empty());
+    final var activeEntities = new ActiveEntities();
+    Main.startClusterSharding(actorSystem, actorSystem.ignoreRef(), shardLoad, entityPassivation, ChangeFeed.create(actorSystem.settings().config()),
+        activeEntities);
+    System.out.printf("Started node %s%n", Cluster.get(actorSystem).selfMember().address());
+    return new Node(actorSystem, ClusterSharding.get(actorSystem), activeEntities, shardLoad);
+  }
+
+  // Converged when every node sees all of the nodes as up and none as unreachable.
+  private void awaitConvergence() throws InterruptedException {
+    final var deadline = System.nanoTime() + settings.convergenceTimeout.toNanos();
+    while (!converged()) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException(String.format("%d nodes did not converge within %s", nodes.size(), settings.convergenceTimeout));
+      }
+      Thread.sleep(200);
+    }
+  }
+
+  private boolean converged() {
+    return nodes.stream().allMatch(node -> {
+      final var state = Cluster.get(node.actorSystem).state();
+      final var upMembers = StreamSupport.stream(state.getMembers().spliterator(), false)
+          .filter(member -> MemberStatus.up().equals(member.status()))
+          .count();
+      return upMembers == nodes.size() && state.getUnreachable().isEmpty();
+    });
+  }
+
+  private ClosedLoop.Requests requestsFor(Duration duration) {
+    final var deadline = System.nanoTime() + duration.toNanos();
+    return () -> {
+      if (System.nanoTime() > deadline) {
+        return null;
+      }
+      final var random = this.random.get();
+      return new ClosedLoop.Request(EntityActor.entityId(0, settings.keys.next(random)), random.nextDouble() < settings.readFraction);
+    };
+  }
+
+  private void stopNodes() {
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      final var actorSystem = nodes.remove(i).actorSystem;
+      actorSystem.terminate();
+      actorSystem.getWhenTerminated().toCompletableFuture().join();
+    }
+  }
+
+  private static class Node {
+    final ActorSystem<Void> actorSystem;
+    final ClusterSharding clusterSharding;
+    final ActiveEntities activeEntities;
+    final ShardLoad shardLoad;
+
+    Node(ActorSystem<Void> actorSystem, ClusterSharding clusterSharding, ActiveEntities activeEntities, ShardLoad shardLoad) {
+      this.actorSystem = actorSystem;
+      this.clusterSharding = clusterSharding;
+      this.activeEntities = activeEntities;
+      this.shardLoad = shardLoad;
+    }
+  }
+
+  static class Settings {
+    public final List<String> allocationStrategies;
+    public final List<Integer> nodeCounts;
+    public final int firstPort;
+    public final int concurrency;
+    public final int entities;
+    public final String keyDistribution;
+    public final double readFraction;
+    public final double warmupSeconds;
+    public final double measurementSeconds;
+    public final String resultFile;
+    final Duration convergenceTimeout;
+    final Duration warmup;
+    final Duration measurement;
+    final Duration requestTimeout;
+    final LoadGeneratorActor.KeyDistribution keys;
+
+    Settings(Config config) {
+      allocationStrategies = config.getStringList("cluster-scaling.allocation-strategies");
+      nodeCounts = config.getIntList("cluster-scaling.node-counts").stream().sorted().collect(Collectors.toList());
+      firstPort = config.getInt("cluster-scaling.first-port");
+      concurrency = config.getInt("cluster-scaling.concurrency");
+      entities = config.getInt("cluster-scaling.entities");
+      keyDistribution = config.getString("cluster-scaling.key-distribution");
+      keys = keys(keyDistribution, entities, config.getDouble("cluster-scaling.zipfian-theta"));
+      readFraction = config.getDouble("cluster-scaling.read-fraction");
+      convergenceTimeout = Duration.parse(config.getString("cluster-scaling.convergence-timeout-iso-8601"));
+      warmup = Duration.parse(config.getString("cluster-scaling.warmup-iso-8601"));
+      measurement = Duration.parse(config.getString("cluster-scaling.measurement-iso-8601"));
+      requestTimeout = Duration.parse(config.getString("cluster-scaling.request-timeout-iso-8601"));
+      resultFile = config.getString("cluster-scaling.result-file");
+      warmupSeconds = warmup.toMillis() / 1000.0;
+      measurementSeconds = measurement.toMillis() / 1000.0;
+    }
+
+    private static LoadGeneratorActor.KeyDistribution keys(String name, int entities, double zipfianTheta) {
+      switch (name) {
+      case "uniform":
+        return random -> random.nextInt(entities);
+      case "zipfian":
+        return new LoadGeneratorActor.Zipfian(entities, zipfianTheta);
+      default:
+        throw new IllegalArgumentException(String.format("Unknown key distribution '%s', use uniform or zipfian", name));
+      }
+    }
+  }
+
+  static class Step {
+    public final String allocationStrategy;
+    public final int nodes;
+    public final long completed;
+    public final long failed;
+    public final double seconds;
+    public final double msgsPerSec;
+    public final double allocatedMbPerSec;
+    public final long gcCount;
+    public final long gcMillis;
+    public final LoadGeneratorActor.Latency latency;
+    public final List<Integer> activeEntitiesPerNode;
+    // Messages handled by each node's entities, the load balance the allocation strategy achieved
+    public final List<Long> messagesPerNode;
+
+    Step(String allocationStrategy, int nodes, long completed, long failed, JvmResources before, JvmResources after, LoadGeneratorActor.Latency latency, List<Integer> activeEntitiesPerNode,
+        List<Long> messagesPerNode) {
+      this.allocationStrategy = allocationStrategy;
+      this.nodes = nodes;
+      this.completed = completed;
+      this.failed = failed;
+      this.latency = latency;
+      this.activeEntitiesPerNode = activeEntitiesPerNode;
+      this.messagesPerNode = messagesPerNode;
+      seconds = JvmResources.seconds(before, after);
+      msgsPerSec = completed / Math.max(seconds, 1e-9);
+      allocatedMbPerSec = (after.allocatedBytes - before.allocatedBytes) / 1048576.0 / Math.max(seconds, 1e-9);
+      gcCount = after.gcCount - before.gcCount;
+      gcMillis = after.gcMillis - before.gcMillis;
+    }
+
+    String toText() {
+      return String.format("%-11s %d nodes %,10d msgs %,6d failed %6.1fs %,12.0f msgs/s %,9.1f MB/s gc %d/%dms%n  latency %s%n  active entities per node %s, messages per node %s",
+          allocationStrategy, nodes, completed, failed, seconds, msgsPerSec, allocatedMbPerSec, gcCount, gcMillis, latency, activeEntitiesPerNode, messagesPerNode);
+    }
+  }
+
+  static class Result {
+    public final String timestamp;
+    public final Settings settings;
+    public final int processors = Runtime.getRuntime().availableProcessors();
+    public final List<Step> steps;
+
+    Result(Instant timestamp, Settings settings, List<Step> steps) {
+      this.timestamp = timestamp.toString();
+      this.settings = settings;
+      this.steps = steps;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+
+/**
+ * Cost of recording a message to an active entity, a hit, which every entity actor pays for every
+ * message it handles. Four threads record hits to entities spread over the whole active entity
+ * limit, like entity actors on different dispatcher threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EntityPassivationBenchmark {
+  private static final int entities = 10000;
+
+  @Param({ "lru", "w-tinylfu" })
+  String strategy;
+
+  private ActorSystem<Void> actorSystem;
+  private EntityPassivation entityPassivation;
+  private EntityPassivation.Handle[] handles;
+
+  @Setup
+  public void setup() {
+    actorSystem = ActorSystem.create(Behaviors.empty(), "entity-passivation-benchmark",
+        ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+    entityPassivation = new EntityPassivation(strategy, entities, 0.01);
+    handles = new EntityPassivation.Handle[entities];
+    for (int entity = 0; entity < entities; entity++) {
+      handles[entity] = entityPassivation.handle(TreeFixture.entityId(entity), actorSystem.ignoreRef(), actorSystem.ignoreRef());
+      entityPassivation.record(handles[entity]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.out.printf("%n%s%n", entityPassivation.counters());
+    actorSystem.terminate();
+  }
+
+  @State(Scope.Thread)
+  public static class Entities {
+    int next = (int) Thread.currentThread().getId() * 7919;
+  }
+
+  @Benchmark
+  public void hit(Entities thread) {
+    thread.next = thread.next * 1103515245 + 12345;
+    entityPassivation.record(handles[(thread.next >>> 8) % entities]);
+  }
+}
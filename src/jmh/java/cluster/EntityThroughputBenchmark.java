@@ -0,0 +1,326 @@
+package cluster;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.slf4j.LoggerFactory;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import ch.qos.logback.classic.Level;
+
+/**
+ * Closed loop throughput harness for EntityActor on a single node cluster. Starts cluster sharding
+ * the way Main does and runs its phases with a fixed number of requests in flight: activation of
+ * new entities, steady state updates and reads of active entities, updates of the active entities as
+ * single ChangeValue messages and then as batches of batch-size changes through the ShardBatchActors,
+ * and passivation churn over a keyspace larger than the active entity limit. Each phase reports
+ * msgs/sec, latency percentiles, the allocation rate of the JVM's live threads and GC activity. In
+ * the batch phase msgs/sec counts the changes and the latency is that of a whole batch. The results
+ * are written as JSON to entity-throughput.result-file so runs can be compared.
+ *
+ * Args are config overrides, e.g. entity-throughput.concurrency=256 or
+ * akka.cluster.sharding.number-of-shards=1 to measure a single shard.
+ */
+public class EntityThroughputBenchmark {
+  private final ActorSystem<Void> actorSystem;
+  private final ClosedLoop closedLoop;
+  private final EntityPassivation entityPassivation;
+  private final JumpHashMessageExtractor<EntityActor.Command> messageExtractor;
+  private final Settings settings;
+
+  private EntityThroughputBenchmark(Config config) {
+    settings = new Settings(config);
+    entityPassivation = EntityPassivation.create(config);
+    final var shardLoad = new ShardLoad(TimeUnit.SECONDS.toNanos(10));
+    actorSystem = ActorSystem.create(Behaviors.empty(), "cluster", config);
+    Main.startClusterSharding(actorSystem, actorSystem.ignoreRef(), shardLoad, entityPassivation, ChangeFeed.create(actorSystem.settings().config()),
+        new ActiveEntities());
+    messageExtractor = EntityActor.messageExtractor(actorSystem);
+    closedLoop = new ClosedLoop(List.of(ClusterSharding.get(actorSystem)), settings.concurrency, settings.requestTimeout);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final var config = config(args);
+    final var root = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+    root.setLevel(Level.toLevel(config.getString("entity-throughput.log-level")));
+
+    final var benchmark = new EntityThroughputBenchmark(config);
+    try {
+      benchmark.run();
+    } finally {
+      benchmark.actorSystem.terminate();
+    }
+  }
+
+  private static Config config(String[] args) {
+    final var config = ConfigFactory.parseString(String.join("\n", args))
+        .withFallback(ConfigFactory.parseResources("benchmark.conf"))
+        .withFallback(ConfigFactory.load())
+        .resolve();
+    return config.getConfig("entity-throughput.overrides").withFallback(config);
+  }
+
+  private void run() throws Exception {
+    joinSelf();
+
+    final var phases = new ArrayList<PhaseResult>();
+    phases.add(runPhase("activation", new Activation(settings.activationEntities)));
+    phases.add(runPhase("steady-state", new SteadyState(settings.activationEntities, settings.readFraction, deadline(settings.steadyStateDuration))));
+    phases.add(runPhase("single-writes", new SteadyState(settings.activationEntities, 0.0, deadline(settings.writesDuration))));
+    phases.add(runPhase("batch-writes", new BatchWrites(settings.activationEntities, settings.batchSize, messageExtractor, deadline(settings.writesDuration)),
+        settings.batchSize));
+    phases.add(runPhase("passivation-churn", new Churn(settings.churnKeyspace, deadline(settings.churnDuration))));
+
+    final var result = new Result(Instant.now(), settings, actorSystem.settings().config().getInt("akka.cluster.sharding.number-of-shards"), phases);
+    final var resultFile = Path.of(settings.resultFile);
+    if (resultFile.getParent() != null) {
+      Files.createDirectories(resultFile.getParent());
+    }
+    Files.writeString(resultFile, new ObjectMapper().writer().withDefaultPrettyPrinter().writeValueAsString(result));
+    phases.forEach(phase -> System.out.println(phase.toText()));
+    System.out.printf("Results written to %s%n", resultFile.toAbsolutePath());
+  }
+
+  private void joinSelf() throws InterruptedException {
+    final var cluster = Cluster.get(actorSystem);
+    cluster.manager().tell(Join.create(cluster.selfMember().address()));
+    while (!MemberStatus.up().equals(cluster.selfMember().status())) {
+      Thread.sleep(100);
+    }
+  }
+
+  private static long deadline(Duration duration) {
+    return System.nanoTime() + duration.toNanos();
+  }
+
+  private PhaseResult runPhase(String name, ClosedLoop.Requests requests) {
+    return runPhase(name, requests, 1);
+  }
+
+  private PhaseResult runPhase(String name, ClosedLoop.Requests requests, int batchSize) {
+    final var before = JvmResources.sample();
+    final var passivationBefore = entityPassivation.counters();
+
+    final var result = closedLoop.run(requests);
+
+    final var after = JvmResources.sample();
+    final var passivationAfter = entityPassivation.counters();
+    return new PhaseResult(name, batchSize, result.completed(), result.failed(), before, after,
+        new LoadGeneratorActor.Latency(result.latency()),
+        new Passivation(passivationBefore, passivationAfter));
+  }
+
+  private static class Activation implements ClosedLoop.Requests {
+    private final int entities;
+    private final AtomicLong sent = new AtomicLong();
+
+    Activation(int entities) {
+      this.entities = entities;
+    }
+
+    @Override
+    public ClosedLoop.Request next() {
+      final var entity = sent.getAndIncrement();
+      return entity < entities ? new ClosedLoop.Request(activeEntityId((int) entity), false) : null;
+    }
+  }
+
+  private static class SteadyState implements ClosedLoop.Requests {
+    private final int entities;
+    private final double readFraction;
+    private final long deadline;
+
+    SteadyState(int entities, double readFraction, long deadline) {
+      this.entities = entities;
+      this.readFraction = readFraction;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public ClosedLoop.Request next() {
+      if (System.nanoTime() > deadline) {
+        return null;
+      }
+      final var random = ThreadLocalRandom.current();
+      return new ClosedLoop.Request(activeEntityId(random.nextInt(entities)), random.nextDouble() < readFraction);
+    }
+  }
+
+  // Like the changes of a command-batch-size tick, grouped into one ChangeValueBatch per shard.
+  private static class BatchWrites implements ClosedLoop.Requests {
+    private final int entities;
+    private final int batchSize;
+    private final JumpHashMessageExtractor<EntityActor.Command> messageExtractor;
+    private final long deadline;
+
+    BatchWrites(int entities, int batchSize, JumpHashMessageExtractor<EntityActor.Command> messageExtractor, long deadline) {
+      this.entities = entities;
+      this.batchSize = batchSize;
+      this.messageExtractor = messageExtractor;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public ClosedLoop.Request next() {
+      if (System.nanoTime() > deadline) {
+        return null;
+      }
+      final var random = ThreadLocalRandom.current();
+      final var batch = new HashMap<String, List<String>>();
+      for (int i = 0; i < batchSize; i++) {
+        final var entityId = activeEntityId(random.nextInt(entities));
+        batch.computeIfAbsent(messageExtractor.shardId(entityId), shardId -> new ArrayList<>()).add(entityId);
+      }
+      return new ClosedLoop.Request(batch);
+    }
+  }
+
+  private static class Churn implements ClosedLoop.Requests {
+    private final int keyspace;
+    private final long deadline;
+
+    Churn(int keyspace, long deadline) {
+      this.keyspace = keyspace;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public ClosedLoop.Request next() {
+      if (System.nanoTime() > deadline) {
+        return null;
+      }
+      return new ClosedLoop.Request(EntityActor.entityId(1, ThreadLocalRandom.current().nextInt(keyspace)), false);
+    }
+  }
+
+  private static String activeEntityId(int entity) {
+    return EntityActor.entityId(0, entity);
+  }
+
+  static class Settings {
+    public final int concurrency;
+    public final int activationEntities;
+    public final double steadyStateSeconds;
+    public final double readFraction;
+    public final double writesSeconds;
+    public final int batchSize;
+    public final double churnSeconds;
+    public final int churnKeyspace;
+    public final double requestTimeoutSeconds;
+    public final String resultFile;
+    public final String passivationStrategy;
+    public final int activeEntityLimit;
+    final Duration steadyStateDuration;
+    final Duration writesDuration;
+    final Duration churnDuration;
+    final Duration requestTimeout;
+
+    Settings(Config config) {
+      concurrency = config.getInt("entity-throughput.concurrency");
+      activationEntities = config.getInt("entity-throughput.activation-entities");
+      steadyStateDuration = Duration.parse(config.getString("entity-throughput.steady-state-duration-iso-8601"));
+      readFraction = config.getDouble("entity-throughput.read-fraction");
+      writesDuration = Duration.parse(config.getString("entity-throughput.writes-duration-iso-8601"));
+      batchSize = config.getInt("entity-throughput.batch-size");
+      churnDuration = Duration.parse(config.getString("entity-throughput.churn-duration-iso-8601"));
+      churnKeyspace = config.getInt("entity-throughput.churn-keyspace");
+      requestTimeout = Duration.parse(config.getString("entity-throughput.request-timeout-iso-8601"));
+      resultFile = config.getString("entity-throughput.result-file");
+      steadyStateSeconds = steadyStateDuration.toMillis() / 1000.0;
+      writesSeconds = writesDuration.toMillis() / 1000.0;
+      churnSeconds = churnDuration.toMillis() / 1000.0;
+      requestTimeoutSeconds = requestTimeout.toMillis() / 1000.0;
+      passivationStrategy = config.getString("entity-actor.passivation.strategy");
+      activeEntityLimit = config.getInt("entity-actor.passivation.active-entity-limit");
+    }
+  }
+
+  static class Passivation {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final int activeEntities;
+
+    Passivation(EntityPassivation.Counters before, EntityPassivation.Counters after) {
+      hits = after.hits - before.hits;
+      misses = after.misses - before.misses;
+      evictions = after.evictions - before.evictions;
+      activeEntities = after.activeEntities;
+    }
+  }
+
+  static class PhaseResult {
+    public final String phase;
+    public final int batchSize;
+    public final long completed;
+    public final long failed;
+    public final double seconds;
+    public final double msgsPerSec;
+    public final double allocatedMbPerSec;
+    public final double allocatedBytesPerMsg;
+    public final long gcCount;
+    public final long gcMillis;
+    public final LoadGeneratorActor.Latency latency;
+    public final Passivation passivation;
+
+    PhaseResult(String phase, int batchSize, long completed, long failed, JvmResources before, JvmResources after, LoadGeneratorActor.Latency latency, Passivation passivation) {
+      this.phase = phase;
+      this.batchSize = batchSize;
+      this.completed = completed;
+      this.failed = failed;
+      this.latency = latency;
+      this.passivation = passivation;
+      seconds = JvmResources.seconds(before, after);
+      msgsPerSec = completed / Math.max(seconds, 1e-9);
+      final var allocatedBytes = after.allocatedBytes - before.allocatedBytes;
+      allocatedMbPerSec = allocatedBytes / 1048576.0 / Math.max(seconds, 1e-9);
+      allocatedBytesPerMsg = completed == 0 ? 0.0 : (double) allocatedBytes / completed;
+      gcCount = after.gcCount - before.gcCount;
+      gcMillis = after.gcMillis - before.gcMillis;
+    }
+
+    String toText() {
+      return String.format("%-18s batch %4d %,10d msgs %,6d failed %6.1fs %,12.0f msgs/s %,9.1f MB/s %,9.0f B/msg gc %d/%dms%n  latency %s%n  passivation hits %,d, misses %,d, evictions %,d, active %,d",
+          phase, batchSize, completed, failed, seconds, msgsPerSec, allocatedMbPerSec, allocatedBytesPerMsg, gcCount, gcMillis, latency,
+          passivation.hits, passivation.misses, passivation.evictions, passivation.activeEntities);
+    }
+  }
+
+  static class Result {
+    public final String timestamp;
+    public final Settings settings;
+    public final int numberOfShards;
+    public final List<PhaseResult> phases;
+    public final Map<String, String> jvm = new LinkedHashMap<>();
+
+    Result(Instant timestamp, Settings settings, int numberOfShards, List<PhaseResult> phases) {
+      this.timestamp = timestamp.toString();
+      this.settings = settings;
+      this.numberOfShards = numberOfShards;
+      this.phases = phases;
+      jvm.put("version", System.getProperty("java.version"));
+      jvm.put("vm", System.getProperty("java.vm.name"));
+      jvm.put("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+      jvm.put("maxHeap", Long.toString(Runtime.getRuntime().maxMemory()));
+    }
+  }
+}
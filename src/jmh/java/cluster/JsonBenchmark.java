@@ -0,0 +1,81 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON serialization of the viewer snapshot and the cluster dashboard state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class JsonBenchmark {
+  @Param({ "1000", "10000", "100000" })
+  int entities;
+
+  private HttpServer.Tree tree;
+  private HttpServer.ClientResponse clientResponse;
+  private HttpServer.Nodes nodes;
+
+  @Setup
+  public void setup() {
+    tree = TreeFixture.tree(entities);
+
+    final var activitySummary = new HttpServer.ActivitySummary();
+    final var entityActions = new ArrayList<HttpServer.EntityAction>();
+    final var messageCounts = new HashMap<String, Integer>();
+    for (int entity = 0; entity < 1000; entity++) {
+      final var httpServer = TreeFixture.memberId(entity % TreeFixture.members);
+      entityActions.add(new HttpServer.EntityAction(TreeFixture.memberIdOf(entity), TreeFixture.shardIdOf(entity),
+          TreeFixture.entityId(entity), "ping", httpServer));
+      messageCounts.merge(httpServer, 1, Integer::sum);
+    }
+    activitySummary.load(new HttpServer.EntityActionBatch(entityActions, messageCounts));
+    clientResponse = new HttpServer.ClientResponse(1, tree, activitySummary);
+
+    final var pingRates = new RateMeter.Rates(200, 190, 180, 170);
+    final var nodePings = new HashMap<String, Long>();
+    final var nodeRoundTripTimes = new HashMap<String, LoadGeneratorActor.Latency>();
+    for (int member = 0; member < TreeFixture.members; member++) {
+      nodePings.put(TreeFixture.memberId(member), 1000L * member);
+      nodeRoundTripTimes.put(TreeFixture.memberId(member), new LoadGeneratorActor.Latency(200, 0.4, 1.2, 3.5, 4.0, 110.0));
+    }
+    nodes = new HttpServer.Nodes(7000, "akka://cluster@127.0.0.1:2551", 2551, true, true,
+        new HttpServer.ClusterAwareStatistics(10000, pingRates, nodePings, nodeRoundTripTimes),
+        new HttpServer.SingletonAwareStatistics(TreeFixture.memberId(0), 10000, pingRates, nodePings));
+    for (int member = 0; member < TreeFixture.members; member++) {
+      nodes.nodes.add(new HttpServer.Node(String.format("akka://cluster@127.0.0.1:%d", 2551 + member), 2551 + member, 9551 + member, "up", "up", member == 0, member == 0, member < 2));
+    }
+  }
+
+  @Benchmark
+  public String treeToJson() {
+    return tree.toJson();
+  }
+
+  @Benchmark
+  public String clientResponseToJson() {
+    return clientResponse.toJson();
+  }
+
+  @Benchmark
+  public String nodesToJson() {
+    return nodes.toJson();
+  }
+}
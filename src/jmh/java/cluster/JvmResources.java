@@ -0,0 +1,41 @@
+package cluster;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Snapshot of JVM counters for the benchmark harnesses. Allocated bytes only cover threads that
+ * are alive when sampled, the dispatcher threads doing the work live for the whole run.
+ */
+class JvmResources {
+  final long nanos;
+  final long allocatedBytes;
+  final long gcCount;
+  final long gcMillis;
+
+  private JvmResources(long nanos, long allocatedBytes, long gcCount, long gcMillis) {
+    this.nanos = nanos;
+    this.allocatedBytes = allocatedBytes;
+    this.gcCount = gcCount;
+    this.gcMillis = gcMillis;
+  }
+
+  static JvmResources sample() {
+    final var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long allocatedBytes = 0;
+    for (final var allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      allocatedBytes += Math.max(0, allocated);
+    }
+    long gcCount = 0;
+    long gcMillis = 0;
+    for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, gc.getCollectionCount());
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    return new JvmResources(System.nanoTime(), allocatedBytes, gcCount, gcMillis);
+  }
+
+  static double seconds(JvmResources before, JvmResources after) {
+    return (after.nanos - before.nanos) / 1e9;
+  }
+}
@@ -0,0 +1,63 @@
+package cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.UnboundedMailbox;
+
+/**
+ * Cost of one message through a mailbox queue the way a mailbox run uses it: enqueue, dequeue and
+ * the idle hasMessages check, for the default unbounded queue and the InstrumentedMailbox queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxBenchmark {
+  @Param({ "default", "instrumented" })
+  String mailbox;
+
+  private ActorSystem actorSystem;
+  private MessageQueue messageQueue;
+  private Envelope envelope;
+
+  @Setup
+  public void setup() {
+    actorSystem = ActorSystem.create("mailbox-benchmark", ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+    messageQueue = "instrumented".equals(mailbox)
+        ? new InstrumentedMailbox.InstrumentedMessageQueue(MailboxMetrics.get(actorSystem).actorType("benchmark"))
+        : new UnboundedMailbox.MessageQueue();
+    envelope = new Envelope("message", actorSystem.deadLetters());
+  }
+
+  @TearDown
+  public void tearDown() {
+    actorSystem.terminate();
+  }
+
+  @Benchmark
+  public boolean message() {
+    messageQueue.enqueue(actorSystem.deadLetters(), envelope);
+    messageQueue.dequeue();
+    return messageQueue.hasMessages();
+  }
+}
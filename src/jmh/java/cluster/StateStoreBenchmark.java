@@ -0,0 +1,77 @@
+package cluster;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads and saves of one shard's ShardStateStore, the cost an entity pays to get its value back when
+ * it is started again and to write a change. With 100 entities save is millions of updates to a few
+ * ids, the store printed at the end of each trial shows the file stays at its initial size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class StateStoreBenchmark {
+  @Param({ "100", "1000", "100000" })
+  int entities;
+
+  private Path directory;
+  private ShardStateStore store;
+  private String[] entityIds;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("state-store-benchmark");
+    store = ShardStateStore.create(directory.resolve("shard-0.state"), 1024, 65536);
+    entityIds = new String[entities];
+    for (int entity = 0; entity < entities; entity++) {
+      entityIds[entity] = TreeFixture.entityId(entity);
+      store.save(entityIds[entity], new EntityActor.Value(String.format("value-%d", entity)));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    System.out.printf("%n%s, %d file bytes%n", store, Files.size(directory.resolve("shard-0.state")));
+    try (final var paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public EntityActor.Value loadStored() {
+    return store.load(entityIds[next++ % entities]);
+  }
+
+  @Benchmark
+  public EntityActor.Value loadMissing() {
+    return store.load(String.format("missing-%d", next++ % entities));
+  }
+
+  // Overwrites, the log fills and is compacted to the live records now and then.
+  @Benchmark
+  public void save() {
+    final var entity = next++ % entities;
+    store.save(entityIds[entity], new EntityActor.Value(entity));
+  }
+}
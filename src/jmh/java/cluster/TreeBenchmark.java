@@ -0,0 +1,84 @@
+package cluster;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per entity action cost of the viewer tree at different cluster sizes. Each operation leaves the
+ * tree the size it started, so the numbers hold for the whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TreeBenchmark {
+  @Param({ "1000", "10000", "100000", "1000000" })
+  int entities;
+
+  // Entity ids are built up front so that the benchmarks measure the tree and not String.format.
+  private static final int newEntities = 1024;
+  private HttpServer.Tree tree;
+  private String[] entityIds;
+  private String[] newEntityIds;
+  private SplittableRandom random;
+  private int nextEntity;
+
+  @Setup
+  public void setup() {
+    tree = TreeFixture.tree(entities);
+    entityIds = TreeFixture.entityIds(0, entities);
+    newEntityIds = TreeFixture.entityIds(entities, newEntities);
+    random = new SplittableRandom(42);
+  }
+
+  @Benchmark
+  public HttpServer.Tree addThenRemove() {
+    final var entity = nextEntity++ % newEntities;
+    final var entityId = newEntityIds[entity];
+    tree.add(TreeFixture.memberIdOf(entities + entity), TreeFixture.shardIdOf(entities + entity), entityId);
+    tree.removeEntity(entityId);
+    return tree;
+  }
+
+  @Benchmark
+  public HttpServer.Tree ping() {
+    final var entity = random.nextInt(entities);
+    tree.ping(TreeFixture.memberIdOf(entity), TreeFixture.shardIdOf(entity), entityIds[entity]);
+    return tree;
+  }
+
+  // An entity restarted on another member after a rebalance, then moved back.
+  @Benchmark
+  public HttpServer.Tree move() {
+    final var entity = random.nextInt(entities);
+    final var entityId = entityIds[entity];
+    tree.add(TreeFixture.memberIdOf(entity + 1), TreeFixture.shardIdOf(entity), entityId);
+    tree.add(TreeFixture.memberIdOf(entity), TreeFixture.shardIdOf(entity), entityId);
+    return tree;
+  }
+
+  @Benchmark
+  public HttpServer.Tree removeThenAdd() {
+    final var entity = random.nextInt(entities);
+    final var memberId = TreeFixture.memberIdOf(entity);
+    final var shardId = TreeFixture.shardIdOf(entity);
+    final var entityId = entityIds[entity];
+    tree.remove(memberId, shardId, entityId);
+    tree.add(memberId, shardId, entityId);
+    return tree;
+  }
+}
@@ -0,0 +1,54 @@
+package cluster;
+
+/**
+ * Builds viewer trees shaped like a running cluster, nine members with the entities spread over
+ * eighteen shards, for the HttpServer benchmarks.
+ */
+class TreeFixture {
+  static final int members = 9;
+  static final int shards = 18;
+
+  static final String[] memberIds = new String[members];
+  static final String[] shardIds = new String[shards];
+
+  static {
+    for (int member = 0; member < members; member++) {
+      memberIds[member] = String.format("akka://cluster@127.0.0.1:%d", 2551 + member);
+    }
+    for (int shard = 0; shard < shards; shard++) {
+      shardIds[shard] = Integer.toString(shard);
+    }
+  }
+
+  static String memberId(int member) {
+    return memberIds[member];
+  }
+
+  static String entityId(int entity) {
+    return EntityActor.entityId(2551 + entity % members, entity);
+  }
+
+  static String[] entityIds(int from, int count) {
+    final var entityIds = new String[count];
+    for (int i = 0; i < count; i++) {
+      entityIds[i] = entityId(from + i);
+    }
+    return entityIds;
+  }
+
+  static String memberIdOf(int entity) {
+    return memberIds[entity % members];
+  }
+
+  static String shardIdOf(int entity) {
+    return shardIds[entity % shards];
+  }
+
+  static HttpServer.Tree tree(int entities) {
+    final var tree = new HttpServer.Tree("cluster", "cluster");
+    for (int entity = 0; entity < entities; entity++) {
+      tree.add(memberIdOf(entity), shardIdOf(entity), entityId(entity));
+    }
+    return tree;
+  }
+}
@@ -0,0 +1,44 @@
+package cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of dropping a member that left the cluster, along with its shards and entities. Every
+ * invocation needs a freshly built tree, so this runs as single shot measurements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TreeRemoveMemberBenchmark {
+  @Param({ "1000", "10000", "100000", "1000000" })
+  int entities;
+
+  private HttpServer.Tree tree;
+
+  @Setup(Level.Invocation)
+  public void setup() {
+    tree = TreeFixture.tree(entities);
+  }
+
+  @Benchmark
+  public HttpServer.Tree removeMember() {
+    tree.removeMember(TreeFixture.memberId(0));
+    return tree;
+  }
+}
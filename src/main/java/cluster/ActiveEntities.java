@@ -0,0 +1,69 @@
+package cluster;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import akka.actor.typed.ActorRef;
+
+/**
+ * The entity actors running in this node's shard region, by entity id, with their current values.
+ * Entity actors add themselves when they start, publish each value change and remove themselves when
+ * they stop. Active-only reads on the node that runs the entity are answered from this map without
+ * messaging the entity, and a shard's batch actor, which runs on the same node as the shard's
+ * entities, answers reads from other nodes the same way, see EntityLookup.
+ */
+class ActiveEntities {
+  private final Map<String, Entity> entities = new ConcurrentHashMap<>();
+
+  Entity started(String entityId, ActorRef<EntityActor.Command> entityRef) {
+    final var entity = new Entity(entityRef);
+    entities.put(entityId, entity);
+    return entity;
+  }
+
+  // Only removes the entry of this incarnation, a rebalanced entity may already have restarted.
+  void stopped(String entityId, Entity entity) {
+    entities.remove(entityId, entity);
+  }
+
+  int size() {
+    return entities.size();
+  }
+
+  /**
+   * The value of a running entity, or null when it is not running here or has no value yet. These
+   * reads don't reach the entity, so when it has not handled a message for touchIntervalNanos one read
+   * is passed on to it as a GetValue answered to ignoreRef, to keep it from being passivated as idle.
+   * The GetValue goes to the entity's own ActorRef rather than through sharding, so an entity that
+   * stops in the meantime gets a dead letter instead of being started again.
+   */
+  EntityActor.Value read(String entityId, long touchIntervalNanos, ActorRef<EntityActor.Command> ignoreRef) {
+    final var entity = entities.get(entityId);
+    if (entity == null) {
+      return null;
+    }
+    final var now = System.nanoTime();
+    if (now - entity.activeNanos > touchIntervalNanos) {
+      entity.activeNanos = now;
+      entity.entityRef.tell(new EntityActor.GetValue(new EntityActor.Id(entityId), ignoreRef));
+    }
+    return entity.value;
+  }
+
+  // One per entity actor incarnation. The value is written by the entity actor only, after each
+  // change and before it replies to it. Concurrent reads may both touch, which is harmless.
+  static class Entity {
+    final ActorRef<EntityActor.Command> entityRef;
+    volatile EntityActor.Value value;
+    volatile long activeNanos = System.nanoTime();
+
+    Entity(ActorRef<EntityActor.Command> entityRef) {
+      this.entityRef = entityRef;
+    }
+
+    // Called by the entity actor for each message it handles.
+    void active() {
+      activeNanos = System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.japi.pf.PFBuilder;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+
+/**
+ * Streams an NDJSON body of {"id": ..., "value": ...} records into the entities for the POST
+ * /entities/bulk route. Records are framed by line and collected for at most batch-window or
+ * batch-size records. Each collection is split by shard, and each shard's changes go to its
+ * ShardBatchActor as one ChangeValueBatch ask, with at most parallelism asks in flight. When the asks
+ * fall behind the stream stops pulling the request body, so the client is backpressured through the
+ * HTTP connection and a body of any size is ingested in the memory of a few batches.
+ *
+ * The response is an NDJSON stream of running summaries, one per progress interval, ending with one
+ * where done is true. Batches complete out of order, so two records for the same id in different
+ * batches may be applied in either order.
+ */
+class BulkIngest {
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static final ByteString newline = ByteString.fromString("\n");
+  private static final int maxErrors = 10;
+  private final ClusterSharding clusterSharding;
+  private final JumpHashMessageExtractor<EntityActor.Command> messageExtractor;
+  private final int maxRecordBytes;
+  private final int batchSize;
+  private final Duration batchWindow;
+  private final int parallelism;
+  private final Duration progressInterval;
+  private final Duration askTimeout;
+
+  BulkIngest(ActorSystem<?> actorSystem) {
+    final var config = actorSystem.settings().config();
+    clusterSharding = ClusterSharding.get(actorSystem);
+    messageExtractor = EntityActor.messageExtractor(actorSystem);
+    maxRecordBytes = config.getInt("http-server.bulk-ingest.max-record-bytes");
+    batchSize = config.getInt("http-server.bulk-ingest.batch-size");
+    batchWindow = Duration.parse(config.getString("http-server.bulk-ingest.batch-window-iso-8601"));
+    parallelism = config.getInt("http-server.bulk-ingest.parallelism");
+    progressInterval = Duration.parse(config.getString("http-server.bulk-ingest.progress-interval-iso-8601"));
+    // The batch actor replies with the timed out changes after the batch timeout, the ask waits a little longer.
+    askTimeout = Duration.parse(config.getString("entity-actor.batch-timeout-iso-8601"))
+        .plus(Duration.parse(config.getString("http-server.entity-request-timeout-iso-8601")));
+  }
+
+  Source<ByteString, NotUsed> ingest(Source<ByteString, ?> body) {
+    final var summary = new Summary();
+    return body
+        .via(Framing.delimiter(newline, maxRecordBytes, FramingTruncation.ALLOW))
+        .map(ByteString::utf8String)
+        .filter(line -> !line.isBlank())
+        .map(this::record)
+        .groupedWithin(batchSize, batchWindow)
+        .mapConcat(this::shardBatches)
+        .mapAsyncUnordered(parallelism, this::send)
+        .groupedWithin(Integer.MAX_VALUE, progressInterval)
+        .map(Optional::of)
+        // Concat pulls its second source early, so the end is marked with an empty element and the
+        // summary is only read after concat, where it has seen every result.
+        .concat(Source.single(Optional.<List<BatchResult>>empty()))
+        .map(results -> results.isPresent() ? summary.add(results.get()).toJson(false) : summary.toJson(true))
+        .recover(new PFBuilder<Throwable, String>()
+            .matchAny(e -> summary.error(String.format("Ingest failed: %s", e.getMessage())).toJson(true))
+            .build())
+        .map(line -> ByteString.fromString(line).concat(newline))
+        .mapMaterializedValue(notUsed -> NotUsed.getInstance());
+  }
+
+  private Record record(String line) {
+    try {
+      final var json = objectMapper.readTree(line);
+      final var id = json.path("id");
+      if (!id.isTextual() || id.textValue().isEmpty()) {
+        return Record.invalid("A record needs a non empty string id");
+      }
+      if (ShardBatchActor.isBatchEntityId(id.textValue())) {
+        return Record.invalid(String.format("Entity id %s is reserved for shard batches", id.textValue()));
+      }
+      return new Record(new ShardBatchActor.Change(new EntityActor.Id(id.textValue()), new EntityActor.Value(HttpServer.scalar(json.get("value")))), null);
+    } catch (JsonProcessingException | IllegalArgumentException e) {
+      return Record.invalid(e.getMessage());
+    }
+  }
+
+  private List<ShardBatch> shardBatches(List<Record> records) {
+    final var shards = new HashMap<String, ShardBatch>();
+    final var invalid = new ShardBatch(null);
+    records.forEach(record -> {
+      if (record.change == null) {
+        invalid.invalid(record.error);
+      } else {
+        shards.computeIfAbsent(messageExtractor.shardId(record.change.id.id), ShardBatch::new).changes.add(record.change);
+      }
+    });
+    final var shardBatches = new ArrayList<>(shards.values());
+    if (invalid.invalid > 0) {
+      shardBatches.add(invalid);
+    }
+    return shardBatches;
+  }
+
+  private CompletionStage<BatchResult> send(ShardBatch shardBatch) {
+    if (shardBatch.changes.isEmpty()) {
+      return CompletableFuture.completedFuture(new BatchResult(0, 0, 0, shardBatch.invalid, shardBatch.error));
+    }
+    return clusterSharding.entityRefFor(EntityActor.entityTypeKey, ShardBatchActor.batchEntityId(shardBatch.shardId))
+        .<EntityActor.Command>ask(replyTo -> new ShardBatchActor.ChangeValueBatch(shardBatch.shardId, shardBatch.changes, replyTo), askTimeout)
+        .handle((reply, error) -> {
+          if (reply instanceof ShardBatchActor.ChangeValueBatchAck) {
+            final var ack = (ShardBatchActor.ChangeValueBatchAck) reply;
+            return new BatchResult(ack.acks.size(), ack.timedOut.size(), 0, 0,
+                ack.timedOut.isEmpty() ? null : String.format("Shard %s timed out for %d changes", shardBatch.shardId, ack.timedOut.size()));
+          }
+          return new BatchResult(0, 0, shardBatch.changes.size(), 0,
+              String.format("Shard %s batch of %d failed: %s", shardBatch.shardId, shardBatch.changes.size(), error == null ? reply : error.getMessage()));
+        });
+  }
+
+  private static class Record {
+    final ShardBatchActor.Change change;
+    final String error;
+
+    Record(ShardBatchActor.Change change, String error) {
+      this.change = change;
+      this.error = error;
+    }
+
+    static Record invalid(String error) {
+      return new Record(null, error);
+    }
+  }
+
+  private static class ShardBatch {
+    final String shardId;
+    final List<ShardBatchActor.Change> changes = new ArrayList<>();
+    int invalid;
+    String error;
+
+    ShardBatch(String shardId) {
+      this.shardId = shardId;
+    }
+
+    void invalid(String error) {
+      if (invalid++ == 0) {
+        this.error = error;
+      }
+    }
+  }
+
+  private static class BatchResult {
+    final int changed;
+    final int timedOut;
+    final int failed;
+    final int invalid;
+    final String error;
+
+    BatchResult(int changed, int timedOut, int failed, int invalid, String error) {
+      this.changed = changed;
+      this.timedOut = timedOut;
+      this.failed = failed;
+      this.invalid = invalid;
+      this.error = error;
+    }
+  }
+
+  // Only the stream's stages touch the summary, one at a time. Errors keep the first few messages.
+  private static class Summary {
+    private final long startNanos = System.nanoTime();
+    private long changed;
+    private long timedOut;
+    private long failed;
+    private long invalid;
+    private final List<String> errors = new ArrayList<>();
+
+    Summary add(List<BatchResult> results) {
+      results.forEach(result -> {
+        changed += result.changed;
+        timedOut += result.timedOut;
+        failed += result.failed;
+        invalid += result.invalid;
+        if (result.error != null) {
+          error(result.error);
+        }
+      });
+      return this;
+    }
+
+    Summary error(String error) {
+      if (errors.size() < maxErrors) {
+        errors.add(error);
+      }
+      return this;
+    }
+
+    String toJson(boolean done) {
+      final var seconds = (System.nanoTime() - startNanos) / 1e9;
+      final var records = changed + timedOut + failed + invalid;
+      try {
+        return objectMapper.writeValueAsString(new Progress(done, records, changed, timedOut, failed, invalid, seconds, records / Math.max(seconds, 1e-9), errors));
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
+    }
+  }
+
+  public static class Progress {
+    public final boolean done;
+    public final long records;
+    public final long changed;
+    public final long timedOut;
+    public final long failed;
+    public final long invalid;
+    public final double seconds;
+    public final double recordsPerSecond;
+    public final List<String> errors;
+
+    Progress(boolean done, long records, long changed, long timedOut, long failed, long invalid, double seconds, double recordsPerSecond, List<String> errors) {
+      this.done = done;
+      this.records = records;
+      this.changed = changed;
+      this.timedOut = timedOut;
+      this.failed = failed;
+      this.invalid = invalid;
+      this.seconds = seconds;
+      this.recordsPerSecond = recordsPerSecond;
+      this.errors = errors;
+    }
+  }
+}
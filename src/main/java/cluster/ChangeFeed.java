@@ -0,0 +1,298 @@
+package cluster;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorRef;
+import akka.japi.Pair;
+import akka.stream.BufferOverflowException;
+import akka.stream.javadsl.Source;
+
+/**
+ * Node local side of the entity change feed. Entity actors publish each ChangeValue result here,
+ * subscribers are the /entity-changes streams of this node's HTTP server. A change is offered to
+ * every local subscriber whose filter matches, and sent once to each other node's ChangeFeedActor
+ * that has a subscriber with a matching filter, which offers it to its own subscribers. Nothing is
+ * allocated or sent when no subscriber anywhere matches.
+ *
+ * Each subscriber has a buffer of buffer-size changes, filled by the publishing threads and emptied
+ * one change at a time as the subscriber's stream pulls. It is the only place changes wait for the
+ * subscriber, apart from the change the stream is sending. Offers never wait, so a slow subscriber
+ * cannot slow down the entities or the other subscribers. Sequence numbers are assigned as changes
+ * leave the buffer, so they are consecutive and in the order the changes were buffered. When the
+ * buffer is full drop-oldest drops the oldest buffered change and the next change sent reports how
+ * many were dropped before it, disconnect ends the subscriber's stream.
+ */
+class ChangeFeed {
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private final int bufferSize;
+  private final String defaultOverflow;
+  private final AtomicLong subscriberIds = new AtomicLong();
+  private final Map<Long, Subscriber> subscribers = new ConcurrentHashMap<>();
+  private volatile Subscriber[] localSubscribers = new Subscriber[0];
+  private volatile Map<ActorRef<ChangeFeedActor.Message>, Set<Filter>> remoteFilters = Map.of();
+  private volatile ActorRef<ChangeFeedActor.Message> changeFeedActor;
+
+  ChangeFeed(int bufferSize, String defaultOverflow) {
+    disconnect(defaultOverflow);
+    this.bufferSize = bufferSize;
+    this.defaultOverflow = defaultOverflow;
+  }
+
+  static ChangeFeed create(Config config) {
+    return new ChangeFeed(
+        config.getInt("change-feed.buffer-size"),
+        config.getString("change-feed.overflow"));
+  }
+
+  // Called by the entity actors that own the entities, on their own threads.
+  void publish(String entityId, String shardId, String member, String action, Object value) {
+    final var local = localSubscribers;
+    final var remote = remoteFilters;
+    if (local.length == 0 && remote.isEmpty()) {
+      return;
+    }
+    final var change = new EntityChange(entityId, shardId, member, action, value);
+    deliver(change, local);
+    remote.forEach((changeFeedActor, filters) -> {
+      if (filters.stream().anyMatch(filter -> filter.matches(change))) {
+        changeFeedActor.tell(change);
+      }
+    });
+  }
+
+  // Called by the ChangeFeedActor with changes published on other nodes.
+  void deliver(EntityChange change) {
+    deliver(change, localSubscribers);
+  }
+
+  private static void deliver(EntityChange change, Subscriber[] subscribers) {
+    for (final var subscriber : subscribers) {
+      if (subscriber.filter.matches(change)) {
+        subscriber.offer(change);
+      }
+    }
+  }
+
+  /**
+   * A stream of the changes matching the filter, starting when it is materialized. Changes published
+   * before the other nodes have heard of the subscription are not sent by them.
+   */
+  Source<SequencedChange, NotUsed> subscribe(Filter filter, String overflow) {
+    final var disconnect = disconnect(overflow == null ? defaultOverflow : overflow);
+    return Source.fromMaterializer((materializer, attributes) -> {
+          final var subscriber = new Subscriber(filter, bufferSize, disconnect);
+          final var id = subscriberIds.incrementAndGet();
+          subscribers.put(id, subscriber);
+          subscriptionsChanged();
+          return Source.unfoldAsync(subscriber, Subscriber::next)
+              .watchTermination((notUsed, done) -> {
+                done.whenComplete((d, error) -> {
+                  subscribers.remove(id);
+                  subscriptionsChanged();
+                });
+                return NotUsed.getInstance();
+              });
+        })
+        .mapMaterializedValue(notUsed -> NotUsed.getInstance());
+  }
+
+  // True for disconnect, false for drop-oldest.
+  private static boolean disconnect(String overflow) {
+    switch (String.valueOf(overflow)) {
+      case "drop-oldest":
+        return false;
+      case "disconnect":
+        return true;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown change feed overflow '%s', use drop-oldest or disconnect", overflow));
+    }
+  }
+
+  private synchronized void subscriptionsChanged() {
+    localSubscribers = subscribers.values().toArray(new Subscriber[0]);
+    final var actor = changeFeedActor;
+    if (actor != null) {
+      actor.tell(ChangeFeedActor.SubscriptionsChanged.Instance);
+    }
+  }
+
+  // Called by the ChangeFeedActor.
+  void attach(ActorRef<ChangeFeedActor.Message> changeFeedActor) {
+    this.changeFeedActor = changeFeedActor;
+  }
+
+  Set<Filter> localFilters() {
+    return subscribers.values().stream().map(subscriber -> subscriber.filter).collect(Collectors.toSet());
+  }
+
+  void remoteFilters(Map<ActorRef<ChangeFeedActor.Message>, Set<Filter>> remoteFilters) {
+    this.remoteFilters = Map.copyOf(remoteFilters);
+  }
+
+  // Offered to by the publishing threads and pulled from by the subscriber's stream, under the
+  // subscriber's lock. A stream that pulls from an empty buffer waits for the next offer.
+  private static class Subscriber {
+    final Filter filter;
+    final int bufferSize;
+    final boolean disconnect;
+    private final ArrayDeque<Offered> buffer = new ArrayDeque<>();
+    private CompletableFuture<Optional<Pair<Subscriber, SequencedChange>>> pull;
+    private long sequence;
+    private boolean overflowed;
+
+    Subscriber(Filter filter, int bufferSize, boolean disconnect) {
+      this.filter = filter;
+      this.bufferSize = bufferSize;
+      this.disconnect = disconnect;
+    }
+
+    void offer(EntityChange change) {
+      final CompletableFuture<Optional<Pair<Subscriber, SequencedChange>>> waiting;
+      final SequencedChange next;
+      synchronized (this) {
+        if (overflowed) {
+          return;
+        }
+        if (pull == null) {
+          add(new Offered(change, 0));
+          return;
+        }
+        waiting = pull;
+        pull = null;
+        next = new SequencedChange(++sequence, change, 0);
+      }
+      waiting.complete(Optional.of(Pair.create(this, next)));
+    }
+
+    private void add(Offered offered) {
+      if (buffer.size() == bufferSize) {
+        if (disconnect) {
+          overflowed = true;
+          return;
+        }
+        final var oldest = buffer.removeFirst();
+        final var next = buffer.isEmpty() ? offered : buffer.getFirst();
+        next.droppedBefore += oldest.droppedBefore + 1;
+      }
+      buffer.addLast(offered);
+    }
+
+    // Called by the stream for each change it sends, never again before the returned stage completes.
+    synchronized CompletionStage<Optional<Pair<Subscriber, SequencedChange>>> next() {
+      if (overflowed) {
+        return CompletableFuture.failedFuture(overflow(bufferSize));
+      }
+      final var offered = buffer.pollFirst();
+      if (offered != null) {
+        return CompletableFuture.completedFuture(Optional.of(Pair.create(this, new SequencedChange(++sequence, offered.change, offered.droppedBefore))));
+      }
+      pull = new CompletableFuture<>();
+      return pull;
+    }
+  }
+
+  private static BufferOverflowException overflow(int bufferSize) {
+    return new BufferOverflowException(String.format("Change feed buffer of %d changes overflowed", bufferSize));
+  }
+
+  private static class Offered {
+    final EntityChange change;
+    long droppedBefore;
+
+    Offered(EntityChange change, long droppedBefore) {
+      this.change = change;
+      this.droppedBefore = droppedBefore;
+    }
+  }
+
+  /** Matches entity ids starting with prefix and entities in shard shardId, a null field matches any. */
+  public static class Filter implements CborSerializable {
+    public final String prefix;
+    public final String shardId;
+
+    @JsonCreator
+    public Filter(String prefix, String shardId) {
+      this.prefix = prefix;
+      this.shardId = shardId;
+    }
+
+    boolean matches(EntityChange change) {
+      return (prefix == null || change.entityId.startsWith(prefix))
+          && (shardId == null || shardId.equals(change.shardId));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Filter
+          && Objects.equals(prefix, ((Filter) other).prefix)
+          && Objects.equals(shardId, ((Filter) other).shardId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(prefix, shardId);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %s]", getClass().getSimpleName(), prefix, shardId);
+    }
+  }
+
+  public static class EntityChange implements ChangeFeedActor.Message, CborSerializable {
+    public final String entityId;
+    public final String shardId;
+    public final String member;
+    public final String action;
+    public final Object value;
+
+    @JsonCreator
+    public EntityChange(String entityId, String shardId, String member, String action, Object value) {
+      this.entityId = entityId;
+      this.shardId = shardId;
+      this.member = member;
+      this.action = action;
+      this.value = value;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %s, %s, %s, %s]", getClass().getSimpleName(), entityId, shardId, member, action, value);
+    }
+  }
+
+  static class SequencedChange {
+    final long sequence;
+    final EntityChange change;
+    final long droppedBefore;
+
+    SequencedChange(long sequence, EntityChange change, long droppedBefore) {
+      this.sequence = sequence;
+      this.change = change;
+      this.droppedBefore = droppedBefore;
+    }
+
+    String toJson() {
+      try {
+        return objectMapper.writeValueAsString(change);
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import org.slf4j.Logger;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+
+/**
+ * Shares each node's change feed subscriptions with the other nodes. Whenever this node's subscriber
+ * filters change, or a node joins, the filters are sent to every other node's ChangeFeedActor, so an
+ * entity's owning node only sends a change to the nodes that have a subscriber for it. Changes from
+ * other nodes arrive here and are handed to this node's ChangeFeed.
+ */
+class ChangeFeedActor extends AbstractBehavior<ChangeFeedActor.Message> {
+  private final ChangeFeed changeFeed;
+  private Set<ActorRef<Message>> serviceInstances = Set.of();
+  private final Map<ActorRef<Message>, Set<ChangeFeed.Filter>> remoteFilters = new HashMap<>();
+  private static final ServiceKey<Message> serviceKey = ServiceKey.create(Message.class, ChangeFeedActor.class.getSimpleName());
+
+  static Behavior<Message> create(ChangeFeed changeFeed) {
+    return Behaviors.setup(context -> new ChangeFeedActor(context, changeFeed));
+  }
+
+  private ChangeFeedActor(ActorContext<Message> context, ChangeFeed changeFeed) {
+    super(context);
+    this.changeFeed = changeFeed;
+
+    receptionistRegisterSubscribe(context);
+    changeFeed.attach(context.getSelf());
+  }
+
+  @Override
+  public Receive<Message> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(Listeners.class, this::onListeners)
+        .onMessage(SubscriptionsChanged.class, notUsed -> onSubscriptionsChanged())
+        .onMessage(Filters.class, this::onFilters)
+        .onMessage(ChangeFeed.EntityChange.class, this::onEntityChange)
+        .build();
+  }
+
+  private void receptionistRegisterSubscribe(ActorContext<Message> context) {
+    final var listingActorRef = context.messageAdapter(Receptionist.Listing.class, Listeners::new);
+
+    context.getSystem().receptionist()
+        .tell(Receptionist.register(serviceKey, context.getSelf()));
+    context.getSystem().receptionist()
+        .tell(Receptionist.subscribe(serviceKey, listingActorRef));
+  }
+
+  // A node that joined has not heard this node's filters yet, the filters of a node that left are dropped.
+  private Behavior<Message> onListeners(Listeners listeners) {
+    serviceInstances = listeners.listing.getServiceInstances(serviceKey);
+    if (remoteFilters.keySet().retainAll(serviceInstances)) {
+      changeFeed.remoteFilters(remoteFilters);
+    }
+    return onSubscriptionsChanged();
+  }
+
+  private Behavior<Message> onSubscriptionsChanged() {
+    final var filters = new Filters(getContext().getSelf(), changeFeed.localFilters());
+    serviceInstances.stream()
+        .filter(changeFeedActorRef -> !changeFeedActorRef.equals(getContext().getSelf()))
+        .forEach(changeFeedActorRef -> changeFeedActorRef.tell(filters));
+    return Behaviors.same();
+  }
+
+  private Behavior<Message> onFilters(Filters filters) {
+    log().debug("{}", filters);
+    if (filters.filters.isEmpty()) {
+      remoteFilters.remove(filters.changeFeedActorRef);
+    } else {
+      remoteFilters.put(filters.changeFeedActorRef, filters.filters);
+    }
+    changeFeed.remoteFilters(remoteFilters);
+    return Behaviors.same();
+  }
+
+  private Behavior<Message> onEntityChange(ChangeFeed.EntityChange entityChange) {
+    changeFeed.deliver(entityChange);
+    return Behaviors.same();
+  }
+
+  private Logger log() {
+    return getContext().getLog();
+  }
+
+  public interface Message {
+  }
+
+  private static class Listeners implements Message {
+    final Receptionist.Listing listing;
+
+    private Listeners(Receptionist.Listing listing) {
+      this.listing = listing;
+    }
+  }
+
+  enum SubscriptionsChanged implements Message {
+    Instance
+  }
+
+  public static class Filters implements Message, CborSerializable {
+    public final ActorRef<Message> changeFeedActorRef;
+    public final Set<ChangeFeed.Filter> filters;
+
+    @JsonCreator
+    public Filters(ActorRef<Message> changeFeedActorRef, Set<ChangeFeed.Filter> filters) {
+      this.changeFeedActorRef = changeFeedActorRef;
+      this.filters = filters;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %s]", getClass().getSimpleName(), changeFeedActorRef, filters);
+    }
+  }
+}
@@ -13,16 +13,18 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import org.slf4j.Logger;
 
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Message> {
   private final PingStatistics pingStatistics = new PingStatistics();
   private final ActorRef<HttpServer.Statistics> httpServerActor;
+  private final RoundTripTimes roundTripTimes;
+  private final long roundTripTimesPublishNanos;
+  private long roundTripTimesPublished = System.nanoTime();
+  private Map<String, LoadGeneratorActor.Latency> nodeRoundTripTimes = Map.of();
   private Set<ActorRef<Message>> serviceInstances;
   private static final Duration tickInterval = Duration.ofMillis(25 + Math.round(50 * Math.random())); // avg 50ms per tick
   private static final ServiceKey<Message> serviceKey = ServiceKey.create(Message.class, ClusterAwareActor.class.getSimpleName());
@@ -37,6 +39,10 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
     super(context);
     this.httpServerActor = httpServerActor;
 
+    final var config = context.getSystem().settings().config();
+    roundTripTimes = new RoundTripTimes(Duration.parse(config.getString("cluster-aware-actor.round-trip-time-window-iso-8601")));
+    roundTripTimesPublishNanos = Duration.parse(config.getString("cluster-aware-actor.round-trip-time-publish-interval-iso-8601")).toNanos();
+
     receptionistRegisterSubscribe(context);
     timers.startTimerAtFixedRate(Tick.Instance, tickInterval);
   }
@@ -63,6 +69,7 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
   private Behavior<Message> onListeners(Listeners listeners) {
     serviceInstances = listeners.listing.getServiceInstances(serviceKey);
     pingStatistics.clearOfflineNodeCounters(serviceInstances);
+    roundTripTimes.retain(serviceInstances.stream().map(PingStatistics::memberAddress).collect(Collectors.toSet()));
 
     log().info("Cluster aware actors subscribers changed, count {}", serviceInstances.size());
     serviceInstances
@@ -85,21 +92,33 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
   private Behavior<Message> onTick() {
     pingUpColleagues();
     httpServerActor.tell(new HttpServer.ClusterAwareStatistics(
-        pingStatistics.totalPings,
-        pingStatistics.pingRatePs,
-        Collections.unmodifiableMap(pingStatistics.nodePings)));
+        pingStatistics.pings.count(),
+        pingStatistics.pings.rates(),
+        pingStatistics.nodePings.snapshot(),
+        roundTripTimes()));
     return Behaviors.same();
   }
 
+  // Percentiles are only recomputed once per publish interval, ticks in between send the same map.
+  private Map<String, LoadGeneratorActor.Latency> roundTripTimes() {
+    final var now = System.nanoTime();
+    if (now - roundTripTimesPublished >= roundTripTimesPublishNanos) {
+      roundTripTimesPublished = now;
+      nodeRoundTripTimes = roundTripTimes.snapshot();
+    }
+    return nodeRoundTripTimes;
+  }
+
   private Behavior<Message> onPing(Ping ping) {
-    logInfoIf(pingStatistics.totalPings % 100 == 0, "<=={}", ping);
+    logInfoIf(pingStatistics.pings.count() % 100 == 0, "<=={}", ping);
     ping.replyTo.tell(new Pong(getContext().getSelf(), ping.start));
     pingStatistics.ping(ping.replyTo);
     return Behaviors.same();
   }
 
   private Behavior<Message> onPong(Pong pong) {
-    logInfoIf(pingStatistics.totalPings % 100 == 0, "<--{}", pong);
+    logInfoIf(pingStatistics.pings.count() % 100 == 0, "<--{}", pong);
+    roundTripTimes.record(PingStatistics.memberAddress(pong.replyFrom), System.nanoTime() - pong.pingStart);
     return Behaviors.same();
   }
 
@@ -108,7 +127,7 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
 
     if (iAmUp()) {
       final var size = serviceInstances.size() - 1;
-      logInfoIf(pingStatistics.totalPings % 100 == 0, "Tick, ping {}", Math.max(size, 0));
+      logInfoIf(pingStatistics.pings.count() % 100 == 0, "Tick, ping {}", Math.max(size, 0));
 
       final var upMembers = getUpMembers();
 
@@ -117,7 +136,7 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
           .filter(clusterAwareActorRef -> upMembers.contains(clusterAwareActorRef.path().address()))
           .forEach(clusterAwareActorRef -> clusterAwareActorRef.tell(new Ping(context.getSelf(), System.nanoTime())));
     } else {
-      logInfoIf(pingStatistics.totalPings % 100 == 0, "Tick, no pings, this node is not up, {}", Cluster.get(context.getSystem()).selfMember());
+      logInfoIf(pingStatistics.pings.count() % 100 == 0, "Tick, no pings, this node is not up, {}", Cluster.get(context.getSystem()).selfMember());
     }
   }
 
@@ -191,38 +210,20 @@ public class ClusterAwareActor extends AbstractBehavior<ClusterAwareActor.Messag
   }
 
   static class PingStatistics {
-    int totalPings = 0;
-    int pingRatePs = 0;
-    final Instant startTime = Instant.now();
-    final Map<Integer, Integer> nodePings = new HashMap<>();
-
-    PingStatistics() {
-      IntStream.rangeClosed(2551, 2559).forEach(p -> nodePings.put(p, 0));
-    }
+    final RateMeter pings = new RateMeter();
+    final NodeCounters nodePings = new NodeCounters();
 
     void ping(ActorRef<Message> actorRef) {
-      ++totalPings;
-      pingRatePs = (int) (totalPings / Math.max(1, Duration.between(startTime, Instant.now()).toSeconds()));
-
-      final int port = actorRefPort(actorRef);
-      if (port >= 2551 && port <= 2559) {
-        nodePings.put(port, 1 + nodePings.getOrDefault(port, 0));
-      }
+      pings.mark();
+      nodePings.increment(memberAddress(actorRef));
     }
 
     void clearOfflineNodeCounters(Set<ActorRef<Message>> serviceInstances) {
-      final var ports = new ArrayList<Integer>();
-      IntStream.rangeClosed(2551, 2559).forEach(ports::add);
-
-      serviceInstances.forEach(actorRef -> ports.removeIf(p -> p == actorRefPort(actorRef)));
-      ports.forEach(port -> nodePings.replace(port, 0));
+      nodePings.retain(serviceInstances.stream().map(PingStatistics::memberAddress).collect(Collectors.toSet()));
     }
 
-    private static int actorRefPort(ActorRef<Message> actorRef) {
-      final var port = actorRef.path().address().port();
-      return port.isDefined()
-          ? Integer.parseInt(port.get().toString())
-          : -1;
+    private static String memberAddress(ActorRef<Message> actorRef) {
+      return actorRef.path().address().toString();
     }
   }
 }
@@ -1,11 +1,7 @@
 package cluster;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 
@@ -14,6 +10,9 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.cluster.ClusterEvent;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Subscribe;
 import cluster.ClusterSingletonAwareActor.Message;
 
 class ClusterSingletonActor extends AbstractBehavior<Message> {
@@ -27,43 +26,53 @@ class ClusterSingletonActor extends AbstractBehavior<Message> {
   ClusterSingletonActor(ActorContext<Message> actorContext) {
     super(actorContext);
     memberId = actorContext.getSystem().address().toString();
+
+    final var memberRemovedAdapter = actorContext.messageAdapter(ClusterEvent.MemberRemoved.class, MemberRemoved::new);
+    Cluster.get(actorContext.getSystem()).subscriptions().tell(Subscribe.create(memberRemovedAdapter, ClusterEvent.MemberRemoved.class));
   }
 
   @Override
   public Receive<Message> createReceive() {
     return newReceiveBuilder()
       .onMessage(ClusterSingletonAwareActor.Ping.class, this::onPing)
+      .onMessage(MemberRemoved.class, this::onMemberRemoved)
       .build();
   }
 
+  private Behavior<Message> onMemberRemoved(MemberRemoved memberRemoved) {
+    final var members = StreamSupport.stream(Cluster.get(getContext().getSystem()).state().getMembers().spliterator(), false)
+        .map(member -> member.address().toString())
+        .collect(Collectors.toSet());
+    singletonStatistics.nodePings.retain(members);
+    return Behaviors.same();
+  }
+
   private Behavior<Message> onPing(ClusterSingletonAwareActor.Ping ping) {
     singletonStatistics.ping(ping);
-    if (singletonStatistics.totalPings % 100 == 0) {
+    if (singletonStatistics.pings.count() % 100 == 0) {
       log().info("<=={}", ping);
     }
     ping.replyTo
-        .tell(new ClusterSingletonAwareActor.Pong(memberId, ping.start, singletonStatistics.totalPings,
-            singletonStatistics.pingRatePs, Collections.unmodifiableMap(singletonStatistics.nodePings)));
+        .tell(new ClusterSingletonAwareActor.Pong(memberId, ping.start, singletonStatistics.pings.count(),
+            singletonStatistics.pings.rates(), singletonStatistics.nodePings.snapshot()));
     return Behaviors.same();
   }
 
   static class SingletonStatistics {
-    int totalPings = 0;
-    int pingRatePs = 0;
-    final Instant startTime = Instant.now();
-    Map<Integer, Integer> nodePings = new HashMap<>();
+    final RateMeter pings = new RateMeter();
+    final NodeCounters nodePings = new NodeCounters();
 
-    SingletonStatistics() {
-      IntStream.rangeClosed(2551, 2559).forEach(p -> nodePings.put(p, 0));
+    void ping(ClusterSingletonAwareActor.Ping ping) {
+      pings.mark();
+      nodePings.increment(ping.memberId);
     }
+  }
 
-    void ping(ClusterSingletonAwareActor.Ping ping) {
-      ++totalPings;
-      pingRatePs = (int) (totalPings / Math.max(1, Duration.between(startTime, Instant.now()).toSeconds()));
+  private static class MemberRemoved implements Message {
+    final ClusterEvent.MemberRemoved memberRemoved;
 
-      if (ping.port >= 2551 && ping.port <= 2559) {
-        nodePings.put(ping.port, 1 + nodePings.getOrDefault(ping.port, 0));
-      }
+    MemberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+      this.memberRemoved = memberRemoved;
     }
   }
 
@@ -23,7 +23,7 @@ class ClusterSingletonAwareActor extends AbstractBehavior<ClusterSingletonAwareA
   private final ActorRef<Message> clusterSingletonProxy;
   private final ActorRef<HttpServer.Statistics> httpServerActor;
   private final Duration tickInterval = Duration.ofMillis(25 + Math.round(50 * Math.random())); // avg 50ms per tick
-  private final int port;
+  private final String memberId;
 
   static Behavior<Message> create(ActorRef<HttpServer.Statistics> httpServerActor) {
     return Behaviors.setup(actorContext ->
@@ -33,8 +33,7 @@ class ClusterSingletonAwareActor extends AbstractBehavior<ClusterSingletonAwareA
   ClusterSingletonAwareActor(ActorContext<Message> actorContext, TimerScheduler<Message> timers, ActorRef<HttpServer.Statistics> httpServerActor) {
     super(actorContext);
     this.httpServerActor = httpServerActor;
-    final var selfAddress = Cluster.get(actorContext.getSystem()).selfAddress();
-    port = selfAddress.getPort().orElse(-1);
+    memberId = Cluster.get(actorContext.getSystem()).selfAddress().toString();
 
     clusterSingletonProxy = ClusterSingleton.get(actorContext.getSystem())
         .init(SingletonActor.of(ClusterSingletonActor.create(), ClusterSingletonActor.class.getSimpleName()));
@@ -51,7 +50,7 @@ class ClusterSingletonAwareActor extends AbstractBehavior<ClusterSingletonAwareA
 
   private Behavior<Message> onTick() {
     if (iAmUp()) {
-      clusterSingletonProxy.tell(new Ping(getContext().getSelf(), port, System.nanoTime()));
+      clusterSingletonProxy.tell(new Ping(getContext().getSelf(), memberId, System.nanoTime()));
     }
     return Behaviors.same();
   }
@@ -60,7 +59,7 @@ class ClusterSingletonAwareActor extends AbstractBehavior<ClusterSingletonAwareA
     if (pong.totalPings % 100 == 0) {
       log().info("<--{}", pong);
     }
-    httpServerActor.tell(new HttpServer.SingletonAwareStatistics(pong.replyFrom, pong.totalPings, pong.pingRatePs, pong.singletonStatistics));
+    httpServerActor.tell(new HttpServer.SingletonAwareStatistics(pong.replyFrom, pong.totalPings, pong.pingRates, pong.singletonStatistics));
     return Behaviors.same();
   }
 
@@ -72,35 +71,35 @@ class ClusterSingletonAwareActor extends AbstractBehavior<ClusterSingletonAwareA
 
   public static class Ping implements Message {
     public final ActorRef<Message> replyTo;
-    public final int port;
+    public final String memberId;
     public final long start;
 
     @JsonCreator
-    public Ping(ActorRef<Message> replyTo, int port, long start) {
+    public Ping(ActorRef<Message> replyTo, String memberId, long start) {
       this.replyTo = replyTo;
-      this.port = port;
+      this.memberId = memberId;
       this.start = start;
     }
 
     @Override
     public String toString() {
-      return String.format("%s[%d, %s]", getClass().getSimpleName(), port, replyTo.path());
+      return String.format("%s[%s, %s]", getClass().getSimpleName(), memberId, replyTo.path());
     }
   }
 
   public static class Pong implements Message {
     public final String replyFrom;
     public final long pingStart;
-    public final int totalPings;
-    public final int pingRatePs;
-    public final Map<Integer, Integer> singletonStatistics;
+    public final long totalPings;
+    public final RateMeter.Rates pingRates;
+    public final Map<String, Long> singletonStatistics;
 
     @JsonCreator
-    public Pong(String replyFrom, long pingStart, int totalPings, int pingRatePs, Map<Integer, Integer> singletonStatistics) {
+    public Pong(String replyFrom, long pingStart, long totalPings, RateMeter.Rates pingRates, Map<String, Long> singletonStatistics) {
       this.replyFrom = replyFrom;
       this.pingStart = pingStart;
       this.totalPings = totalPings;
-      this.pingRatePs = pingRatePs;
+      this.pingRates = pingRates;
       this.singletonStatistics = singletonStatistics;
     }
 
@@ -1,15 +1,20 @@
 package cluster;
 
+import java.time.Duration;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 
 import org.slf4j.Logger;
 
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
 import cluster.HttpServer.EntityAction;
 import cluster.HttpServerActor.BroadcastEntityAction;
@@ -20,21 +25,61 @@ class EntityActor extends AbstractBehavior<EntityActor.Command> {
   private final String shardId;
   private final String memberId;
   private final ActorRef<HttpServer.Statistics> httpServerActorRef;
+  private final ShardLoad shardLoad;
+  private final ActorRef<ClusterSharding.ShardCommand> shard;
+  private final EntityPassivation entityPassivation;
+  private final EntityPassivation.Handle passivationHandle;
+  private final HotPathLog hotPathLog;
+  private final ChangeFeed changeFeed;
+  private final ActiveEntities activeEntities;
+  private final ActiveEntities.Entity activeEntity;
+  private final EntityStateStore stateStore;
+  private final long activatedNanos = System.nanoTime();
   private State state;
+  private boolean unsaved;
   static EntityTypeKey<Command> entityTypeKey = EntityTypeKey.create(Command.class, EntityActor.class.getSimpleName());
 
-  static Behavior<Command> create(String entityId, ActorRef<HttpServer.Statistics> httpServerActorRef) {
-    return Behaviors.setup(actorContext -> new EntityActor(actorContext, entityId, httpServerActorRef));
+  static Behavior<Command> create(String entityId, String shardId, ActorRef<ClusterSharding.ShardCommand> shard,
+      ActorRef<HttpServer.Statistics> httpServerActorRef, ShardLoad shardLoad, EntityPassivation entityPassivation, HotPathLog hotPathLog,
+      ChangeFeed changeFeed, ActiveEntities activeEntities, EntityStateStore stateStore) {
+    return Behaviors.setup(actorContext ->
+        new EntityActor(actorContext, entityId, shardId, shard, httpServerActorRef, shardLoad, entityPassivation, hotPathLog, changeFeed, activeEntities,
+            stateStore));
   }
 
-  private EntityActor(ActorContext<Command> actorContext, String entityId, ActorRef<HttpServer.Statistics> httpServerActorRef) {
+  private EntityActor(ActorContext<Command> actorContext, String entityId, String shardId, ActorRef<ClusterSharding.ShardCommand> shard,
+      ActorRef<HttpServer.Statistics> httpServerActorRef, ShardLoad shardLoad, EntityPassivation entityPassivation, HotPathLog hotPathLog,
+      ChangeFeed changeFeed, ActiveEntities activeEntities, EntityStateStore stateStore) {
     super(actorContext);
     this.actorContext = actorContext;
     this.entityId = entityId;
+    this.shardId = shardId;
     this.httpServerActorRef = httpServerActorRef;
-    shardId = "" + Math.abs(entityId.hashCode()) % actorContext.getSystem().settings().config().getInt("akka.cluster.sharding.number-of-shards");
+    this.shardLoad = shardLoad;
+    this.shard = shard;
+    this.entityPassivation = entityPassivation;
+    this.hotPathLog = hotPathLog;
+    this.changeFeed = changeFeed;
+    this.activeEntities = activeEntities;
+    this.stateStore = stateStore;
     memberId = actorContext.getSystem().address().toString();
-    log().info("Start {}", entityId);
+    passivationHandle = entityPassivation.handle(entityId, shard, actorContext.getSelf());
+    activeEntity = activeEntities.started(entityId, actorContext.getSelf());
+    actorContext.setReceiveTimeout(idleTimeout(actorContext.getSystem()), Idle.INSTANCE);
+    final var storedValue = stateStore.load(shardId, shard, entityId);
+    if (storedValue != null) {
+      state = new State(new Id(entityId), storedValue);
+      activeEntity.value = storedValue;
+    }
+    if (hotPathLog.sample()) {
+      log().info("Start {}", entityId);
+    }
+    final var activated = new FlightEvents.EntityActivated();
+    if (activated.shouldCommit()) {
+      activated.entityId = entityId;
+      activated.shardId = shardId;
+      activated.commit();
+    }
   }
 
   @Override
@@ -42,45 +87,112 @@ class EntityActor extends AbstractBehavior<EntityActor.Command> {
     return newReceiveBuilder()
       .onMessage(ChangeValue.class, this::onChangeValue)
       .onMessage(GetValue.class, this::onGetValue)
+      .onMessage(Idle.class, msg -> onIdle())
       .onMessage(Passivate.class, msg -> onPassivate())
+      .onSignal(PostStop.class, signal -> onPostStop())
       .build();
   }
 
   private Behavior<Command> onChangeValue(ChangeValue changeValue) {
+    final var event = new FlightEvents.EntityMessage();
+    event.begin();
+    shardLoad.record(shardId);
+    entityPassivation.record(passivationHandle);
+    activeEntity.active();
+    activeEntity.value = changeValue.value;
+    final String action;
     if (state == null) {
       state = new State(changeValue.id, changeValue.value);
-      log().info("initialize {}", state);
+      if (hotPathLog.sample()) {
+        log().info("initialize {}", state);
+      }
 
-      changeValue.replyTo.tell(new ChangeValueAck("initialize", changeValue.id, changeValue.value));
+      action = "initialize";
+      changeValue.replyTo.tell(new ChangeValueAck(action, changeValue.id, changeValue.value));
       notifyHttpServer("start", changeValue.replyTo);
     } else {
-      log().info("update {} {} -> {}", state.id, state.value, changeValue.value);
+      if (hotPathLog.sample()) {
+        log().info("update {} {} -> {}", state.id, state.value, changeValue.value);
+      }
       state.value = changeValue.value;
-      changeValue.replyTo.tell(new ChangeValueAck("update", changeValue.id, changeValue.value));
+      action = "update";
+      changeValue.replyTo.tell(new ChangeValueAck(action, changeValue.id, changeValue.value));
       notifyHttpServer("ping", changeValue.replyTo);
     }
+    if (stateStore.saveOnUpdate()) {
+      stateStore.save(shardId, shard, entityId, changeValue.value);
+    } else {
+      unsaved = true;
+    }
+    changeFeed.publish(entityId, shardId, memberId, action, changeValue.value.value);
+    commit(event, "ChangeValue", action);
     return this;
   }
 
   private Behavior<Command> onGetValue(GetValue getValue) {
-    log().info("{} -> {}", getValue, state == null ? "(not initialized)" : state);
+    final var event = new FlightEvents.EntityMessage();
+    event.begin();
+    shardLoad.record(shardId);
+    entityPassivation.record(passivationHandle);
+    activeEntity.active();
+    if (hotPathLog.sample()) {
+      log().info("{} -> {}", getValue, state == null ? "(not initialized)" : state);
+    }
+    final String action;
     if (state == null) {
       getValue.replyTo.tell(new GetValueAckNotFound(getValue.id));
       state = new State(getValue.id, new Value(""));
-      notifyHttpServer("start", getValue.replyTo);
+      action = "start";
     } else {
       getValue.replyTo.tell(new GetValueAck(state.id, state.value));
-      notifyHttpServer("ping", getValue.replyTo);
+      action = "ping";
     }
+    notifyHttpServer(action, getValue.replyTo);
+    commit(event, "GetValue", action);
+    return this;
+  }
+
+  private Behavior<Command> onIdle() {
+    shard.tell(new ClusterSharding.Passivate<>(actorContext.getSelf()));
     return this;
   }
 
   private Behavior<Command> onPassivate() {
-    log().info("Stop passivate {} {} {}", entityId, shardId, memberId);
+    if (hotPathLog.sample()) {
+      log().info("Stop passivate {} {} {}", entityId, shardId, memberId);
+    }
     notifyHttpServer("stop", null);
+    final var passivated = new FlightEvents.EntityPassivated();
+    if (passivated.shouldCommit()) {
+      passivated.entityId = entityId;
+      passivated.shardId = shardId;
+      passivated.activeTime = System.nanoTime() - activatedNanos;
+      passivated.commit();
+    }
     return Behaviors.stopped();
   }
 
+  // Also reached when the entity stops without a Passivate, so a value not saved on update is saved here.
+  private Behavior<Command> onPostStop() {
+    if (unsaved) {
+      stateStore.save(shardId, shard, entityId, state.value);
+    }
+    entityPassivation.stopped(passivationHandle);
+    activeEntities.stopped(entityId, activeEntity);
+    return this;
+  }
+
+  private void commit(FlightEvents.EntityMessage event, String message, String action) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.entityId = entityId;
+      event.shardId = shardId;
+      event.message = message;
+      event.action = action;
+      event.commit();
+    }
+  }
+
   private void notifyHttpServer(String action, ActorRef<Command> sender) {
     final var address = sender == null ? null : addressFor(sender);
     final var entityAction = new EntityAction(memberId, shardId, entityId, action, address);
@@ -98,6 +210,16 @@ class EntityActor extends AbstractBehavior<EntityActor.Command> {
     return actorContext.getSystem().log();
   }
 
+  static JumpHashMessageExtractor<Command> messageExtractor(ActorSystem<?> actorSystem) {
+    return new JumpHashMessageExtractor<>(actorSystem.settings().config().getInt("akka.cluster.sharding.number-of-shards"));
+  }
+
+  // Entities time themselves out instead of leaving it to sharding, which only counts the messages it
+  // delivers, so the reads ActiveEntities passes on to an entity's own ActorRef count as activity too.
+  static Duration idleTimeout(ActorSystem<?> actorSystem) {
+    return Duration.parse(actorSystem.settings().config().getString("entity-actor.idle-timeout-iso-8601"));
+  }
+
   static String entityId(int nodePort, int id) {
     return String.format("%d-%d", nodePort, id);
   }
@@ -190,6 +312,11 @@ class EntityActor extends AbstractBehavior<EntityActor.Command> {
     INSTANCE
   }
 
+  // The receive timeout, sent when the actor has not received a message for entity-actor.idle-timeout.
+  enum Idle implements Command {
+    INSTANCE
+  }
+
   private static class State {
     final Id id;
     Value value;
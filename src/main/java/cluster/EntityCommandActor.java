@@ -1,6 +1,7 @@
 package cluster;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
 
 import org.slf4j.Logger;
@@ -19,6 +20,8 @@ class EntityCommandActor extends AbstractBehavior<EntityActor.Command> {
   private final ClusterSharding clusterSharding;
   private final int entitiesPerNode;
   private final Integer nodePort;
+  private final int batchSize;
+  private final JumpHashMessageExtractor<Command> messageExtractor;
 
   static Behavior<EntityActor.Command> create() {
     return Behaviors.setup(actorContext -> 
@@ -34,6 +37,8 @@ class EntityCommandActor extends AbstractBehavior<EntityActor.Command> {
     final var interval = Duration.parse(actorContext.getSystem().settings().config().getString("entity-actor.command-tick-interval-iso-8601"));
     timerScheduler.startTimerWithFixedDelay(Tick.ticktock, interval);
     nodePort = actorContext.getSystem().address().getPort().orElse(-1);
+    batchSize = actorContext.getSystem().settings().config().getInt("entity-actor.command-batch-size");
+    messageExtractor = EntityActor.messageExtractor(actorContext.getSystem());
   }
 
   @Override
@@ -41,10 +46,14 @@ class EntityCommandActor extends AbstractBehavior<EntityActor.Command> {
     return newReceiveBuilder()
         .onMessage(Tick.class, t -> onTick())
         .onMessage(EntityActor.ChangeValueAck.class, this::onChangeValueAck)
+        .onMessage(ShardBatchActor.ChangeValueBatchAck.class, this::onChangeValueBatchAck)
         .build();
   }
 
   private Behavior<EntityActor.Command> onTick() {
+    if (batchSize > 1) {
+      return onTickBatch();
+    }
     final var entityId = EntityActor.entityId(nodePort, (int) Math.round(Math.random() * entitiesPerNode));
     final var id = new EntityActor.Id(entityId);
     final var value = new EntityActor.Value(new Date());
@@ -53,6 +62,21 @@ class EntityCommandActor extends AbstractBehavior<EntityActor.Command> {
     return this;
   }
 
+  private Behavior<EntityActor.Command> onTickBatch() {
+    final var changes = new ArrayList<ShardBatchActor.Change>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      final var entityId = EntityActor.entityId(nodePort, (int) Math.round(Math.random() * entitiesPerNode));
+      changes.add(new ShardBatchActor.Change(new EntityActor.Id(entityId), new EntityActor.Value(new Date())));
+    }
+    ShardBatchActor.tell(clusterSharding, messageExtractor, changes, actorContext.getSelf());
+    return this;
+  }
+
+  private Behavior<EntityActor.Command> onChangeValueBatchAck(ShardBatchActor.ChangeValueBatchAck changeValueBatchAck) {
+    log().info("{}", changeValueBatchAck);
+    return this;
+  }
+
   private Behavior<EntityActor.Command> onChangeValueAck(EntityActor.ChangeValueAck changeValueAck) {
     log().info("{}", changeValueAck);
     return this;
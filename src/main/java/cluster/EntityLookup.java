@@ -0,0 +1,111 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+
+/**
+ * Sends entity reads the way get-value-mode says. With activate a GetValue goes to the entity, which
+ * sharding starts when it is not running, and the started entity answers not found and stays active
+ * until it is passivated. With active-only reads start no entities and send no message to them. A
+ * read of an entity running on this node is answered from this node's ActiveEntities right away,
+ * other reads send a LookupValue to the batch actor of the entity's shard, which answers from its
+ * node's ActiveEntities and EntityStateStore. Of the reads of a running entity one per
+ * active-only-touch-interval is also sent to the entity, so reads keep it from being passivated as
+ * idle. Batched reads go to the batch actor of each shard in both modes, with activate it sends the
+ * GetValue to each entity of the batch.
+ */
+class EntityLookup {
+  private final ClusterSharding clusterSharding;
+  private final ActiveEntities activeEntities;
+  private final ActorRef<EntityActor.Command> ignoreRef;
+  private final long touchIntervalNanos;
+  private final JumpHashMessageExtractor<EntityActor.Command> messageExtractor;
+  private final boolean activeOnly;
+
+  EntityLookup(ClusterSharding clusterSharding, ActiveEntities activeEntities, ActorRef<EntityActor.Command> ignoreRef,
+      JumpHashMessageExtractor<EntityActor.Command> messageExtractor, String mode, Duration touchInterval) {
+    this.clusterSharding = clusterSharding;
+    this.activeEntities = activeEntities;
+    this.ignoreRef = ignoreRef;
+    this.touchIntervalNanos = touchInterval.toNanos();
+    this.messageExtractor = messageExtractor;
+    switch (mode) {
+      case "activate":
+        activeOnly = false;
+        break;
+      case "active-only":
+        activeOnly = true;
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown get value mode '%s', use activate or active-only", mode));
+    }
+  }
+
+  static EntityLookup create(ActorSystem<?> actorSystem, ActiveEntities activeEntities) {
+    return new EntityLookup(
+        ClusterSharding.get(actorSystem),
+        activeEntities,
+        actorSystem.ignoreRef(),
+        EntityActor.messageExtractor(actorSystem),
+        actorSystem.settings().config().getString("entity-actor.get-value-mode"),
+        touchInterval(actorSystem));
+  }
+
+  void tell(String entityId, ActorRef<EntityActor.Command> replyTo) {
+    final var local = localValue(entityId);
+    if (local != null) {
+      replyTo.tell(local);
+    } else {
+      entityRef(entityId).tell(getValue(entityId, replyTo));
+    }
+  }
+
+  // One GetValueBatch per shard, answered by the shard's batch actor with a GetValueBatchAck.
+  void tellBatch(List<String> entityIds, ActorRef<EntityActor.Command> replyTo) {
+    entityIds.stream()
+        .map(EntityActor.Id::new)
+        .collect(Collectors.groupingBy(id -> messageExtractor.shardId(id.id)))
+        .forEach((shardId, ids) ->
+            clusterSharding.entityRefFor(EntityActor.entityTypeKey, ShardBatchActor.batchEntityId(shardId))
+                .tell(new ShardBatchActor.GetValueBatch(shardId, ids, activeOnly, replyTo)));
+  }
+
+  CompletionStage<EntityActor.Command> ask(String entityId, Duration timeout) {
+    final var local = localValue(entityId);
+    return local != null
+        ? CompletableFuture.completedFuture(local)
+        : entityRef(entityId).ask(replyTo -> getValue(entityId, replyTo), timeout);
+  }
+
+  private EntityActor.Command localValue(String entityId) {
+    final var value = activeOnly ? activeEntities.read(entityId, touchIntervalNanos, ignoreRef) : null;
+    return value == null ? null : new EntityActor.GetValueAck(new EntityActor.Id(entityId), value);
+  }
+
+  static Duration touchInterval(ActorSystem<?> actorSystem) {
+    return Duration.parse(actorSystem.settings().config().getString("entity-actor.active-only-touch-interval-iso-8601"));
+  }
+
+  private EntityRef<EntityActor.Command> entityRef(String entityId) {
+    return clusterSharding.entityRefFor(EntityActor.entityTypeKey,
+        activeOnly ? ShardBatchActor.batchEntityId(messageExtractor.shardId(entityId)) : entityId);
+  }
+
+  private EntityActor.Command getValue(String entityId, ActorRef<EntityActor.Command> replyTo) {
+    final var id = new EntityActor.Id(entityId);
+    return activeOnly ? new ShardBatchActor.LookupValue(id, replyTo) : new EntityActor.GetValue(id, replyTo);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s]", getClass().getSimpleName(), activeOnly ? "active-only" : "activate");
+  }
+}
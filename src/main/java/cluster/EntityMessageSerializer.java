@@ -0,0 +1,258 @@
+package cluster;
+
+import java.io.NotSerializableException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorRefResolver;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+
+/**
+ * Hand written binary serializer for the EntityActor and ClusterAwareActor ping messages, these are
+ * sent on every remote hop so they skip Jackson reflection and the polymorphic Value field. Each
+ * message type has a two letter manifest, strings and actor refs are written as length prefixed
+ * UTF-8 and values are written with a one byte type tag. Artery writes straight into its send
+ * buffer through ByteBufferSerializer.
+ *
+ * The serializer is always registered so that nodes can read it during a rolling upgrade, the
+ * message bindings to it are switched with entity-messages-serializer in application.conf.
+ */
+class EntityMessageSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+  private static final int identifier = 7391;
+  private static final int initialBufferSize = 256;
+
+  private static final String changeValueManifest = "CV";
+  private static final String changeValueAckManifest = "CA";
+  private static final String getValueManifest = "GV";
+  private static final String getValueAckManifest = "GA";
+  private static final String getValueAckNotFoundManifest = "GN";
+  private static final String passivateManifest = "PA";
+  private static final String pingManifest = "PI";
+  private static final String pongManifest = "PO";
+
+  private static final byte nullTag = 0;
+  private static final byte stringTag = 1;
+  private static final byte longTag = 2;
+  private static final byte intTag = 3;
+  private static final byte doubleTag = 4;
+  private static final byte booleanTag = 5;
+  private static final byte dateTag = 6;
+
+  private final ExtendedActorSystem system;
+  private volatile ActorRefResolver actorRefResolver;
+
+  EntityMessageSerializer(ExtendedActorSystem system) {
+    this.system = system;
+  }
+
+  @Override
+  public int identifier() {
+    return identifier;
+  }
+
+  @Override
+  public String manifest(Object o) {
+    if (o instanceof EntityActor.ChangeValue) {
+      return changeValueManifest;
+    } else if (o instanceof EntityActor.ChangeValueAck) {
+      return changeValueAckManifest;
+    } else if (o instanceof EntityActor.GetValue) {
+      return getValueManifest;
+    } else if (o instanceof EntityActor.GetValueAck) {
+      return getValueAckManifest;
+    } else if (o instanceof EntityActor.GetValueAckNotFound) {
+      return getValueAckNotFoundManifest;
+    } else if (o instanceof EntityActor.Passivate) {
+      return passivateManifest;
+    } else if (o instanceof ClusterAwareActor.Ping) {
+      return pingManifest;
+    } else if (o instanceof ClusterAwareActor.Pong) {
+      return pongManifest;
+    }
+    throw new IllegalArgumentException(String.format("Can't serialize object of type %s in %s", o.getClass(), getClass().getSimpleName()));
+  }
+
+  @Override
+  public byte[] toBinary(Object o) {
+    var buffer = ByteBuffer.allocate(initialBufferSize);
+    while (true) {
+      try {
+        toBinary(o, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+      } catch (BufferOverflowException e) {
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+    }
+  }
+
+  @Override
+  public void toBinary(Object o, ByteBuffer buffer) {
+    if (o instanceof EntityActor.ChangeValue) {
+      final var changeValue = (EntityActor.ChangeValue) o;
+      putId(buffer, changeValue.id);
+      putValue(buffer, changeValue.value);
+      putActorRef(buffer, changeValue.replyTo);
+    } else if (o instanceof EntityActor.ChangeValueAck) {
+      final var changeValueAck = (EntityActor.ChangeValueAck) o;
+      putString(buffer, changeValueAck.action);
+      putId(buffer, changeValueAck.id);
+      putValue(buffer, changeValueAck.value);
+    } else if (o instanceof EntityActor.GetValue) {
+      final var getValue = (EntityActor.GetValue) o;
+      putId(buffer, getValue.id);
+      putActorRef(buffer, getValue.replyTo);
+    } else if (o instanceof EntityActor.GetValueAck) {
+      final var getValueAck = (EntityActor.GetValueAck) o;
+      putId(buffer, getValueAck.id);
+      putValue(buffer, getValueAck.value);
+    } else if (o instanceof EntityActor.GetValueAckNotFound) {
+      putId(buffer, ((EntityActor.GetValueAckNotFound) o).id);
+    } else if (o instanceof EntityActor.Passivate) {
+      // no fields
+    } else if (o instanceof ClusterAwareActor.Ping) {
+      final var ping = (ClusterAwareActor.Ping) o;
+      putActorRef(buffer, ping.replyTo);
+      buffer.putLong(ping.start);
+    } else if (o instanceof ClusterAwareActor.Pong) {
+      final var pong = (ClusterAwareActor.Pong) o;
+      putActorRef(buffer, pong.replyFrom);
+      buffer.putLong(pong.pingStart);
+    } else {
+      throw new IllegalArgumentException(String.format("Can't serialize object of type %s in %s", o.getClass(), getClass().getSimpleName()));
+    }
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+    return fromBinary(ByteBuffer.wrap(bytes), manifest);
+  }
+
+  @Override
+  public Object fromBinary(ByteBuffer buffer, String manifest) throws NotSerializableException {
+    switch (manifest) {
+      case changeValueManifest:
+        return new EntityActor.ChangeValue(getId(buffer), getValue(buffer), getActorRef(buffer));
+      case changeValueAckManifest:
+        return new EntityActor.ChangeValueAck(getString(buffer), getId(buffer), getValue(buffer));
+      case getValueManifest:
+        return new EntityActor.GetValue(getId(buffer), getActorRef(buffer));
+      case getValueAckManifest:
+        return new EntityActor.GetValueAck(getId(buffer), getValue(buffer));
+      case getValueAckNotFoundManifest:
+        return new EntityActor.GetValueAckNotFound(getId(buffer));
+      case passivateManifest:
+        return EntityActor.Passivate.INSTANCE;
+      case pingManifest:
+        return new ClusterAwareActor.Ping(getActorRef(buffer), buffer.getLong());
+      case pongManifest:
+        return new ClusterAwareActor.Pong(getActorRef(buffer), buffer.getLong());
+      default:
+        throw new NotSerializableException(String.format("Unknown manifest '%s' in %s", manifest, getClass().getSimpleName()));
+    }
+  }
+
+  private void putId(ByteBuffer buffer, EntityActor.Id id) {
+    putString(buffer, id.id);
+  }
+
+  private EntityActor.Id getId(ByteBuffer buffer) {
+    return new EntityActor.Id(getString(buffer));
+  }
+
+  // Also the value encoding of the ShardStateStore records.
+  static void putValue(ByteBuffer buffer, EntityActor.Value value) {
+    final var v = value.value;
+    if (v == null) {
+      buffer.put(nullTag);
+    } else if (v instanceof String) {
+      buffer.put(stringTag);
+      putString(buffer, (String) v);
+    } else if (v instanceof Long) {
+      buffer.put(longTag).putLong((Long) v);
+    } else if (v instanceof Integer) {
+      buffer.put(intTag).putInt((Integer) v);
+    } else if (v instanceof Double) {
+      buffer.put(doubleTag).putDouble((Double) v);
+    } else if (v instanceof Boolean) {
+      buffer.put(booleanTag).put((byte) ((Boolean) v ? 1 : 0));
+    } else if (v instanceof Date) {
+      buffer.put(dateTag).putLong(((Date) v).getTime());
+    } else {
+      throw new IllegalArgumentException(String.format("Can't serialize value of type %s in %s", v.getClass(), EntityMessageSerializer.class.getSimpleName()));
+    }
+  }
+
+  static EntityActor.Value getValue(ByteBuffer buffer) {
+    final var tag = buffer.get();
+    switch (tag) {
+      case nullTag:
+        return new EntityActor.Value(null);
+      case stringTag:
+        return new EntityActor.Value(getString(buffer));
+      case longTag:
+        return new EntityActor.Value(buffer.getLong());
+      case intTag:
+        return new EntityActor.Value(buffer.getInt());
+      case doubleTag:
+        return new EntityActor.Value(buffer.getDouble());
+      case booleanTag:
+        return new EntityActor.Value(buffer.get() != 0);
+      case dateTag:
+        return new EntityActor.Value(new Date(buffer.getLong()));
+      default:
+        throw new IllegalArgumentException(String.format("Unknown value tag %d in %s", tag, EntityMessageSerializer.class.getSimpleName()));
+    }
+  }
+
+  private void putActorRef(ByteBuffer buffer, ActorRef<?> actorRef) {
+    putString(buffer, actorRefResolver().toSerializationFormat(actorRef));
+  }
+
+  private <T> ActorRef<T> getActorRef(ByteBuffer buffer) {
+    return actorRefResolver().resolveActorRef(getString(buffer));
+  }
+
+  // Entity ids and actor paths are ASCII, those are copied char by char without an intermediate byte array.
+  static void putString(ByteBuffer buffer, String s) {
+    final var length = s.length();
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) >= 0x80) {
+        final var bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+        return;
+      }
+    }
+    buffer.putInt(length);
+    for (int i = 0; i < length; i++) {
+      buffer.put((byte) s.charAt(i));
+    }
+  }
+
+  static String getString(ByteBuffer buffer) {
+    final var length = buffer.getInt();
+    final String s;
+    if (buffer.hasArray()) {
+      s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      final var bytes = new byte[length];
+      buffer.get(bytes);
+      s = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return s;
+  }
+
+  private ActorRefResolver actorRefResolver() {
+    if (actorRefResolver == null) {
+      actorRefResolver = ActorRefResolver.get(Adapter.toTyped(system));
+    }
+    return actorRefResolver;
+  }
+}
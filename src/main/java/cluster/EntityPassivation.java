@@ -0,0 +1,441 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+
+import akka.actor.typed.ActorRef;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+
+/**
+ * Caps the number of active entity actors in this node's shard region. Each entity actor incarnation
+ * gets a handle and records each message it handles with it. The first message of an incarnation is
+ * a miss that admits it, and when the region is over the active entity limit the policy picks
+ * entities to evict. Evicted entities are passivated through their shard, which sends them the
+ * sharding stop message. Messages an evicted incarnation handles before it stops count as hits but
+ * don't admit it again, the entity is admitted by its next incarnation.
+ *
+ * The lru policy evicts the least recently used entity. The w-tinylfu policy puts new entities in a
+ * small LRU window, entities leaving the window only replace the main region's eviction candidate
+ * when a frequency sketch says they have been used more often, and entities used again while in the
+ * main region are promoted to its protected segment. That keeps a burst of one time ids from
+ * flushing the frequently used entities.
+ *
+ * The policies are not thread safe and are only updated under the lock. Admissions and stops take
+ * it, hits are only added to a read buffer picked by thread and applied to the policy by whichever
+ * thread gets the lock next, so entity actors on different dispatcher threads don't wait for each
+ * other. A full read buffer drops hits, which only makes the recency and frequency a bit less exact.
+ */
+class EntityPassivation {
+  private static final int readBufferSize = 32;
+  private static final int readBufferDrainThreshold = readBufferSize / 2;
+  private final String strategy;
+  private final int activeEntityLimit;
+  private final Policy policy;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ReadBuffer[] readBuffers;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  EntityPassivation(String strategy, int activeEntityLimit, double windowProportion) {
+    this.strategy = strategy;
+    this.activeEntityLimit = activeEntityLimit;
+    switch (strategy) {
+      case "none":
+        policy = null;
+        break;
+      case "lru":
+        policy = new LeastRecentlyUsed(activeEntityLimit);
+        break;
+      case "w-tinylfu":
+        policy = new WindowTinyLfu(activeEntityLimit, windowProportion);
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown entity passivation strategy '%s', use none, lru or w-tinylfu", strategy));
+    }
+    readBuffers = new ReadBuffer[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1];
+    for (int i = 0; i < readBuffers.length; i++) {
+      readBuffers[i] = new ReadBuffer();
+    }
+  }
+
+  static EntityPassivation create(Config config) {
+    return new EntityPassivation(
+        config.getString("entity-actor.passivation.strategy"),
+        config.getInt("entity-actor.passivation.active-entity-limit"),
+        config.getDouble("entity-actor.passivation.window-proportion"));
+  }
+
+  // Called once by each entity actor incarnation.
+  Handle handle(String entityId, ActorRef<ClusterSharding.ShardCommand> shard, ActorRef<EntityActor.Command> entity) {
+    return new Handle(entityId, shard, entity);
+  }
+
+  // Called by the handle's entity actor only.
+  void record(Handle handle) {
+    if (policy == null) {
+      return;
+    }
+    if (!handle.admitted) {
+      handle.admitted = true;
+      misses.increment();
+      lock.lock();
+      try {
+        drainReadBuffers();
+        handle.tracked = true;
+        policy.admit(handle).forEach(this::evict);
+      } finally {
+        lock.unlock();
+      }
+      return;
+    }
+    hits.increment();
+    final var readBuffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+    if (readBuffer.offer(handle) >= readBufferDrainThreshold && lock.tryLock()) {
+      try {
+        drainReadBuffers();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // Only removes the handle's own entry, not that of a later incarnation of the entity.
+  void stopped(Handle handle) {
+    if (policy == null || !handle.admitted) {
+      return;
+    }
+    lock.lock();
+    try {
+      drainReadBuffers();
+      if (handle.tracked) {
+        handle.tracked = false;
+        policy.remove(handle);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drainReadBuffers() {
+    for (final var readBuffer : readBuffers) {
+      readBuffer.drain(this::access);
+    }
+  }
+
+  // Hits of evicted incarnations that have not stopped yet are ignored.
+  private void access(Handle handle) {
+    if (handle.tracked) {
+      policy.access(handle);
+    }
+  }
+
+  private void evict(Handle handle) {
+    handle.tracked = false;
+    evictions.increment();
+    handle.shard.tell(new ClusterSharding.Passivate<>(handle.entity));
+  }
+
+  Counters counters() {
+    final int active;
+    if (policy == null) {
+      active = 0;
+    } else {
+      lock.lock();
+      try {
+        drainReadBuffers();
+        active = policy.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return new Counters(strategy, activeEntityLimit, active, hits.sum(), misses.sum(), evictions.sum());
+  }
+
+  static class Counters {
+    public final String strategy;
+    public final int activeEntityLimit;
+    public final int activeEntities;
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final double hitRatio;
+
+    Counters(String strategy, int activeEntityLimit, int activeEntities, long hits, long misses, long evictions) {
+      this.strategy = strategy;
+      this.activeEntityLimit = activeEntityLimit;
+      this.activeEntities = activeEntities;
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.hitRatio = hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    String toJson() {
+      final var ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+      try {
+        return ow.writeValueAsString(this);
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %d/%d, hits %d, misses %d, evictions %d]", getClass().getSimpleName(),
+          strategy, activeEntities, activeEntityLimit, hits, misses, evictions);
+    }
+  }
+
+  static class Handle {
+    private final String entityId;
+    private final ActorRef<ClusterSharding.ShardCommand> shard;
+    private final ActorRef<EntityActor.Command> entity;
+    private boolean admitted;
+    // Whether the policy holds this incarnation, only read and written under the lock.
+    private boolean tracked;
+
+    private Handle(String entityId, ActorRef<ClusterSharding.ShardCommand> shard, ActorRef<EntityActor.Command> entity) {
+      this.entityId = entityId;
+      this.shard = shard;
+      this.entity = entity;
+    }
+  }
+
+  // Lossy buffer of hits written by any thread and drained under the lock. A writer claims a slot
+  // by advancing writes and then publishes the handle in it, the drain stops at a slot that is
+  // claimed but not yet published and picks it up next time.
+  private static class ReadBuffer {
+    private final AtomicReferenceArray<Handle> handles = new AtomicReferenceArray<>(readBufferSize);
+    private final AtomicLong writes = new AtomicLong();
+    private volatile long reads;
+
+    // Returns the number of pending hits, the hit is dropped when the buffer is full.
+    long offer(Handle handle) {
+      final var read = reads;
+      final var write = writes.get();
+      final var pending = write - read;
+      if (pending < readBufferSize && writes.compareAndSet(write, write + 1)) {
+        handles.lazySet((int) write & (readBufferSize - 1), handle);
+        return pending + 1;
+      }
+      return pending;
+    }
+
+    void drain(Consumer<Handle> access) {
+      var read = reads;
+      final var write = writes.get();
+      for (; read < write; read++) {
+        final var index = (int) read & (readBufferSize - 1);
+        final var handle = handles.get(index);
+        if (handle == null) {
+          break;
+        }
+        handles.lazySet(index, null);
+        access.accept(handle);
+      }
+      reads = read;
+    }
+  }
+
+  private interface Policy {
+    // Updates recency/frequency of a tracked handle.
+    void access(Handle handle);
+
+    // Tracks a newly activated incarnation and returns the handles to evict.
+    Iterable<Handle> admit(Handle handle);
+
+    // Stops tracking a tracked handle.
+    void remove(Handle handle);
+
+    int size();
+  }
+
+  private static class LeastRecentlyUsed implements Policy {
+    private final int limit;
+    private final LinkedHashMap<String, Handle> entities = new LinkedHashMap<>(16, 0.75f, true);
+
+    LeastRecentlyUsed(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public void access(Handle handle) {
+      entities.get(handle.entityId);
+    }
+
+    @Override
+    public Iterable<Handle> admit(Handle handle) {
+      untrack(entities.put(handle.entityId, handle));
+      final var evicted = new ArrayList<Handle>();
+      while (entities.size() > limit) {
+        evicted.add(removeEldest(entities));
+      }
+      return evicted;
+    }
+
+    @Override
+    public void remove(Handle handle) {
+      entities.remove(handle.entityId);
+    }
+
+    @Override
+    public int size() {
+      return entities.size();
+    }
+  }
+
+  private static class WindowTinyLfu implements Policy {
+    private final int windowLimit;
+    private final int mainLimit;
+    private final int protectedLimit;
+    private final LinkedHashMap<String, Handle> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Handle> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Handle> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    WindowTinyLfu(int limit, double windowProportion) {
+      windowLimit = Math.max(1, Math.min(limit, (int) Math.round(limit * windowProportion)));
+      mainLimit = limit - windowLimit;
+      protectedLimit = (int) (mainLimit * 0.8);
+      sketch = new FrequencySketch(limit);
+    }
+
+    @Override
+    public void access(Handle handle) {
+      final var entityId = handle.entityId;
+      sketch.increment(entityId);
+      if (window.get(entityId) != null || protectedSegment.get(entityId) != null) {
+        return;
+      }
+      probation.remove(entityId);
+      protectedSegment.put(entityId, handle);
+      if (protectedSegment.size() > protectedLimit) {
+        final var demotedId = protectedSegment.keySet().iterator().next();
+        probation.put(demotedId, protectedSegment.remove(demotedId));
+      }
+    }
+
+    @Override
+    public Iterable<Handle> admit(Handle handle) {
+      final var entityId = handle.entityId;
+      final var evicted = new ArrayList<Handle>();
+      untrack(remove(entityId));
+      sketch.increment(entityId);
+      window.put(entityId, handle);
+      while (window.size() > windowLimit) {
+        final var candidateId = window.keySet().iterator().next();
+        final var candidate = window.remove(candidateId);
+        if (probation.size() + protectedSegment.size() < mainLimit) {
+          probation.put(candidateId, candidate);
+          continue;
+        }
+        final var victims = probation.isEmpty() ? protectedSegment : probation;
+        if (victims.isEmpty()) {
+          evicted.add(candidate);
+          continue;
+        }
+        final var victimId = victims.keySet().iterator().next();
+        if (sketch.frequency(candidateId) > sketch.frequency(victimId)) {
+          evicted.add(victims.remove(victimId));
+          probation.put(candidateId, candidate);
+        } else {
+          evicted.add(candidate);
+        }
+      }
+      return evicted;
+    }
+
+    @Override
+    public void remove(Handle handle) {
+      remove(handle.entityId);
+    }
+
+    private Handle remove(String entityId) {
+      final var handle = window.remove(entityId);
+      if (handle != null) {
+        return handle;
+      }
+      final var probationHandle = probation.remove(entityId);
+      return probationHandle != null ? probationHandle : protectedSegment.remove(entityId);
+    }
+
+    @Override
+    public int size() {
+      return window.size() + probation.size() + protectedSegment.size();
+    }
+  }
+
+  // Count-min sketch with four 4 bit counters per entity. All counters are halved after every
+  // 10 * limit increments so that entities that were popular a while ago age out.
+  private static class FrequencySketch {
+    private static final long[] seeds = { 0x97cb3127L, 0xab1cd5e7L, 0x5c5b0de1L, 0x2f3b6e95L };
+    private final byte[] counters;
+    private final int mask;
+    private final int resetAfter;
+    private int increments;
+
+    FrequencySketch(int limit) {
+      final var size = Integer.highestOneBit(Math.max(16, limit) * 2 - 1) << 1;
+      counters = new byte[size];
+      mask = size - 1;
+      resetAfter = Math.max(10, limit * 10);
+    }
+
+    void increment(String entityId) {
+      final var hash = JumpHashMessageExtractor.hash64(entityId);
+      for (final var seed : seeds) {
+        final var index = index(hash, seed);
+        if (counters[index] < 15) {
+          counters[index]++;
+        }
+      }
+      if (++increments >= resetAfter) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>= 1;
+        }
+        increments /= 2;
+      }
+    }
+
+    int frequency(String entityId) {
+      final var hash = JumpHashMessageExtractor.hash64(entityId);
+      int frequency = 15;
+      for (final var seed : seeds) {
+        frequency = Math.min(frequency, counters[index(hash, seed)]);
+      }
+      return frequency;
+    }
+
+    private int index(long hash, long seed) {
+      final var mixed = (hash ^ seed) * 0x9e3779b97f4a7c15L;
+      return (int) (mixed >>> 32) & mask;
+    }
+  }
+
+  // An earlier incarnation that is replaced by a new one, which can only happen when its stop was
+  // not recorded, must not remove the new one's entry when it is stopped.
+  private static void untrack(Handle replaced) {
+    if (replaced != null) {
+      replaced.tracked = false;
+    }
+  }
+
+  private static Handle removeEldest(Map<String, Handle> entities) {
+    final Iterator<Map.Entry<String, Handle>> eldest = entities.entrySet().iterator();
+    final var handle = eldest.next().getValue();
+    eldest.remove();
+    return handle;
+  }
+}
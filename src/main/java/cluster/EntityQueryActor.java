@@ -1,6 +1,7 @@
 package cluster;
 
 import java.time.Duration;
+import java.util.ArrayList;
 
 import org.slf4j.Logger;
 
@@ -10,29 +11,30 @@ import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 import akka.actor.typed.javadsl.TimerScheduler;
-import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import cluster.EntityActor.Command;
 
 class EntityQueryActor extends AbstractBehavior<EntityActor.Command> {
   private final ActorContext<EntityActor.Command> actorContext;
-  private final ClusterSharding clusterSharding;
+  private final EntityLookup entityLookup;
   private final int entitiesPerNode;
   private final Integer nodePort;
+  private final int batchSize;
 
-  static Behavior<EntityActor.Command> create() {
+  static Behavior<EntityActor.Command> create(ActiveEntities activeEntities) {
     return Behaviors.setup(actorContext -> 
-        Behaviors.withTimers(timer -> new EntityQueryActor(actorContext, timer)));
+        Behaviors.withTimers(timer -> new EntityQueryActor(actorContext, timer, activeEntities)));
   }
 
-  private EntityQueryActor(ActorContext<Command> actorContext, TimerScheduler<EntityActor.Command> timerScheduler) {
+  private EntityQueryActor(ActorContext<Command> actorContext, TimerScheduler<EntityActor.Command> timerScheduler, ActiveEntities activeEntities) {
     super(actorContext);
     this.actorContext = actorContext;
-    clusterSharding = ClusterSharding.get(actorContext.getSystem());
+    entityLookup = EntityLookup.create(actorContext.getSystem(), activeEntities);
 
     entitiesPerNode = actorContext.getSystem().settings().config().getInt("entity-actor.entities-per-node");
     final var interval = Duration.parse(actorContext.getSystem().settings().config().getString("entity-actor.query-tick-interval-iso-8601"));
     timerScheduler.startTimerWithFixedDelay(Tick.ticktock, interval);
     nodePort = actorContext.getSystem().address().getPort().orElse(-1);
+    batchSize = actorContext.getSystem().settings().config().getInt("entity-actor.query-batch-size");
   }
 
   @Override
@@ -41,14 +43,30 @@ class EntityQueryActor extends AbstractBehavior<EntityActor.Command> {
         .onMessage(Tick.class, t -> onTick())
         .onMessage(EntityActor.GetValueAck.class, this::onGetValueAck)
         .onMessage(EntityActor.GetValueAckNotFound.class, this::onGetValueAckNotFound)
+        .onMessage(ShardBatchActor.GetValueBatchAck.class, this::onGetValueBatchAck)
         .build();
   }
 
   private Behavior<EntityActor.Command> onTick() {
+    if (batchSize > 1) {
+      return onTickBatch();
+    }
     final var entityId = EntityActor.entityId(nodePort, (int) Math.round(Math.random() * entitiesPerNode));
-    final var id = new EntityActor.Id(entityId);
-    final var entityRef = clusterSharding.entityRefFor(EntityActor.entityTypeKey, entityId);
-    entityRef.tell(new EntityActor.GetValue(id, actorContext.getSelf()));
+    entityLookup.tell(entityId, actorContext.getSelf());
+    return this;
+  }
+
+  private Behavior<EntityActor.Command> onTickBatch() {
+    final var entityIds = new ArrayList<String>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      entityIds.add(EntityActor.entityId(nodePort, (int) Math.round(Math.random() * entitiesPerNode)));
+    }
+    entityLookup.tellBatch(entityIds, actorContext.getSelf());
+    return this;
+  }
+
+  private Behavior<EntityActor.Command> onGetValueBatchAck(ShardBatchActor.GetValueBatchAck getValueBatchAck) {
+    log().info("{}", getValueBatchAck);
     return this;
   }
 
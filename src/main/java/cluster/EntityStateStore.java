@@ -0,0 +1,115 @@
+package cluster;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+
+/**
+ * Optional backend for the entity values, one ShardStateStore file per shard under a directory per
+ * node. An entity actor loads its value when it starts and saves it on each change, or only when it
+ * is passivated with save-on = passivation. Passivation then no longer loses the value, so the active
+ * entity limit and idle timeout can be kept small: a reactivated entity reads its value back from the
+ * mapped file instead of starting empty, and the stored values are off heap.
+ *
+ * The files are local to the node and only live as long as one allocation of the shard to it. A
+ * shard that moves to another node and back may have been changed there, so reading the values this
+ * node stored before the move would be a stale read. Each allocation of a shard starts a new Shard
+ * actor, and the first entity or batch actor started with a new one replaces the shard's file with
+ * an empty one. Saves from entities of an earlier allocation, still stopping, are dropped. A shard
+ * that moves to another node starts empty there, as do all shards when a node restarts.
+ */
+class EntityStateStore {
+  private final Path directory;
+  private final boolean enabled;
+  private final boolean saveOnUpdate;
+  private final int initialSlots;
+  private final int initialLogBytes;
+  private final Map<String, Allocation> shards = new ConcurrentHashMap<>();
+
+  EntityStateStore(Path directory, boolean enabled, String saveOn, int initialSlots, int initialLogBytes) {
+    this.directory = directory;
+    this.enabled = enabled;
+    switch (saveOn) {
+      case "update":
+        saveOnUpdate = true;
+        break;
+      case "passivation":
+        saveOnUpdate = false;
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown entity state save-on '%s', use update or passivation", saveOn));
+    }
+    if (Integer.bitCount(initialSlots) != 1) {
+      throw new IllegalArgumentException(String.format("Entity state initial-slots %d is not a power of two", initialSlots));
+    }
+    this.initialSlots = initialSlots;
+    this.initialLogBytes = initialLogBytes;
+  }
+
+  static EntityStateStore create(ActorSystem<?> actorSystem) {
+    final var config = actorSystem.settings().config();
+    return new EntityStateStore(
+        Paths.get(config.getString("entity-actor.state-store.directory"), String.valueOf(actorSystem.address().getPort().orElse(0))),
+        config.getBoolean("entity-actor.state-store.enabled"),
+        config.getString("entity-actor.state-store.save-on"),
+        config.getInt("entity-actor.state-store.initial-slots"),
+        (int) config.getBytes("entity-actor.state-store.initial-log-size").longValue());
+  }
+
+  boolean saveOnUpdate() {
+    return saveOnUpdate;
+  }
+
+  /**
+   * The entity's stored value, or null when it has none or the store is disabled. Called when an
+   * actor of the shard starts, shard is the Shard actor it was started by.
+   */
+  EntityActor.Value load(String shardId, ActorRef<ClusterSharding.ShardCommand> shard, String entityId) {
+    return enabled ? allocate(shardId, shard).load(entityId) : null;
+  }
+
+  void save(String shardId, ActorRef<ClusterSharding.ShardCommand> shard, String entityId, EntityActor.Value value) {
+    if (enabled) {
+      final var allocation = shards.get(shardId);
+      if (allocation != null && allocation.shard.equals(shard)) {
+        allocation.store.save(entityId, value);
+      }
+    }
+  }
+
+  private ShardStateStore allocate(String shardId, ActorRef<ClusterSharding.ShardCommand> shard) {
+    final var allocation = shards.get(shardId);
+    if (allocation != null && allocation.shard.equals(shard)) {
+      return allocation.store;
+    }
+    return shards.compute(shardId, (id, previous) -> {
+      if (previous != null && previous.shard.equals(shard)) {
+        return previous;
+      }
+      if (previous != null) {
+        previous.store.close();
+      }
+      return new Allocation(shard, ShardStateStore.create(directory.resolve(String.format("shard-%s.state", id)), initialSlots, initialLogBytes));
+    }).store;
+  }
+
+  private static class Allocation {
+    final ActorRef<ClusterSharding.ShardCommand> shard;
+    final ShardStateStore store;
+
+    Allocation(ActorRef<ClusterSharding.ShardCommand> shard, ShardStateStore store) {
+      this.shard = shard;
+      this.store = store;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s, %s, %s]", getClass().getSimpleName(), directory, enabled ? "enabled" : "disabled", saveOnUpdate ? "update" : "passivation");
+  }
+}
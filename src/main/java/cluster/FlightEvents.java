@@ -0,0 +1,103 @@
+package cluster;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the entity and HTTP server hot paths. They cost next to nothing
+ * when no recording is running: an event is created, begun and ended around the work, and only
+ * filled in and committed when shouldCommit() says a recording wants it, the JIT removes the rest.
+ * Start a node with -XX:StartFlightRecording, or start a recording with jcmd JFR.start, and the
+ * events are under Akka Cluster Sharding in JDK Mission Control.
+ */
+class FlightEvents {
+  private FlightEvents() {
+  }
+
+  @Name("cluster.EntityActivated")
+  @Label("Entity Activated")
+  @Description("An entity actor started in this node's shard region")
+  @Category({ "Akka Cluster Sharding", "Entity" })
+  @StackTrace(false)
+  static class EntityActivated extends Event {
+    @Label("Entity Id")
+    String entityId;
+
+    @Label("Shard Id")
+    String shardId;
+  }
+
+  @Name("cluster.EntityMessage")
+  @Label("Entity Message")
+  @Description("An entity actor handled a ChangeValue or GetValue")
+  @Category({ "Akka Cluster Sharding", "Entity" })
+  @StackTrace(false)
+  static class EntityMessage extends Event {
+    @Label("Entity Id")
+    String entityId;
+
+    @Label("Shard Id")
+    String shardId;
+
+    @Label("Message")
+    String message;
+
+    @Label("Action")
+    @Description("start, ping or the ChangeValueAck action initialize or update")
+    String action;
+  }
+
+  @Name("cluster.EntityPassivated")
+  @Label("Entity Passivated")
+  @Description("An entity actor stopped on the sharding stop message")
+  @Category({ "Akka Cluster Sharding", "Entity" })
+  @StackTrace(false)
+  static class EntityPassivated extends Event {
+    @Label("Entity Id")
+    String entityId;
+
+    @Label("Shard Id")
+    String shardId;
+
+    @Label("Active Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long activeTime;
+  }
+
+  @Name("cluster.EntityActionBroadcast")
+  @Label("Entity Action Broadcast")
+  @Description("The HttpServerActor sent its coalesced entity actions to every HTTP server")
+  @Category({ "Akka Cluster Sharding", "HTTP Server" })
+  @StackTrace(false)
+  static class EntityActionBroadcast extends Event {
+    @Label("Entity Actions")
+    int entityActions;
+
+    @Label("HTTP Servers")
+    int httpServers;
+  }
+
+  @Name("cluster.TreeUpdate")
+  @Label("Tree Update")
+  @Description("An HTTP server loaded an entity action batch into its viewer tree")
+  @Category({ "Akka Cluster Sharding", "HTTP Server" })
+  @StackTrace(false)
+  static class TreeUpdate extends Event {
+    @Label("Entity Actions")
+    int entityActions;
+
+    @Label("Added Entities")
+    int added;
+
+    @Label("Moved Entities")
+    int moved;
+
+    @Label("Removed Entities")
+    int removed;
+  }
+}
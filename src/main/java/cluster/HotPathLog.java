@@ -0,0 +1,48 @@
+package cluster;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.typesafe.config.Config;
+
+/**
+ * Switch for the logs written on every entity message. With all every message is logged as
+ * before, with sampled about one in sample-every messages is, picked at random so that no counter
+ * is shared between entity actors, and with off none are. The FlightEvents cover every message when
+ * a recording is running, so a production node can run sampled or off and still be profiled.
+ */
+class HotPathLog {
+  private final String mode;
+  private final int sampleEvery;
+
+  HotPathLog(String mode, int sampleEvery) {
+    this.mode = mode;
+    switch (mode) {
+      case "all":
+        this.sampleEvery = 1;
+        break;
+      case "sampled":
+        this.sampleEvery = Math.max(1, sampleEvery);
+        break;
+      case "off":
+        this.sampleEvery = 0;
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unknown hot path logging mode '%s', use all, sampled or off", mode));
+    }
+  }
+
+  static HotPathLog create(Config config) {
+    return new HotPathLog(
+        config.getString("entity-actor.hot-path-logging"),
+        config.getInt("entity-actor.hot-path-log-sample-every"));
+  }
+
+  boolean sample() {
+    return sampleEvery == 1 || sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s, %d]", getClass().getSimpleName(), mode, sampleEvery);
+  }
+}
@@ -1,30 +1,51 @@
 package cluster;
 
 import static akka.http.javadsl.server.Directives.complete;
+import static akka.http.javadsl.server.Directives.completeOK;
+import static akka.http.javadsl.server.Directives.completeWithFuture;
 import static akka.http.javadsl.server.Directives.concat;
+import static akka.http.javadsl.server.Directives.entity;
+import static akka.http.javadsl.server.Directives.extractDataBytes;
 import static akka.http.javadsl.server.Directives.get;
 import static akka.http.javadsl.server.Directives.getFromResource;
 import static akka.http.javadsl.server.Directives.handleWebSocketMessages;
+import static akka.http.javadsl.server.Directives.parameterOptional;
 import static akka.http.javadsl.server.Directives.path;
+import static akka.http.javadsl.server.Directives.pathPrefix;
+import static akka.http.javadsl.server.Directives.post;
+import static akka.http.javadsl.server.Directives.put;
 import static akka.http.javadsl.server.Directives.respondWithHeader;
+import static akka.http.javadsl.server.Directives.withoutSizeLimit;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
@@ -34,40 +55,97 @@ import akka.NotUsed;
 import akka.actor.typed.ActorSystem;
 import akka.cluster.Member;
 import akka.cluster.MemberStatus;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.typed.Cluster;
 import akka.cluster.typed.Leave;
 import akka.http.javadsl.Http;
+import akka.http.javadsl.marshalling.sse.EventStreamMarshalling;
 import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
 import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCode;
+import akka.http.javadsl.model.StatusCodes;
 import akka.http.javadsl.model.headers.RawHeader;
+import akka.http.javadsl.model.sse.ServerSentEvent;
 import akka.http.javadsl.model.ws.Message;
 import akka.http.javadsl.model.ws.TextMessage;
 import akka.http.javadsl.server.Route;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
 import akka.japi.JavaPartialFunction;
+import akka.japi.pf.PFBuilder;
+import akka.stream.BufferOverflowException;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
 import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
 import cluster.HttpServer.ServerActivitySummary.ServerActivity;
 
 class HttpServer {
   private final ActorSystem<?> actorSystem;
-  private ClusterAwareStatistics clusterAwareStatistics;
-  private SingletonAwareStatistics singletonAwareStatistics;
+  private final EntityPassivation entityPassivation;
+  private final ChangeFeed changeFeed;
+  private final PrometheusMetrics prometheusMetrics;
+  // Only the HttpServerActor mutates the tree and activity summary, HTTP route threads read the
+  // immutable statistics and viewer snapshots that the actor publishes.
+  private volatile ClusterAwareStatistics clusterAwareStatistics;
+  private volatile SingletonAwareStatistics singletonAwareStatistics;
+  private volatile LoadGeneratorActor.LoadGeneratorReport loadGeneratorReport;
+  private final Map<String, ReceivedRoundTripTimes> roundTripTimeRows = new ConcurrentHashMap<>();
   private final Tree tree = new Tree("cluster", "cluster");
   private final ActivitySummary activitySummary = new ActivitySummary();
-
-  static HttpServer start(ActorSystem<?> actorSystem) {
+  private final AtomicReference<ViewerSnapshot> viewerSnapshot = new AtomicReference<>();
+  private long viewerSequence;
+  private final int viewerDeltaBufferSize;
+  private final SourceQueueWithComplete<String> viewerDeltaQueue;
+  private final Source<String, NotUsed> viewerDeltas;
+  private static final ObjectWriter viewerJsonWriter = new ObjectMapper().writer();
+  private static final ObjectMapper entityValueMapper = new ObjectMapper();
+  private final Duration entityRequestTimeout;
+  private final SingleFlight<String, EntityActor.Command> entityValueReads = new SingleFlight<>();
+  private final BulkIngest bulkIngest;
+  private final EntityLookup entityLookup;
+  private final Duration entityChangesKeepAlive;
+
+  static HttpServer start(ActorSystem<?> actorSystem, EntityPassivation entityPassivation, ShardLoad shardLoad, ChangeFeed changeFeed,
+      ActiveEntities activeEntities) {
     final int port = memberPort(Cluster.get(actorSystem).selfMember());
-    if (port >= 2551 && port <= 2559) {
-      return new HttpServer(port + 7000, actorSystem);
+    if (port > 0) {
+      return new HttpServer(httpPort(actorSystem, port), actorSystem, entityPassivation, shardLoad, changeFeed, activeEntities);
     } else {
-      final String message = String
-          .format("HTTP server not started. Node port %d is invalid. The port must be >= 2551 and <= 2559.", port);
+      final String message = String.format("HTTP server not started. Node port %d is invalid.", port);
       System.err.printf("%s%n", message);
       throw new RuntimeException(message);
     }
   }
 
-  private HttpServer(int port, ActorSystem<?> actorSystem) {
+  static int httpPort(ActorSystem<?> actorSystem, int nodePort) {
+    return nodePort + actorSystem.settings().config().getInt("http-server.port-offset");
+  }
+
+  private HttpServer(int port, ActorSystem<?> actorSystem, EntityPassivation entityPassivation, ShardLoad shardLoad, ChangeFeed changeFeed,
+      ActiveEntities activeEntities) {
     this.actorSystem = actorSystem;
+    this.entityPassivation = entityPassivation;
+    this.changeFeed = changeFeed;
+    prometheusMetrics = new PrometheusMetrics(actorSystem, entityPassivation, shardLoad);
+    entityRequestTimeout = Duration.parse(actorSystem.settings().config().getString("http-server.entity-request-timeout-iso-8601"));
+    bulkIngest = new BulkIngest(actorSystem);
+    entityLookup = EntityLookup.create(actorSystem, activeEntities);
+    entityChangesKeepAlive = Duration.parse(actorSystem.settings().config().getString("change-feed.keep-alive-iso-8601"));
+
+    viewerDeltaBufferSize = actorSystem.settings().config().getInt("http-server.viewer-delta-buffer-size");
+    final var viewerDeltaHub = Source.<String>queue(viewerDeltaBufferSize, OverflowStrategy.dropHead())
+        .toMat(BroadcastHub.of(String.class, viewerDeltaBufferSize), Keep.both())
+        .run(actorSystem);
+    viewerDeltaQueue = viewerDeltaHub.first();
+    viewerDeltas = viewerDeltaHub.second();
+    viewerDeltas.runWith(Sink.ignore(), actorSystem); // keeps the hub draining when no viewers are connected
+    publishViewerSnapshot();
+
     start(port);
   }
 
@@ -86,6 +164,14 @@ class HttpServer {
         path("dashboard-singleton-aware.js", () -> getFromResource("dashboard-singleton-aware.js", ContentTypes.APPLICATION_JSON)),
         path("p5.js", () -> getFromResource("p5.js", ContentTypes.APPLICATION_JSON)),
         path("cluster-state", this::clusterState),
+        path("load-generator-report", this::loadGeneratorReport),
+        path("entity-passivation", this::entityPassivation),
+        path("latency-matrix", this::latencyMatrix),
+        path("metrics", this::metrics),
+        pathPrefix("entities", () -> concat(
+            path("bulk", this::entityValuesBulk),
+            path(this::entityValue))),
+        path("entity-changes", this::entityChanges),
         path("viewer", () -> getFromResource("viewer.html", ContentTypes.TEXT_HTML_UTF8)),
         path("viewer.html", () -> getFromResource("viewer.html", ContentTypes.TEXT_HTML_UTF8)),
         path("viewer.js", () -> getFromResource("viewer.js", ContentTypes.APPLICATION_JSON)),
@@ -99,6 +185,145 @@ class HttpServer {
         () -> complete(loadNodes(actorSystem, clusterAwareStatistics, singletonAwareStatistics).toJson())));
   }
 
+  private Route loadGeneratorReport() {
+    return get(() -> {
+      final var report = loadGeneratorReport;
+      return report == null
+          ? complete(StatusCodes.NOT_FOUND, "No load generator run has completed on this node")
+          : complete(report.toJson());
+    });
+  }
+
+  private Route entityPassivation() {
+    return get(() -> complete(entityPassivation.counters().toJson()));
+  }
+
+  private Route metrics() {
+    return get(() -> complete(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8,
+        prometheusMetrics.render(clusterAwareStatistics, singletonAwareStatistics))));
+  }
+
+  // GET and PUT /entities/{id} ask the entity through sharding without blocking a route thread. Concurrent
+  // GETs of an id on this node share one ask, a PUT releases the shared read so later GETs see the write.
+  private Route entityValue(String entityId) {
+    if (ShardBatchActor.isBatchEntityId(entityId)) {
+      return complete(StatusCodes.BAD_REQUEST, String.format("Entity id %s is reserved for shard batches", entityId));
+    }
+    return concat(
+        get(() -> completeWithFuture(entityValueReads.load(entityId, this::askGetValue)
+            .handle((reply, error) -> entityValueResponse(entityId, reply, error)))),
+        put(() -> entity(Unmarshaller.entityToString(), body -> completeWithFuture(putEntityValue(entityId, body)))));
+  }
+
+  // POST /entities/bulk streams an NDJSON body of {"id": ..., "value": ...} records, see BulkIngest.
+  // The body is not size limited, it is consumed as the response streams out progress summaries.
+  private Route entityValuesBulk() {
+    return post(() -> withoutSizeLimit(() -> extractDataBytes(body -> complete(HttpResponse.create()
+        .withEntity(HttpEntities.createChunked(ContentTypes.APPLICATION_JSON, bulkIngest.ingest(body)))))));
+  }
+
+  // Server sent events of the entity changes whose id starts with prefix and whose shard is shard, both
+  // optional. Event ids are the subscriber's consecutive change sequence numbers. Changes dropped because
+  // the subscriber fell behind are reported by a dropped event, or end the stream with an overflow event
+  // when it was subscribed with ?overflow=disconnect, see ChangeFeed.
+  private Route entityChanges() {
+    return get(() -> parameterOptional("prefix", prefix -> parameterOptional("shard", shard -> parameterOptional("overflow", overflow -> {
+      final Source<ServerSentEvent, NotUsed> changes;
+      try {
+        changes = changeFeed.subscribe(new ChangeFeed.Filter(prefix.orElse(null), shard.orElse(null)), overflow.orElse(null))
+            .mapConcat(HttpServer::entityChangeEvents)
+            .recover(new PFBuilder<Throwable, ServerSentEvent>()
+                .match(BufferOverflowException.class, e -> ServerSentEvent.create(e.getMessage(), "overflow"))
+                .build())
+            .keepAlive(entityChangesKeepAlive, ServerSentEvent::heartbeat);
+      } catch (IllegalArgumentException e) {
+        return complete(StatusCodes.BAD_REQUEST, e.getMessage());
+      }
+      return completeOK(changes, EventStreamMarshalling.toEventStream());
+    }))));
+  }
+
+  // Event ids are the change sequence numbers, changes dropped before a change are reported just before it.
+  private static List<ServerSentEvent> entityChangeEvents(ChangeFeed.SequencedChange change) {
+    final var event = ServerSentEvent.create(change.toJson(), change.change.action, Long.toString(change.sequence));
+    return change.droppedBefore == 0
+        ? List.of(event)
+        : List.of(ServerSentEvent.create(String.format("{ \"dropped\" : %d }", change.droppedBefore), "dropped"), event);
+  }
+
+  private CompletionStage<EntityActor.Command> askGetValue(String entityId) {
+    return entityLookup.ask(entityId, entityRequestTimeout);
+  }
+
+  private CompletionStage<HttpResponse> putEntityValue(String entityId, String body) {
+    final EntityActor.Value value;
+    try {
+      value = new EntityActor.Value(scalar(entityValueMapper.readTree(body)));
+    } catch (JsonProcessingException | IllegalArgumentException e) {
+      return CompletableFuture.completedFuture(textResponse(StatusCodes.BAD_REQUEST, e.getMessage()));
+    }
+    final var id = new EntityActor.Id(entityId);
+    return ClusterSharding.get(actorSystem).entityRefFor(EntityActor.entityTypeKey, entityId)
+        .<EntityActor.Command>ask(replyTo -> new EntityActor.ChangeValue(id, value, replyTo), entityRequestTimeout)
+        .handle((reply, error) -> {
+          entityValueReads.forget(entityId);
+          return entityValueResponse(entityId, reply, error);
+        });
+  }
+
+  // Entity values are the scalars the entity message serializer can carry.
+  static Object scalar(JsonNode json) {
+    if (json == null || json.isNull()) {
+      return null;
+    } else if (json.isTextual()) {
+      return json.textValue();
+    } else if (json.isBoolean()) {
+      return json.booleanValue();
+    } else if (json.isIntegralNumber() && json.canConvertToLong()) {
+      return json.longValue();
+    } else if (json.isNumber()) {
+      return json.doubleValue();
+    }
+    throw new IllegalArgumentException("The entity value must be a JSON string, number, boolean or null");
+  }
+
+  private static HttpResponse entityValueResponse(String entityId, EntityActor.Command reply, Throwable error) {
+    if (error != null) {
+      final var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      return textResponse(StatusCodes.SERVICE_UNAVAILABLE, String.format("No reply from entity %s: %s", entityId, cause.getMessage()));
+    } else if (reply instanceof EntityActor.GetValueAck) {
+      return jsonResponse(StatusCodes.OK, new EntityValue(entityId, ((EntityActor.GetValueAck) reply).value.value, null).toJson());
+    } else if (reply instanceof EntityActor.ChangeValueAck) {
+      final var changeValueAck = (EntityActor.ChangeValueAck) reply;
+      return jsonResponse(StatusCodes.OK, new EntityValue(entityId, changeValueAck.value.value, changeValueAck.action).toJson());
+    } else if (reply instanceof EntityActor.GetValueAckNotFound) {
+      return textResponse(StatusCodes.NOT_FOUND, String.format("Entity %s has no value", entityId));
+    }
+    return textResponse(StatusCodes.INTERNAL_SERVER_ERROR, String.format("Unexpected reply from entity %s: %s", entityId, reply));
+  }
+
+  private static HttpResponse jsonResponse(StatusCode status, String json) {
+    return HttpResponse.create().withStatus(status).withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, json));
+  }
+
+  private static HttpResponse textResponse(StatusCode status, String text) {
+    return HttpResponse.create().withStatus(status).withEntity(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, text));
+  }
+
+  // Called by the HttpServerActor when it refreshes the metrics that are collected with messages.
+  PrometheusMetrics prometheusMetrics() {
+    return prometheusMetrics;
+  }
+
+  private Route latencyMatrix() {
+    return get(() -> respondWithHeader(RawHeader.create("Access-Control-Allow-Origin", "*"),
+        () -> complete(loadLatencyMatrix().toJson())));
+  }
+
+  // Viewer protocol: any text message is answered with the latest snapshot, "subscribe" additionally starts
+  // a push stream of sequence numbered deltas. Each connection buffers at most viewer-delta-buffer-size
+  // deltas and drops the oldest when the client falls behind, the client detects the sequence gap and
+  // sends "resync" to get the latest snapshot followed by the deltas published since it was taken.
   private Flow<Message, Message, NotUsed> handleClientMessages() {
     return Flow.<Message>create().collect(new JavaPartialFunction<Message, Message>() {
       @Override
@@ -107,23 +332,36 @@ class HttpServer {
           return null;
         } else if (isCheck && !message.isText()) {
           throw noMatch();
-        } else if (message.asTextMessage().isStrict()) {
-          return handleClientMessage(message);
         } else {
-          return TextMessage.create("");
+          return message;
         }
       }
-    });
+    })
+    .statefulMapConcat(() -> {
+      final var subscribed = new AtomicBoolean();
+      return message -> List.of(handleClientMessage(message, subscribed));
+    })
+    .flatMapMerge(2, source -> source);
   }
 
-  private Message handleClientMessage(Message message) {
+  private Source<Message, NotUsed> handleClientMessage(Message message, AtomicBoolean subscribed) {
+    if (!message.asTextMessage().isStrict()) {
+      return Source.single(TextMessage.create(""));
+    }
     final var messageText = message.asTextMessage().getStrictText();
     if (messageText.startsWith("akka://")) {
       handleStopNode(messageText);
     }
-    removeOfflineMembers(actorSystem, tree);
 
-    return responseAsJson();
+    if ("subscribe".equals(messageText) && !subscribed.getAndSet(true)) {
+      return viewerDeltas
+          .buffer(viewerDeltaBufferSize, OverflowStrategy.dropHead())
+          .<Message>map(TextMessage::create)
+          .prepend(Source.lazySource(() -> Source.from(viewerSnapshot.get().messages())));
+    } else if ("resync".equals(messageText)) {
+      return Source.from(viewerSnapshot.get().messages());
+    }
+    return Source.single(TextMessage.create(viewerSnapshot.get().json));
   }
 
   private void handleStopNode(String memberAddress) {
@@ -136,10 +374,37 @@ class HttpServer {
     });
   }
 
-  private Message responseAsJson() {
+  // Called by the HttpServerActor, a new snapshot is only serialized when deltas were published since the last one.
+  void refreshViewerSnapshot() {
+    removeOfflineMembers();
+    if (!viewerSnapshot.get().deltas.isEmpty()) {
+      publishViewerSnapshot();
+    }
+  }
+
+  private void publishViewerSnapshot() {
     tree.setMemberType(Cluster.get(actorSystem).selfMember().address().toString(), "httpServer");
-    final var clientResponse = new ClientResponse(tree, activitySummary);
-    return TextMessage.create(clientResponse.toJson());
+    final var clientResponse = new ClientResponse(viewerSequence, tree, activitySummary);
+    viewerSnapshot.set(new ViewerSnapshot(viewerSequence, clientResponse.toJson(), List.of()));
+  }
+
+  private void publish(ViewerDelta viewerDelta) {
+    tree.getChildren().forEach(member -> viewerDelta.memberTypes.put(member.name, member.type));
+    viewerDelta.serverActivities = activitySummary.serverActivitySummary.serverActivities.values();
+    viewerDelta.seq = ++viewerSequence;
+    try {
+      final var json = viewerJsonWriter.writeValueAsString(viewerDelta);
+      viewerDeltaQueue.offer(json);
+
+      final var snapshot = viewerSnapshot.get();
+      if (snapshot.deltas.size() < viewerDeltaBufferSize) {
+        viewerSnapshot.set(snapshot.withDelta(json));
+      } else {
+        publishViewerSnapshot();
+      }
+    } catch (JsonProcessingException e) {
+      log().error("Failed to serialize viewer delta", e);
+    }
   }
 
   private static Nodes loadNodes(ActorSystem<?> actorSystem, ClusterAwareStatistics clusterAwareStatistics, SingletonAwareStatistics singletonAwareStatistics) {
@@ -157,6 +422,8 @@ class HttpServer {
     final var seedNodePorts = seedNodePorts(actorSystem);
 
     final Nodes nodes = new Nodes(
+        actorSystem.settings().config().getInt("http-server.port-offset"),
+        cluster.selfMember().address().toString(),
         memberPort(cluster.selfMember()),
         cluster.selfMember().address().equals(clusterState.getLeader()),
         oldest.equals(cluster.selfMember()),
@@ -190,10 +457,6 @@ class HttpServer {
     return actorSystem.log();
   }
 
-  private static boolean isValidPort(int port) {
-    return port >= 2551 && port <= 2559;
-  }
-
   private static int memberPort(Member member) {
     final var portOption = member.address().port();
     return portOption.isDefined() ? Integer.parseInt(portOption.get().toString()) : 0;
@@ -206,16 +469,22 @@ class HttpServer {
     }).collect(Collectors.toList());
   }
 
-  private static void removeOfflineMembers(ActorSystem<?> actorSystem, Tree tree) {
+  private void removeOfflineMembers() {
     var liveMembers = liveMembers(actorSystem);
+    final var viewerDelta = new ViewerDelta();
 
-    tree.children.stream()
+    tree.getChildren().stream()
         .filter((c -> !liveMembers.contains(c.name)))
         .collect(Collectors.toList())
         .forEach(c -> {
           actorSystem.log().info("Removing offline member: {}", c.name);
           tree.removeMember(c.name);
+          viewerDelta.removedMembers.add(c.name);
         });
+
+    if (!viewerDelta.removedMembers.isEmpty()) {
+      publish(viewerDelta);
+    }
   }
 
   private static Set<String> liveMembers(ActorSystem<?> actorSystem) {
@@ -237,51 +506,176 @@ class HttpServer {
   }
 
   public static class ClusterAwareStatistics implements Statistics {
-    public final int totalPings;
+    public final long totalPings;
     public final int pingRatePs;
-    public final Map<Integer, Integer> nodePings;
+    public final RateMeter.Rates pingRates;
+    public final Map<String, Long> nodePings;
+    public final Map<String, LoadGeneratorActor.Latency> nodeRoundTripTimes;
 
-    public ClusterAwareStatistics(int totalPings, int pingRatePs, Map<Integer, Integer> nodePings) {
+    public ClusterAwareStatistics(long totalPings, RateMeter.Rates pingRates, Map<String, Long> nodePings, Map<String, LoadGeneratorActor.Latency> nodeRoundTripTimes) {
       this.totalPings = totalPings;
-      this.pingRatePs = pingRatePs;
+      this.pingRatePs = (int) Math.round(pingRates.windowPs);
+      this.pingRates = pingRates;
       this.nodePings = nodePings;
+      this.nodeRoundTripTimes = nodeRoundTripTimes;
+    }
+  }
+
+  void load(RoundTripTimeRow roundTripTimeRow) {
+    roundTripTimeRows.put(roundTripTimeRow.memberId, new ReceivedRoundTripTimes(roundTripTimeRow, System.nanoTime()));
+  }
+
+  // Each member measures the round trip times from itself to its peers, which is one row of the matrix.
+  // Rows are broadcast to every HTTP server, a row that stops being refreshed is a node that is paused
+  // or cut off, so each row carries its age.
+  private LatencyMatrix loadLatencyMatrix() {
+    final var members = StreamSupport.stream(Cluster.get(actorSystem).state().getMembers().spliterator(), false)
+        .map(member -> member.address().toString())
+        .sorted()
+        .collect(Collectors.toList());
+    roundTripTimeRows.keySet().retainAll(members);
+
+    final var now = System.nanoTime();
+    final var rows = new TreeMap<String, Map<String, LoadGeneratorActor.Latency>>();
+    final var rowAgeSeconds = new TreeMap<String, Double>();
+    roundTripTimeRows.forEach((memberId, received) -> {
+      rows.put(memberId, received.roundTripTimeRow.roundTripTimes);
+      rowAgeSeconds.put(memberId, (now - received.nanoTime) / 1e9);
+    });
+    return new LatencyMatrix(members, rows, rowAgeSeconds);
+  }
+
+  public static class RoundTripTimeRow implements Statistics {
+    public final String memberId;
+    public final Map<String, LoadGeneratorActor.Latency> roundTripTimes;
+
+    @JsonCreator
+    public RoundTripTimeRow(String memberId, Map<String, LoadGeneratorActor.Latency> roundTripTimes) {
+      this.memberId = memberId;
+      this.roundTripTimes = roundTripTimes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %d]", getClass().getSimpleName(), memberId, roundTripTimes.size());
+    }
+  }
+
+  private static class ReceivedRoundTripTimes {
+    final RoundTripTimeRow roundTripTimeRow;
+    final long nanoTime;
+
+    ReceivedRoundTripTimes(RoundTripTimeRow roundTripTimeRow, long nanoTime) {
+      this.roundTripTimeRow = roundTripTimeRow;
+      this.nanoTime = nanoTime;
+    }
+  }
+
+  public static class LatencyMatrix {
+    public final List<String> members;
+    public final Map<String, Map<String, LoadGeneratorActor.Latency>> rows;
+    public final Map<String, Double> rowAgeSeconds;
+
+    LatencyMatrix(List<String> members, Map<String, Map<String, LoadGeneratorActor.Latency>> rows, Map<String, Double> rowAgeSeconds) {
+      this.members = members;
+      this.rows = rows;
+      this.rowAgeSeconds = rowAgeSeconds;
+    }
+
+    String toJson() {
+      final var ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+      try {
+        return ow.writeValueAsString(this);
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
+    }
+  }
+
+  // Response of the entity routes, action is the ChangeValueAck action of a PUT.
+  public static class EntityValue {
+    public final String id;
+    public final Object value;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final String action;
+
+    EntityValue(String id, Object value, String action) {
+      this.id = id;
+      this.value = value;
+      this.action = action;
+    }
+
+    String toJson() {
+      try {
+        return entityValueMapper.writeValueAsString(this);
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
     }
   }
 
+  void load(LoadGeneratorActor.LoadGeneratorReport loadGeneratorReport) {
+    this.loadGeneratorReport = loadGeneratorReport;
+  }
+
   void load(SingletonAwareStatistics singletonAwareStatistics) {
     this.singletonAwareStatistics = singletonAwareStatistics;
-    tree.setMemberType(singletonAwareStatistics.memberId, "singleton");
+    if (singletonAwareStatistics.memberId != null) {
+      tree.setMemberType(singletonAwareStatistics.memberId, "singleton");
+    }
   }
 
+  // memberId is the node running the singleton, null when the pings are counted with the replicated counter.
   public static class SingletonAwareStatistics implements Statistics {
     public final String memberId;
-    public final int totalPings;
+    public final long totalPings;
     public final int pingRatePs;
-    public final Map<Integer, Integer> nodePings;
+    public final RateMeter.Rates pingRates;
+    public final Map<String, Long> nodePings;
 
-    public SingletonAwareStatistics(String memberId, int totalPings, int pingRatePs, Map<Integer, Integer> nodePings) {
+    public SingletonAwareStatistics(String memberId, long totalPings, RateMeter.Rates pingRates, Map<String, Long> nodePings) {
       this.memberId = memberId;
       this.totalPings = totalPings;
-      this.pingRatePs = pingRatePs;
+      this.pingRatePs = (int) Math.round(pingRates.windowPs);
+      this.pingRates = pingRates;
       this.nodePings = nodePings;
     }
 
     @Override
     public String toString() {
-      return String.format("%s[%s, %d, %d, %s]", getClass().getSimpleName(), memberId, totalPings, pingRatePs, nodePings);
+      return String.format("%s[%s, %d, %s, %s]", getClass().getSimpleName(), memberId, totalPings, pingRates, nodePings);
+    }
+  }
+
+  void load(EntityActionBatch entityActionBatch) {
+    final var treeUpdate = new FlightEvents.TreeUpdate();
+    treeUpdate.begin();
+    final var viewerDelta = new ViewerDelta();
+    entityActionBatch.entityActions.forEach(entityAction -> load(entityAction, viewerDelta));
+    treeUpdate.end();
+    if (treeUpdate.shouldCommit()) {
+      treeUpdate.entityActions = entityActionBatch.entityActions.size();
+      treeUpdate.added = viewerDelta.added.size();
+      treeUpdate.moved = viewerDelta.moved.size();
+      treeUpdate.removed = viewerDelta.removed.size();
+      treeUpdate.commit();
     }
+    activitySummary.load(entityActionBatch);
+
+    viewerDelta.shardsChanged.forEach((memberId, shardIds) -> shardIds.forEach(shardId ->
+        viewerDelta.shards.add(new ShardCount(memberId, shardId, tree.entityCount(memberId, shardId)))));
+    publish(viewerDelta);
   }
 
-  void load(EntityAction entityAction) {
+  private void load(EntityAction entityAction, ViewerDelta viewerDelta) {
+    final var before = tree.location(entityAction.entityId);
     try {
       switch (entityAction.action) {
       case "start":
         tree.add(entityAction.member, entityAction.shardId, entityAction.entityId);
-        activitySummary.load(entityAction);
         break;
       case "ping":
         tree.ping(entityAction.member, entityAction.shardId, entityAction.entityId);
-        activitySummary.load(entityAction);
         break;
       case "stop":
         tree.remove(entityAction.member, entityAction.shardId, entityAction.entityId);
@@ -292,8 +686,9 @@ class HttpServer {
     } catch (RuntimeException e) {
       log().error("Failed to load entity action: {}", e);
       log().error("Failed to load entity action: {}", entityAction);
-      log().warn("Failed to load entity action: tree children ({}) {}", tree.children.size(), tree.toJson());
+      log().warn("Failed to load entity action: tree children ({}) {}", tree.getChildren().size(), tree.toJson());
     }
+    viewerDelta.changed(entityAction.entityId, before, tree.location(entityAction.entityId));
   }
 
   public static class EntityAction implements Statistics {
@@ -318,15 +713,35 @@ class HttpServer {
     }
   }
 
+  public static class EntityActionBatch implements Statistics {
+    final List<EntityAction> entityActions;
+    final Map<String, Integer> messageCounts;
+
+    @JsonCreator
+    EntityActionBatch(List<EntityAction> entityActions, Map<String, Integer> messageCounts) {
+      this.entityActions = entityActions;
+      this.messageCounts = messageCounts;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%,d, %s]", getClass().getSimpleName(), entityActions.size(), messageCounts);
+    }
+  }
+
   public static class Nodes implements CborSerializable {
+    public final String selfAddress;
     public final int selfPort;
     public final boolean leader;
     public final boolean oldest;
     public final ClusterAwareStatistics clusterAwareStatistics;
     public final SingletonAwareStatistics singletonAwareStatistics;
     public List<Node> nodes = new ArrayList<>();
+    private final int httpPortOffset;
 
-    public Nodes(int selfPort, boolean leader, boolean oldest, ClusterAwareStatistics clusterAwareStatistics, SingletonAwareStatistics singletonAwareStatistics) {
+    public Nodes(int httpPortOffset, String selfAddress, int selfPort, boolean leader, boolean oldest, ClusterAwareStatistics clusterAwareStatistics, SingletonAwareStatistics singletonAwareStatistics) {
+      this.httpPortOffset = httpPortOffset;
+      this.selfAddress = selfAddress;
       this.selfPort = selfPort;
       this.leader = leader;
       this.oldest = oldest;
@@ -336,15 +751,15 @@ class HttpServer {
 
     void add(Member member, boolean leader, boolean oldest, boolean seedNode) {
       final var port = memberPort(member);
-      if (isValidPort(port)) {
-        nodes.add(new Node(port, state(member.status()), memberStatus(member.status()), leader, oldest, seedNode));
+      if (port > 0) {
+        nodes.add(new Node(member.address().toString(), port, port + httpPortOffset, state(member.status()), memberStatus(member.status()), leader, oldest, seedNode));
       }
     }
 
     void addUnreachable(Member member) {
       final var port = memberPort(member);
-      if (isValidPort(port)) {
-        Node node = new Node(port, "unreachable", "unreachable", false, false, false);
+      if (port > 0) {
+        Node node = new Node(member.address().toString(), port, port + httpPortOffset, "unreachable", "unreachable", false, false, false);
         nodes.remove(node);
         nodes.add(node);
       }
@@ -400,16 +815,21 @@ class HttpServer {
     }
   }
 
+  // Nodes on different hosts can share a port, a node is identified by its member address.
   public static class Node implements CborSerializable {
+    public final String address;
     public final int port;
+    public final int httpPort;
     public final String state;
     public final String memberState;
     public final boolean leader;
     public final boolean oldest;
     public final boolean seedNode;
 
-    public Node(int port, String state, String memberState, boolean leader, boolean oldest, boolean seedNode) {
+    public Node(String address, int port, int httpPort, String state, String memberState, boolean leader, boolean oldest, boolean seedNode) {
+      this.address = address;
       this.port = port;
+      this.httpPort = httpPort;
       this.state = state;
       this.memberState = memberState;
       this.leader = leader;
@@ -424,12 +844,12 @@ class HttpServer {
       if (o == null || getClass() != o.getClass())
         return false;
       Node node = (Node) o;
-      return Objects.equals(port, node.port);
+      return Objects.equals(address, node.address);
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(port);
+      return Objects.hash(address);
     }
   }
 
@@ -438,7 +858,10 @@ class HttpServer {
     public final String name;
     public String type;
     public int events;
-    public final List<Tree> children = new ArrayList<>();
+    private final Map<String, Tree> children = new LinkedHashMap<>();
+    private Map<String, Location> entityLocations; // entityId -> member and shard, only used on the root node
+    private int leaves;
+    private int leafEvents;
 
     public Tree(String name, String type) {
       this.name = name;
@@ -450,10 +873,22 @@ class HttpServer {
     }
 
     Tree children(Tree... children) {
-      this.children.addAll(Arrays.asList(children));
+      for (var child : children) {
+        final var replaced = this.children.put(child.name, child);
+        if (replaced != null) {
+          leaves -= replaced.leafCount();
+          leafEvents -= replaced.eventsCount();
+        }
+        leaves += child.leafCount();
+        leafEvents += child.eventsCount();
+      }
       return this;
     }
 
+    public Collection<Tree> getChildren() {
+      return children.values();
+    }
+
     void add(String memberId, String shardId, String entityId) {
       if (memberId == null) {
         throw new IllegalArgumentException("memberId must not be null");
@@ -464,131 +899,97 @@ class HttpServer {
       if (entityId == null) {
         throw new IllegalArgumentException("entityId must not be null");
       }
-      removeEntity(entityId);
-      var member = find(memberId, "member");
-      if (member == null) {
-        member = Tree.create(memberId, "member");
-        children.add(member);
-      }
-      var shard = member.find(shardId, "shard");
-      if (shard == null) {
-        shard = Tree.create(shardId, "shard");
-        member.children.add(shard);
-      }
-      var entity = shard.find(entityId, "entity");
-      if (entity == null) {
-        entity = Tree.create(entityId, "entity");
-        shard.children.add(entity);
+      final var location = entityLocations().get(entityId);
+      if (location != null) {
+        if (location.member.name.equals(memberId) && location.shard.name.equals(shardId)) {
+          return;
+        }
+        remove(location.member, location.shard, entityId);
       }
+      final var member = children.computeIfAbsent(memberId, id -> Tree.create(id, "member"));
+      final var shard = member.children.computeIfAbsent(shardId, id -> Tree.create(id, "shard"));
+      shard.children.put(entityId, Tree.create(entityId, "entity"));
+      shard.leaves++;
+      member.leaves++;
+      leaves++;
+      entityLocations().put(entityId, new Location(member, shard));
     }
 
     void ping(String memberId, String shardId, String entityId) {
-      final var entity = find(entityId, "entity");
-      if (entity == null) {
+      if (!entityLocations().containsKey(entityId)) {
         add(memberId, shardId, entityId);
       }
     }
 
     void remove(String memberId, String shardId, String entityId) {
-      var member = find(memberId, "member");
+      final var member = children.get(memberId);
       if (member != null) {
-        var shard = member.find(shardId, "shard");
+        final var shard = member.children.get(shardId);
         if (shard != null) {
-          var entity = shard.find(entityId, "entity");
-          shard.children.remove(entity);
-
-          if (shard.children.isEmpty()) {
-            member.children.remove(shard);
-          }
-        }
-        if (member.children.isEmpty()) {
-          children.remove(member);
+          remove(member, shard, entityId);
         }
       }
     }
 
-    void removeEntity(String entityId) {
-      var memberId = "";
-      var shardId = "";
-      for (var member : children) {
-        for (var shard : member.children) {
-          for (var entity : shard.children) {
-            if (entity.name.equals(entityId)) {
-              memberId = member.name;
-              shardId = shard.name;
-              break;
-            }
-          }
+    private void remove(Tree member, Tree shard, String entityId) {
+      final var entity = shard.children.remove(entityId);
+      if (entity != null) {
+        shard.leaves--;
+        member.leaves--;
+        leaves--;
+        shard.leafEvents -= entity.events;
+        member.leafEvents -= entity.events;
+        leafEvents -= entity.events;
+
+        final var location = entityLocations().get(entityId);
+        if (location != null && location.shard == shard) {
+          entityLocations.remove(entityId);
         }
       }
-      if (!memberId.isEmpty()) {
-        remove(memberId, shardId, entityId);
+      if (shard.children.isEmpty()) {
+        member.children.remove(shard.name);
+      }
+      if (member.children.isEmpty()) {
+        children.remove(member.name);
       }
     }
 
-    private static class RemoveEntity {
-      final String memberId;
-      final String shardId;
-      final String entityId;
-
-      RemoveEntity(String memberId, String shardId, String entityId) {
-        this.memberId = memberId;
-        this.shardId = shardId;
-        this.entityId = entityId;
+    void removeEntity(String entityId) {
+      final var location = entityLocations().get(entityId);
+      if (location != null) {
+        remove(location.member, location.shard, entityId);
       }
     }
 
     void removeMember(String memberId) {
-      final var entities = new ArrayList<RemoveEntity>();
-      for (var member : children) {
-        if (member.name.equals(memberId)) {
-          for (var shard : member.children) {
-            for (var entity : shard.children) {
-              entities.add(new RemoveEntity(member.name, shard.name, entity.name));
-            }
+      final var member = children.remove(memberId);
+      if (member != null) {
+        final var locations = entityLocations();
+        member.children.values().forEach(shard -> shard.children.keySet().forEach(entityId -> {
+          final var location = locations.get(entityId);
+          if (location != null && location.member == member) {
+            locations.remove(entityId);
           }
-        }
+        }));
+        leaves -= member.leafCount();
+        leafEvents -= member.eventsCount();
       }
-      entities.forEach(e -> remove(e.memberId, e.shardId, e.entityId));
     }
 
     void incrementEvents(String memberId, String shardId, String entityId) {
-      final var entity = find(memberId, shardId, entityId);
+      final var member = children.get(memberId);
+      final var shard = member == null ? null : member.children.get(shardId);
+      final var entity = shard == null ? null : shard.children.get(entityId);
       if (entity != null) {
         entity.events += 1;
+        shard.leafEvents += 1;
+        member.leafEvents += 1;
+        leafEvents += 1;
       }
     }
 
-    private Tree find(String memberId, String shardId, String entityId) {
-      final var member = find(memberId, "member");
-      if (member != null) {
-        final var shard = member.find(shardId, "shard");
-        if (shard != null) {
-          final var entity = shard.find(entityId, "entity");
-          if (entity != null) {
-            return entity;
-          }
-        }
-      }
-      return null;
-    }
-
-    Tree find(String name, String type) {
-      if (this.name.equals(name) && this.type.contains(type)) {
-        return this;
-      } else {
-        for (var child : children) {
-          final var found = child.find(name, type);
-          if (found != null) {
-            return found;
-          }
-        }
-      }
-      return null;
-    }
-
     void setMemberType(String memberId, String type) {
-      children.forEach(
+      children.values().forEach(
           child -> {
             if (child.name.equals(memberId)) {
               if (!child.type.contains(type)) {
@@ -601,27 +1002,36 @@ class HttpServer {
     }
 
     void unsetMemberType(String memberId, String type) {
-      final var member = find(memberId, type);
-      if (member != null) {
+      final var member = children.get(memberId);
+      if (member != null && member.type.contains(type)) {
         member.type = member.type.replaceAll(type, "");
         member.type = member.type.replaceAll(" +", " ");
       }
     }
 
     int leafCount() {
-      if (children.size() > 0) {
-        return children.stream().mapToInt(Tree::leafCount).sum();
-      } else {
-        return 1;
-      }
+      return children.isEmpty() ? 1 : leaves;
     }
 
     int eventsCount() {
-      if (children.size() > 0) {
-        return children.stream().mapToInt(Tree::eventsCount).sum();
-      } else {
-        return events;
+      return children.isEmpty() ? events : leafEvents;
+    }
+
+    Location location(String entityId) {
+      return entityLocations().get(entityId);
+    }
+
+    int entityCount(String memberId, String shardId) {
+      final var member = children.get(memberId);
+      final var shard = member == null ? null : member.children.get(shardId);
+      return shard == null ? 0 : shard.leaves;
+    }
+
+    private Map<String, Location> entityLocations() {
+      if (entityLocations == null) {
+        entityLocations = new HashMap<>();
       }
+      return entityLocations;
     }
 
     String toJson() {
@@ -637,14 +1047,25 @@ class HttpServer {
     public String toString() {
       return String.format("%s[%s, %s, %d]", getClass().getSimpleName(), name, type, events);
     }
+
+    static class Location implements Serializable {
+      private static final long serialVersionUID = 1L;
+      final Tree member;
+      final Tree shard;
+
+      Location(Tree member, Tree shard) {
+        this.member = member;
+        this.shard = shard;
+      }
+    }
   }
 
   public static class ActivitySummary implements Serializable {
     private static final long serialVersionUID = 1L;
     public final ServerActivitySummary serverActivitySummary = new ServerActivitySummary();
 
-    void load(EntityAction entityAction) {
-      serverActivitySummary.load(entityAction);
+    void load(EntityActionBatch entityActionBatch) {
+      serverActivitySummary.load(entityActionBatch);
     }
 
     @Override
@@ -657,9 +1078,15 @@ class HttpServer {
     private static final long serialVersionUID = 1L;
     public final Map<String, ServerActivity> serverActivities = new HashMap<>();
 
-    void load(EntityAction entityAction) {
-      final String server = entityAction.httpServer;
-      serverActivities.put(server, serverActivities.getOrDefault(server, new ServerActivity(server)).load(entityAction));
+    void load(EntityActionBatch entityActionBatch) {
+      entityActionBatch.messageCounts.forEach((server, count) -> serverActivity(server).count(count));
+      entityActionBatch.entityActions.stream()
+          .filter(entityAction -> entityAction.httpServer != null)
+          .forEach(entityAction -> serverActivity(entityAction.httpServer).link(entityAction));
+    }
+
+    private ServerActivity serverActivity(String server) {
+      return serverActivities.computeIfAbsent(server, ServerActivity::new);
     }
 
     @Override
@@ -670,22 +1097,30 @@ class HttpServer {
     public static class ServerActivity implements Serializable {
       private static final long serialVersionUID = 1L;
       public final String server;
-      public int messageCount;
+      public long messageCount;
       public Queue<Link> links = new LinkedList<>();
+      private final transient RateMeter messages = new RateMeter();
 
       public ServerActivity(String server) {
         this.server = server;
         messageCount = 0;
       }
 
-      ServerActivity load(EntityAction entityAction) {
-        messageCount++;
+      void count(int messages) {
+        messageCount += messages;
+        this.messages.mark(messages);
+      }
+
+      // Messages per second over the last window, computed when the viewer snapshot or delta is serialized.
+      public double getMessageRatePs() {
+        return messages.rates().windowPs;
+      }
 
+      void link(EntityAction entityAction) {
         links.offer(new Link(entityAction.entityId, entityAction.httpServer));
         while (links.size() > 50) {
           links.poll();
         }
-        return this;
       }
 
       @Override
@@ -738,21 +1173,117 @@ class HttpServer {
 
   public static class ClientResponse implements Serializable {
     private static final long serialVersionUID = 1L;
+    public final String type = "snapshot";
+    public final long seq;
     public final Tree tree;
     public final Collection<ServerActivity> serverActivities;
 
-    public ClientResponse(Tree tree, ActivitySummary activitySummary) {
+    public ClientResponse(long seq, Tree tree, ActivitySummary activitySummary) {
+      this.seq = seq;
       this.tree = tree;
       serverActivities = activitySummary.serverActivitySummary.serverActivities.values();
     }
 
     String toJson() {
-      ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
       try {
-        return ow.writeValueAsString(this);
+        return viewerJsonWriter.writeValueAsString(this);
       } catch (JsonProcessingException e) {
         return String.format("{ \"error\" : \"%s\" }", e.getMessage());
       }
     }
   }
+
+  // Immutable, serialized viewer state. Route threads share the JSON of the latest snapshot and
+  // replay the deltas published since it was taken, the actor replaces the whole object on each change.
+  static class ViewerSnapshot {
+    final long seq;
+    final String json;
+    final List<String> deltas;
+
+    ViewerSnapshot(long seq, String json, List<String> deltas) {
+      this.seq = seq;
+      this.json = json;
+      this.deltas = deltas;
+    }
+
+    ViewerSnapshot withDelta(String delta) {
+      final var withDelta = new ArrayList<String>(deltas.size() + 1);
+      withDelta.addAll(deltas);
+      withDelta.add(delta);
+      return new ViewerSnapshot(seq, json, Collections.unmodifiableList(withDelta));
+    }
+
+    List<Message> messages() {
+      final var messages = new ArrayList<Message>(deltas.size() + 1);
+      messages.add(TextMessage.create(json));
+      deltas.forEach(delta -> messages.add(TextMessage.create(delta)));
+      return messages;
+    }
+  }
+
+  public static class ViewerDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final String type = "delta";
+    public long seq;
+    public final List<EntityChange> added = new ArrayList<>();
+    public final List<EntityChange> moved = new ArrayList<>();
+    public final List<EntityChange> removed = new ArrayList<>();
+    public final List<String> removedMembers = new ArrayList<>();
+    public final List<ShardCount> shards = new ArrayList<>();
+    public final Map<String, String> memberTypes = new HashMap<>();
+    public Collection<ServerActivity> serverActivities;
+    private final Map<String, Set<String>> shardsChanged = new HashMap<>();
+
+    void changed(String entityId, Tree.Location before, Tree.Location after) {
+      if (before == after) {
+        return;
+      }
+      if (before == null) {
+        added.add(new EntityChange(entityId, after.member.name, after.shard.name, null, null));
+      } else if (after == null) {
+        removed.add(new EntityChange(entityId, before.member.name, before.shard.name, null, null));
+      } else {
+        moved.add(new EntityChange(entityId, after.member.name, after.shard.name, before.member.name, before.shard.name));
+      }
+      shardChanged(before);
+      shardChanged(after);
+    }
+
+    private void shardChanged(Tree.Location location) {
+      if (location != null) {
+        shardsChanged.computeIfAbsent(location.member.name, m -> new HashSet<>()).add(location.shard.name);
+      }
+    }
+  }
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class EntityChange implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final String entityId;
+    public final String member;
+    public final String shard;
+    public final String fromMember;
+    public final String fromShard;
+
+    public EntityChange(String entityId, String member, String shard, String fromMember, String fromShard) {
+      this.entityId = entityId;
+      this.member = member;
+      this.shard = shard;
+      this.fromMember = fromMember;
+      this.fromShard = fromShard;
+    }
+  }
+
+  public static class ShardCount implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final String member;
+    public final String shard;
+    public final int entities;
+
+    public ShardCount(String member, String shard, int entities) {
+      this.member = member;
+      this.shard = shard;
+      this.entities = entities;
+    }
+  }
 }
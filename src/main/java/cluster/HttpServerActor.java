@@ -4,10 +4,20 @@ import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
 import akka.actor.typed.receptionist.Receptionist;
 import akka.actor.typed.receptionist.ServiceKey;
+import akka.cluster.sharding.ShardRegion;
+import akka.cluster.sharding.typed.GetClusterShardingStats;
+import akka.cluster.sharding.typed.GetShardRegionState;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import cluster.HttpServer.EntityAction;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
@@ -18,18 +28,36 @@ class HttpServerActor {
   private final ActorContext<HttpServer.Statistics> actorContext;
   private final HttpServer httpServer;
   private Set<ActorRef<HttpServer.Statistics>> serviceInstances;
+  private final Map<String, EntityAction> pendingEntityActions = new LinkedHashMap<>();
+  private final Map<String, Integer> pendingMessageCounts = new HashMap<>();
+  private Map<String, LoadGeneratorActor.Latency> broadcastRoundTripTimes;
+  private final ActorRef<ShardRegion.CurrentShardRegionState> shardRegionStateAdapter;
+  private final ActorRef<ShardRegion.ClusterShardingStats> clusterShardingStatsAdapter;
+  private final Duration metricsRefreshInterval;
   private static final ServiceKey<HttpServer.Statistics> serviceKey = 
     ServiceKey.create(HttpServer.Statistics.class, HttpServer.class.getSimpleName());
 
-  static Behavior<HttpServer.Statistics> create() {
-    return Behaviors.setup(context -> new HttpServerActor(context).behavior());
+  static Behavior<HttpServer.Statistics> create(EntityPassivation entityPassivation, ShardLoad shardLoad, ChangeFeed changeFeed,
+      ActiveEntities activeEntities) {
+    return Behaviors.setup(context ->
+        Behaviors.withTimers(timers -> new HttpServerActor(context, timers, entityPassivation, shardLoad, changeFeed, activeEntities).behavior()));
   }
 
-  private HttpServerActor(ActorContext<HttpServer.Statistics> actorContext) {
+  private HttpServerActor(ActorContext<HttpServer.Statistics> actorContext, TimerScheduler<HttpServer.Statistics> timers, EntityPassivation entityPassivation, ShardLoad shardLoad,
+      ChangeFeed changeFeed, ActiveEntities activeEntities) {
     this.actorContext = actorContext;
 
     receptionistRegisterSubscribe(actorContext);
-    httpServer = HttpServer.start(actorContext.getSystem());
+    httpServer = HttpServer.start(actorContext.getSystem(), entityPassivation, shardLoad, changeFeed, activeEntities);
+    shardRegionStateAdapter = actorContext.messageAdapter(ShardRegion.CurrentShardRegionState.class, ShardRegionState::new);
+    clusterShardingStatsAdapter = actorContext.messageAdapter(ShardRegion.ClusterShardingStats.class, ClusterShardingStats::new);
+
+    final var batchInterval = Duration.parse(actorContext.getSystem().settings().config().getString("http-server.entity-action-batch-interval-iso-8601"));
+    timers.startTimerWithFixedDelay(Tick.ticktock, batchInterval);
+    final var snapshotInterval = Duration.parse(actorContext.getSystem().settings().config().getString("http-server.viewer-snapshot-interval-iso-8601"));
+    timers.startTimerWithFixedDelay(SnapshotTick.ticktock, snapshotInterval);
+    metricsRefreshInterval = Duration.parse(actorContext.getSystem().settings().config().getString("http-server.metrics-refresh-interval-iso-8601"));
+    timers.startTimerWithFixedDelay(MetricsTick.ticktock, metricsRefreshInterval);
   }
 
   private Behavior<HttpServer.Statistics> behavior() {
@@ -37,8 +65,16 @@ class HttpServerActor {
         .onMessage(Listeners.class, this::onListeners)
         .onMessage(HttpServer.ClusterAwareStatistics.class, this::onClusterAwareStatistics)
         .onMessage(HttpServer.SingletonAwareStatistics.class, this::onSingletonAwareStatistics)
+        .onMessage(HttpServer.RoundTripTimeRow.class, this::onRoundTripTimeRow)
+        .onMessage(LoadGeneratorActor.LoadGeneratorReport.class, this::onLoadGeneratorReport)
         .onMessage(BroadcastEntityAction.class, this::onBroadcastEntityAction)
-        .onMessage(HttpServer.EntityAction.class, this::onNotifyEntityAction)
+        .onMessage(Tick.class, t -> onTick())
+        .onMessage(SnapshotTick.class, t -> onSnapshotTick())
+        .onMessage(MetricsTick.class, t -> onMetricsTick())
+        .onMessage(MailboxProbe.class, this::onMailboxProbe)
+        .onMessage(ShardRegionState.class, this::onShardRegionState)
+        .onMessage(ClusterShardingStats.class, this::onClusterShardingStats)
+        .onMessage(HttpServer.EntityActionBatch.class, this::onEntityActionBatch)
         .build();
   }
 
@@ -50,6 +86,23 @@ class HttpServerActor {
   private Behavior<HttpServer.Statistics> onClusterAwareStatistics(HttpServer.ClusterAwareStatistics clusterAwareStatistics) {
     log().info("Cluster aware statistics {} {}", clusterAwareStatistics.totalPings, clusterAwareStatistics.nodePings);
     httpServer.load(clusterAwareStatistics);
+    broadcastRoundTripTimes(clusterAwareStatistics.nodeRoundTripTimes);
+    return Behaviors.same();
+  }
+
+  // The cluster aware actor only recomputes its round trip times once per publish interval, a new map
+  // is this node's latency matrix row to share with every HTTP server.
+  private void broadcastRoundTripTimes(Map<String, LoadGeneratorActor.Latency> roundTripTimes) {
+    if (serviceInstances != null && roundTripTimes != broadcastRoundTripTimes) {
+      broadcastRoundTripTimes = roundTripTimes;
+      final var roundTripTimeRow = new HttpServer.RoundTripTimeRow(actorContext.getSystem().address().toString(), roundTripTimes);
+      serviceInstances.forEach(httpServerActorRef -> httpServerActorRef.tell(roundTripTimeRow));
+    }
+  }
+
+  private Behavior<HttpServer.Statistics> onRoundTripTimeRow(HttpServer.RoundTripTimeRow roundTripTimeRow) {
+    log().debug("{}", roundTripTimeRow);
+    httpServer.load(roundTripTimeRow);
     return Behaviors.same();
   }
 
@@ -59,15 +112,82 @@ class HttpServerActor {
     return Behaviors.same();
   }
 
+  private Behavior<HttpServer.Statistics> onLoadGeneratorReport(LoadGeneratorActor.LoadGeneratorReport loadGeneratorReport) {
+    log().info("{}", loadGeneratorReport);
+    httpServer.load(loadGeneratorReport);
+    return Behaviors.same();
+  }
+
   private Behavior<HttpServer.Statistics> onBroadcastEntityAction(BroadcastEntityAction broadcastEntityAction) {
-    serviceInstances.stream()
-        .forEach(httpServerActorRef -> httpServerActorRef.tell(broadcastEntityAction.entityAction));
+    final var entityAction = broadcastEntityAction.entityAction;
+    pendingEntityActions.merge(entityAction.entityId, entityAction, HttpServerActor::coalesce);
+    if (entityAction.httpServer != null) {
+      pendingMessageCounts.merge(entityAction.httpServer, 1, Integer::sum);
+    }
+    return Behaviors.same();
+  }
+
+  // Only the latest action per entity is kept, except that a start followed by pings stays a start
+  // so that receivers still move an entity that changed shard or member within the batch window.
+  private static EntityAction coalesce(EntityAction earlier, EntityAction later) {
+    return "start".equals(earlier.action) && "ping".equals(later.action)
+        ? new EntityAction(later.member, later.shardId, later.entityId, earlier.action, later.httpServer)
+        : later;
+  }
+
+  private Behavior<HttpServer.Statistics> onTick() {
+    if (serviceInstances != null && !(pendingEntityActions.isEmpty() && pendingMessageCounts.isEmpty())) {
+      final var entityActionBatch = new HttpServer.EntityActionBatch(
+          new ArrayList<>(pendingEntityActions.values()), new HashMap<>(pendingMessageCounts));
+      pendingEntityActions.clear();
+      pendingMessageCounts.clear();
+
+      final var broadcast = new FlightEvents.EntityActionBroadcast();
+      broadcast.begin();
+      serviceInstances.forEach(httpServerActorRef -> httpServerActorRef.tell(entityActionBatch));
+      broadcast.end();
+      if (broadcast.shouldCommit()) {
+        broadcast.entityActions = entityActionBatch.entityActions.size();
+        broadcast.httpServers = serviceInstances.size();
+        broadcast.commit();
+      }
+    }
     return Behaviors.same();
   }
 
-  private Behavior<HttpServer.Statistics> onNotifyEntityAction(HttpServer.EntityAction entityAction) {
-    log().info("{}", entityAction);
-    httpServer.load(entityAction);
+  private Behavior<HttpServer.Statistics> onSnapshotTick() {
+    httpServer.refreshViewerSnapshot();
+    return Behaviors.same();
+  }
+
+  // The probe goes to the back of this actor's mailbox, the time until it is handled is the mailbox delay.
+  private Behavior<HttpServer.Statistics> onMetricsTick() {
+    actorContext.getSelf().tell(new MailboxProbe(System.nanoTime()));
+    httpServer.prometheusMetrics().load(MailboxMetrics.get(actorContext.getSystem()).snapshot());
+    final var shardState = ClusterSharding.get(actorContext.getSystem()).shardState();
+    shardState.tell(new GetShardRegionState(EntityActor.entityTypeKey, shardRegionStateAdapter));
+    shardState.tell(new GetClusterShardingStats(EntityActor.entityTypeKey, metricsRefreshInterval, clusterShardingStatsAdapter));
+    return Behaviors.same();
+  }
+
+  private Behavior<HttpServer.Statistics> onMailboxProbe(MailboxProbe mailboxProbe) {
+    httpServer.prometheusMetrics().httpServerActorMailboxDelay(System.nanoTime() - mailboxProbe.sentNanos);
+    return Behaviors.same();
+  }
+
+  private Behavior<HttpServer.Statistics> onShardRegionState(ShardRegionState shardRegionState) {
+    httpServer.prometheusMetrics().load(shardRegionState.currentShardRegionState);
+    return Behaviors.same();
+  }
+
+  private Behavior<HttpServer.Statistics> onClusterShardingStats(ClusterShardingStats clusterShardingStats) {
+    httpServer.prometheusMetrics().load(clusterShardingStats.clusterShardingStats);
+    return Behaviors.same();
+  }
+
+  private Behavior<HttpServer.Statistics> onEntityActionBatch(HttpServer.EntityActionBatch entityActionBatch) {
+    log().debug("{}", entityActionBatch);
+    httpServer.load(entityActionBatch);
     return Behaviors.same();
   }
 
@@ -90,6 +210,42 @@ class HttpServerActor {
     }
   }
 
+  enum Tick implements HttpServer.Statistics {
+    ticktock
+  }
+
+  enum SnapshotTick implements HttpServer.Statistics {
+    ticktock
+  }
+
+  enum MetricsTick implements HttpServer.Statistics {
+    ticktock
+  }
+
+  private static class MailboxProbe implements HttpServer.Statistics {
+    final long sentNanos;
+
+    MailboxProbe(long sentNanos) {
+      this.sentNanos = sentNanos;
+    }
+  }
+
+  private static class ShardRegionState implements HttpServer.Statistics {
+    final ShardRegion.CurrentShardRegionState currentShardRegionState;
+
+    ShardRegionState(ShardRegion.CurrentShardRegionState currentShardRegionState) {
+      this.currentShardRegionState = currentShardRegionState;
+    }
+  }
+
+  private static class ClusterShardingStats implements HttpServer.Statistics {
+    final ShardRegion.ClusterShardingStats clusterShardingStats;
+
+    ClusterShardingStats(ShardRegion.ClusterShardingStats clusterShardingStats) {
+      this.clusterShardingStats = clusterShardingStats;
+    }
+  }
+
   public static class BroadcastEntityAction implements HttpServer.Statistics {
     public final HttpServer.EntityAction entityAction;
 
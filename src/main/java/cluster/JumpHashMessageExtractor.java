@@ -0,0 +1,62 @@
+package cluster;
+
+import akka.cluster.sharding.typed.ShardingEnvelope;
+import akka.cluster.sharding.typed.ShardingMessageExtractor;
+
+/**
+ * Maps entity ids to shards with Lamping and Veach's jump consistent hash. Unlike hashCode modulo
+ * the number of shards, changing number-of-shards from N to N + 1 only moves about 1/(N + 1) of the
+ * entities. The same instance is registered with cluster sharding and used by the entity actors to
+ * report their shard, so the reported shard is always the one the sharding runtime uses.
+ * Entity ids that start with the pinned prefix are placed on the shard named by the rest of the id.
+ */
+class JumpHashMessageExtractor<M> extends ShardingMessageExtractor<ShardingEnvelope<M>, M> {
+  static final String pinnedPrefix = "shard-";
+  private final int numberOfShards;
+
+  JumpHashMessageExtractor(int numberOfShards) {
+    if (numberOfShards <= 0) {
+      throw new IllegalArgumentException("numberOfShards must be > 0");
+    }
+    this.numberOfShards = numberOfShards;
+  }
+
+  @Override
+  public String entityId(ShardingEnvelope<M> envelope) {
+    return envelope.entityId();
+  }
+
+  @Override
+  public String shardId(String entityId) {
+    if (entityId.startsWith(pinnedPrefix)) {
+      return entityId.substring(pinnedPrefix.length());
+    }
+    return Integer.toString(jumpHash(hash64(entityId), numberOfShards));
+  }
+
+  @Override
+  public M unwrapMessage(ShardingEnvelope<M> envelope) {
+    return envelope.message();
+  }
+
+  static int jumpHash(long key, int buckets) {
+    long bucket = -1;
+    long next = 0;
+    while (next < buckets) {
+      bucket = next;
+      key = key * 2862933555777941757L + 1;
+      next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) bucket;
+  }
+
+  // 64 bit FNV-1a, String.hashCode only has 32 bits and clusters similar ids such as "2551-1", "2551-2"
+  static long hash64(String entityId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < entityId.length(); i++) {
+      hash ^= entityId.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
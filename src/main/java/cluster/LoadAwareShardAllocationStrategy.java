@@ -0,0 +1,181 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+import scala.jdk.javaapi.CollectionConverters;
+
+/**
+ * Allocates and rebalances shards by the message rates observed by the entity actors instead of
+ * by shard counts. New shards go to the least loaded region. A rebalance round only starts when the
+ * busiest region is more than the relative threshold above the average load, moves at most
+ * max-moves-per-round shards, only moves shards that narrow the gap between the busiest and the
+ * least loaded region, and leaves recently moved shards alone for the cooldown period. When the
+ * cluster is close to idle, shards are balanced by count like the least shard strategy.
+ *
+ * A shard's rate is the one reported by the node of the region that currently hosts it, the node it
+ * moved away from may still report a decaying rate for it.
+ */
+class LoadAwareShardAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+  private final ShardLoad shardLoad;
+  private final Function<ActorRef, String> regionNode;
+  private final double relativeThreshold;
+  private final double minRate;
+  private final int maxMovesPerRound;
+  private final long cooldownNanos;
+  private final Map<String, Long> lastMoved = new HashMap<>();
+
+  LoadAwareShardAllocationStrategy(ShardLoad shardLoad, Function<ActorRef, String> regionNode, double relativeThreshold, double minRate,
+      int maxMovesPerRound, Duration cooldown) {
+    this.shardLoad = shardLoad;
+    this.regionNode = regionNode;
+    this.relativeThreshold = relativeThreshold;
+    this.minRate = minRate;
+    this.maxMovesPerRound = maxMovesPerRound;
+    this.cooldownNanos = cooldown.toNanos();
+  }
+
+  // The coordinator's own region is a local actor ref without the node's address.
+  static LoadAwareShardAllocationStrategy create(Config config, ShardLoad shardLoad, Address selfAddress) {
+    return new LoadAwareShardAllocationStrategy(
+        shardLoad,
+        region -> (region.path().address().hasGlobalScope() ? region.path().address() : selfAddress).toString(),
+        config.getDouble("shard-allocation.rebalance-relative-threshold"),
+        config.getDouble("shard-allocation.rebalance-min-rate"),
+        config.getInt("shard-allocation.max-moves-per-round"),
+        Duration.parse(config.getString("shard-allocation.shard-cooldown-iso-8601")));
+  }
+
+  @Override
+  public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+    final var region = regionLoads(currentShardAllocations).stream()
+        .min(RegionLoad.byLoadThenShards)
+        .map(regionLoad -> regionLoad.region)
+        .orElse(requester);
+    return Futures.successful(region);
+  }
+
+  @Override
+  public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+    if (!rebalanceInProgress.isEmpty() || currentShardAllocations.size() < 2) {
+      return Futures.successful(Set.of());
+    }
+    final var regionLoads = regionLoads(currentShardAllocations);
+    final var totalLoad = regionLoads.stream().mapToDouble(regionLoad -> regionLoad.load).sum();
+    final var now = System.nanoTime();
+    lastMoved.values().removeIf(movedAt -> now - movedAt > cooldownNanos);
+
+    final var shards = totalLoad < minRate
+        ? rebalanceByShardCount(regionLoads)
+        : rebalanceByLoad(regionLoads, totalLoad / regionLoads.size());
+    shards.forEach(shardId -> lastMoved.put(shardId, now));
+    return Futures.successful(shards);
+  }
+
+  private Set<String> rebalanceByLoad(List<RegionLoad> regionLoads, double averageLoad) {
+    final var shards = new HashSet<String>();
+    while (shards.size() < maxMovesPerRound) {
+      regionLoads.sort(RegionLoad.byLoadThenShards);
+      final var least = regionLoads.get(0);
+      final var most = regionLoads.get(regionLoads.size() - 1);
+      if (most.load <= averageLoad * (1 + relativeThreshold)) {
+        break;
+      }
+      // moving a shard with a rate below the gap narrows it, the best fit is the rate closest to half the gap
+      final var gap = most.load - least.load;
+      final var shardId = most.shards.stream()
+          .filter(this::movable)
+          .filter(id -> most.rate(id) > 0 && most.rate(id) < gap)
+          .min(Comparator.comparingDouble(id -> Math.abs(gap / 2 - most.rate(id))));
+      if (shardId.isEmpty()) {
+        break;
+      }
+      most.move(shardId.get(), least);
+      shards.add(shardId.get());
+    }
+    return shards;
+  }
+
+  private Set<String> rebalanceByShardCount(List<RegionLoad> regionLoads) {
+    final var shards = new HashSet<String>();
+    final Comparator<RegionLoad> byShards = Comparator.comparingInt(regionLoad -> regionLoad.shards.size());
+    while (shards.size() < maxMovesPerRound) {
+      regionLoads.sort(byShards);
+      final var least = regionLoads.get(0);
+      final var most = regionLoads.get(regionLoads.size() - 1);
+      if (most.shards.size() - least.shards.size() <= 1) {
+        break;
+      }
+      final var shardId = most.shards.stream().filter(this::movable).findFirst();
+      if (shardId.isEmpty()) {
+        break;
+      }
+      most.move(shardId.get(), least);
+      shards.add(shardId.get());
+    }
+    return shards;
+  }
+
+  private boolean movable(String shardId) {
+    return !lastMoved.containsKey(shardId);
+  }
+
+  private List<RegionLoad> regionLoads(Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+    final var regionLoads = new ArrayList<RegionLoad>(currentShardAllocations.size());
+    currentShardAllocations.forEach((region, shards) -> {
+      final var regionLoad = new RegionLoad(region);
+      final var node = regionNode.apply(region);
+      CollectionConverters.asJava(shards).forEach(shardId -> regionLoad.add(shardId, shardLoad.rate(node, shardId)));
+      regionLoads.add(regionLoad);
+    });
+    return regionLoads;
+  }
+
+  private static class RegionLoad {
+    static final Comparator<RegionLoad> byLoadThenShards = Comparator
+        .<RegionLoad>comparingDouble(regionLoad -> regionLoad.load)
+        .thenComparingInt(regionLoad -> regionLoad.shards.size());
+    final ActorRef region;
+    final List<String> shards = new ArrayList<>();
+    final Map<String, Double> rates = new HashMap<>();
+    double load;
+
+    RegionLoad(ActorRef region) {
+      this.region = region;
+    }
+
+    void add(String shardId, double rate) {
+      shards.add(shardId);
+      rates.put(shardId, rate);
+      load += rate;
+    }
+
+    double rate(String shardId) {
+      return rates.getOrDefault(shardId, 0.0);
+    }
+
+    // The shard keeps its rate, the new region's node will report it once it hosts the shard.
+    void move(String shardId, RegionLoad to) {
+      final var rate = rate(shardId);
+      shards.remove(shardId);
+      rates.remove(shardId);
+      load -= rate;
+      to.add(shardId, rate);
+    }
+  }
+}
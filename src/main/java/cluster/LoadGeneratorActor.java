@@ -0,0 +1,365 @@
+package cluster;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+
+/**
+ * Open loop load generator. Requests are sent at their intended times derived from the target rate,
+ * whether or not earlier requests have completed, and latency is measured from the intended send time.
+ * That way a stalled cluster shows up as latency instead of as a lower request rate (coordinated
+ * omission). At the end of a run the report is printed and sent to the HTTP server.
+ */
+class LoadGeneratorActor extends AbstractBehavior<LoadGeneratorActor.Command> {
+  private final ActorRef<HttpServer.Statistics> httpServerActor;
+  private final ClusterSharding clusterSharding;
+  private final Settings settings;
+  private final KeyDistribution keyDistribution;
+  private final TimerScheduler<Command> timers;
+  private final SplittableRandom random = new SplittableRandom();
+  private final int nodePort;
+  private final Recorder readLatency = new Recorder(3);
+  private final Recorder writeLatency = new Recorder(3);
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private Instant runStart;
+  private long runStartNanos;
+  private long sent;
+  private boolean sending;
+
+  static Behavior<Command> create(ActorRef<HttpServer.Statistics> httpServerActor) {
+    return Behaviors.setup(actorContext ->
+        Behaviors.withTimers(timers -> new LoadGeneratorActor(actorContext, timers, httpServerActor)));
+  }
+
+  private LoadGeneratorActor(ActorContext<Command> actorContext, TimerScheduler<Command> timers, ActorRef<HttpServer.Statistics> httpServerActor) {
+    super(actorContext);
+    this.httpServerActor = httpServerActor;
+    this.timers = timers;
+    clusterSharding = ClusterSharding.get(actorContext.getSystem());
+    settings = new Settings(actorContext.getSystem().settings().config());
+    keyDistribution = KeyDistribution.create(settings);
+    nodePort = actorContext.getSystem().address().getPort().orElse(-1);
+
+    timers.startTimerAtFixedRate(Tick.ticktock, settings.tickInterval);
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(Tick.class, t -> onTick())
+        .onMessage(Finish.class, f -> onFinish())
+        .onMessage(Report.class, r -> onReport())
+        .build();
+  }
+
+  private Behavior<Command> onTick() {
+    if (runStart == null) {
+      if (iAmUp()) {
+        startRun();
+      }
+      return this;
+    }
+    final var now = System.nanoTime();
+    while (sending && intendedNanos(sent) <= now) {
+      send(intendedNanos(sent));
+      ++sent;
+    }
+    return this;
+  }
+
+  private void startRun() {
+    runStart = Instant.now();
+    runStartNanos = System.nanoTime();
+    sending = true;
+    log().info("Load generator started, {}/s, {} keys {}, read fraction {}, for {}",
+        settings.targetRate, settings.keyspace, settings.keyDistribution, settings.readFraction, settings.duration);
+    timers.startSingleTimer(Finish.Instance, settings.duration);
+  }
+
+  private long intendedNanos(long request) {
+    return runStartNanos + (long) (request * 1_000_000_000.0 / settings.targetRate);
+  }
+
+  private void send(long intendedNanos) {
+    final var entityId = EntityActor.entityId(nodePort, keyDistribution.next(random));
+    final var id = new EntityActor.Id(entityId);
+    final var entityRef = clusterSharding.entityRefFor(EntityActor.entityTypeKey, entityId);
+    final var read = random.nextDouble() < settings.readFraction;
+    final var latency = read ? readLatency : writeLatency;
+
+    (read
+        ? entityRef.<EntityActor.Command>ask(replyTo -> new EntityActor.GetValue(id, replyTo), settings.requestTimeout)
+        : entityRef.<EntityActor.Command>ask(replyTo -> new EntityActor.ChangeValue(id, new EntityActor.Value(new Date()), replyTo), settings.requestTimeout))
+        .whenComplete((reply, error) -> {
+          latency.recordValue(Math.max(0, (System.nanoTime() - intendedNanos) / 1000));
+          if (error == null) {
+            completed.increment();
+          } else {
+            failed.increment();
+          }
+        });
+  }
+
+  private Behavior<Command> onFinish() {
+    sending = false;
+    timers.cancel(Tick.ticktock);
+    timers.startSingleTimer(Report.Instance, settings.requestTimeout);
+    return this;
+  }
+
+  private Behavior<Command> onReport() {
+    final var seconds = settings.duration.toMillis() / 1000.0;
+    final var report = new LoadGeneratorReport(runStart.toString(), seconds, settings.targetRate, settings.keyDistribution,
+        settings.keyspace, settings.readFraction, sent, completed.sum(), failed.sum(), completed.sum() / seconds,
+        LoadGeneratorReport.latencies(readLatency.getIntervalHistogram(), writeLatency.getIntervalHistogram()));
+
+    System.out.println(report.toText());
+    httpServerActor.tell(report);
+    return Behaviors.stopped();
+  }
+
+  private boolean iAmUp() {
+    return Cluster.get(getContext().getSystem()).selfMember().status().equals(MemberStatus.up());
+  }
+
+  private Logger log() {
+    return getContext().getLog();
+  }
+
+  interface Command {
+  }
+
+  enum Tick implements Command {
+    ticktock
+  }
+
+  enum Finish implements Command {
+    Instance
+  }
+
+  enum Report implements Command {
+    Instance
+  }
+
+  static class Settings {
+    final double targetRate;
+    final double readFraction;
+    final int keyspace;
+    final String keyDistribution;
+    final double zipfianTheta;
+    final double hotspotKeyFraction;
+    final double hotspotRequestFraction;
+    final Duration duration;
+    final Duration requestTimeout;
+    final Duration tickInterval;
+
+    Settings(Config config) {
+      targetRate = config.getDouble("load-generator.target-rate");
+      readFraction = config.getDouble("load-generator.read-fraction");
+      keyspace = config.getInt("load-generator.keyspace");
+      keyDistribution = config.getString("load-generator.key-distribution");
+      zipfianTheta = config.getDouble("load-generator.zipfian-theta");
+      hotspotKeyFraction = config.getDouble("load-generator.hotspot-key-fraction");
+      hotspotRequestFraction = config.getDouble("load-generator.hotspot-request-fraction");
+      duration = Duration.parse(config.getString("load-generator.duration-iso-8601"));
+      requestTimeout = Duration.parse(config.getString("load-generator.request-timeout-iso-8601"));
+      tickInterval = Duration.parse(config.getString("load-generator.tick-interval-iso-8601"));
+    }
+  }
+
+  interface KeyDistribution {
+    int next(SplittableRandom random);
+
+    static KeyDistribution create(Settings settings) {
+      switch (settings.keyDistribution) {
+      case "uniform":
+        return random -> random.nextInt(settings.keyspace);
+      case "zipfian":
+        return new Zipfian(settings.keyspace, settings.zipfianTheta);
+      case "hotspot":
+        return new Hotspot(settings.keyspace, settings.hotspotKeyFraction, settings.hotspotRequestFraction);
+      default:
+        throw new IllegalArgumentException(String.format("Unknown key distribution '%s', use uniform, zipfian or hotspot", settings.keyDistribution));
+      }
+    }
+  }
+
+  // Gray et al., "Quickly generating billion-record synthetic databases", key 0 is the most popular
+  static class Zipfian implements KeyDistribution {
+    private final int keys;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    Zipfian(int keys, double theta) {
+      this.keys = keys;
+      this.theta = theta;
+      zetaN = zeta(keys, theta);
+      alpha = 1.0 / (1.0 - theta);
+      eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    private static double zeta(int n, double theta) {
+      double sum = 0;
+      for (int i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      return sum;
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+      final var u = random.nextDouble();
+      final var uz = u * zetaN;
+      if (uz < 1.0) {
+        return 0;
+      }
+      if (uz < 1.0 + Math.pow(0.5, theta)) {
+        return Math.min(1, keys - 1);
+      }
+      return Math.min(keys - 1, (int) (keys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+  }
+
+  static class Hotspot implements KeyDistribution {
+    private final int keys;
+    private final int hotKeys;
+    private final double hotRequestFraction;
+
+    Hotspot(int keys, double hotKeyFraction, double hotRequestFraction) {
+      this.keys = keys;
+      this.hotKeys = Math.max(1, (int) (keys * hotKeyFraction));
+      this.hotRequestFraction = hotRequestFraction;
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+      return random.nextDouble() < hotRequestFraction || hotKeys == keys
+          ? random.nextInt(hotKeys)
+          : hotKeys + random.nextInt(keys - hotKeys);
+    }
+  }
+
+  public static class LoadGeneratorReport implements HttpServer.Statistics {
+    public final String start;
+    public final double durationSeconds;
+    public final double targetRate;
+    public final String keyDistribution;
+    public final int keyspace;
+    public final double readFraction;
+    public final long sent;
+    public final long completed;
+    public final long failed;
+    public final double throughput;
+    public final Map<String, Latency> latencies;
+
+    @JsonCreator
+    public LoadGeneratorReport(String start, double durationSeconds, double targetRate, String keyDistribution, int keyspace, double readFraction,
+        long sent, long completed, long failed, double throughput, Map<String, Latency> latencies) {
+      this.start = start;
+      this.durationSeconds = durationSeconds;
+      this.targetRate = targetRate;
+      this.keyDistribution = keyDistribution;
+      this.keyspace = keyspace;
+      this.readFraction = readFraction;
+      this.sent = sent;
+      this.completed = completed;
+      this.failed = failed;
+      this.throughput = throughput;
+      this.latencies = latencies;
+    }
+
+    static Map<String, Latency> latencies(Histogram reads, Histogram writes) {
+      final var all = reads.copy();
+      all.add(writes);
+      final var latencies = new LinkedHashMap<String, Latency>();
+      latencies.put("all", new Latency(all));
+      latencies.put("read", new Latency(reads));
+      latencies.put("write", new Latency(writes));
+      return latencies;
+    }
+
+    String toJson() {
+      final var ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
+      try {
+        return ow.writeValueAsString(this);
+      } catch (JsonProcessingException e) {
+        return String.format("{ \"error\" : \"%s\" }", e.getMessage());
+      }
+    }
+
+    String toText() {
+      final var text = new StringBuilder(String.format("Load generator run %s, %.1fs, target %,.0f/s, %s over %,d keys, %.0f%% reads%n",
+          start, durationSeconds, targetRate, keyDistribution, keyspace, readFraction * 100));
+      text.append(String.format("  sent %,d, completed %,d, failed %,d, throughput %,.1f/s%n", sent, completed, failed, throughput));
+      latencies.forEach((operation, latency) -> text.append(String.format("  %-5s %s%n", operation, latency)));
+      return text.toString();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %,d, %,.1f/s]", getClass().getSimpleName(), start, completed, throughput);
+    }
+  }
+
+  public static class Latency implements CborSerializable {
+    public final long count;
+    public final double p50Ms;
+    public final double p99Ms;
+    public final double p999Ms;
+    public final double maxMs;
+    public final double sumMs;
+
+    @JsonCreator
+    public Latency(long count, double p50Ms, double p99Ms, double p999Ms, double maxMs, double sumMs) {
+      this.count = count;
+      this.p50Ms = p50Ms;
+      this.p99Ms = p99Ms;
+      this.p999Ms = p999Ms;
+      this.maxMs = maxMs;
+      this.sumMs = sumMs;
+    }
+
+    // The sum comes from the histogram's mean, so it is as precise as the histogram's buckets.
+    Latency(AbstractHistogram histogram) {
+      this(histogram.getTotalCount(),
+          histogram.getValueAtPercentile(50.0) / 1000.0,
+          histogram.getValueAtPercentile(99.0) / 1000.0,
+          histogram.getValueAtPercentile(99.9) / 1000.0,
+          histogram.getMaxValue() / 1000.0,
+          histogram.getMean() * histogram.getTotalCount() / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count %,d, p50 %.3fms, p99 %.3fms, p999 %.3fms, max %.3fms", count, p50Ms, p99Ms, p999Ms, maxMs);
+    }
+  }
+}
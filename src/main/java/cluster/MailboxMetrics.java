@@ -0,0 +1,145 @@
+package cluster;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.AtomicHistogram;
+import org.HdrHistogram.Histogram;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+
+/**
+ * Per actor system registry of the InstrumentedMailbox measurements, keyed by actor type. Each
+ * actor type has HDR histograms for the time messages wait in the mailbox, the time the actor spends
+ * on a message and the queue depth seen by each enqueue. They are written concurrently by every
+ * mailbox of the type. AtomicHistograms take two atomic increments per value where a Recorder takes
+ * several more for its phasers, and the interval histograms are the difference between a copy and
+ * the previous copy, so snapshot() should only be called from one place, the HttpServerActor
+ * metrics refresh. A copy taken while values are recorded may be off by those few values.
+ */
+class MailboxMetrics implements Extension {
+  private static final long highestTrackableMicros = TimeUnit.MINUTES.toMicros(1);
+  private static final long highestTrackableDepth = 10_000_000;
+  private static final Id id = new Id();
+  private final Map<String, ActorType> actorTypes = new ConcurrentHashMap<>();
+
+  static MailboxMetrics get(akka.actor.ActorSystem actorSystem) {
+    return id.get(actorSystem);
+  }
+
+  static MailboxMetrics get(ActorSystem<?> actorSystem) {
+    return get(Adapter.toClassic(actorSystem));
+  }
+
+  ActorType actorType(String name) {
+    return actorTypes.computeIfAbsent(name, ActorType::new);
+  }
+
+  Map<String, Snapshot> snapshot() {
+    final var snapshot = new TreeMap<String, Snapshot>();
+    actorTypes.forEach((name, actorType) -> snapshot.put(name, actorType.snapshot()));
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  static class ActorType {
+    final String name;
+    private final LongAdder messages = new LongAdder();
+    private final Interval waitMicros = new Interval(highestTrackableMicros);
+    private final Interval processingMicros = new Interval(highestTrackableMicros);
+    private final Interval depth = new Interval(highestTrackableDepth);
+
+    ActorType(String name) {
+      this.name = name;
+    }
+
+    void enqueued(int depth) {
+      this.depth.values.recordValue(Math.min(highestTrackableDepth, depth));
+    }
+
+    void dequeued(long waitNanos) {
+      messages.increment();
+      waitMicros.values.recordValue(micros(waitNanos));
+    }
+
+    void processed(long processingNanos) {
+      processingMicros.values.recordValue(micros(processingNanos));
+    }
+
+    private synchronized Snapshot snapshot() {
+      final var depthInterval = depth.next();
+      return new Snapshot(messages.sum(), new LoadGeneratorActor.Latency(waitMicros.next()), new LoadGeneratorActor.Latency(processingMicros.next()),
+          depthInterval.getValueAtPercentile(50.0), depthInterval.getValueAtPercentile(99.0), depthInterval.getMaxValue(),
+          depthInterval.getTotalCount(), depthInterval.getMean() * depthInterval.getTotalCount());
+    }
+
+    private static long micros(long nanos) {
+      return Math.min(highestTrackableMicros, Math.max(0, nanos / 1000));
+    }
+  }
+
+  private static class Interval {
+    final AtomicHistogram values;
+    private final Histogram previous;
+    private final Histogram interval;
+
+    Interval(long highestTrackableValue) {
+      values = new AtomicHistogram(highestTrackableValue, 2);
+      previous = new Histogram(highestTrackableValue, 2);
+      interval = new Histogram(highestTrackableValue, 2);
+    }
+
+    // The max of the interval is the bucket max, the exact max is lost by the subtraction.
+    Histogram next() {
+      final var current = new Histogram(values.getHighestTrackableValue(), 2);
+      values.copyInto(current);
+      current.copyInto(interval);
+      interval.subtract(previous);
+      current.copyInto(previous);
+      return interval;
+    }
+  }
+
+  static class Snapshot {
+    public final long messages;
+    public final LoadGeneratorActor.Latency mailboxWait;
+    public final LoadGeneratorActor.Latency processing;
+    public final long depthP50;
+    public final long depthP99;
+    public final long depthMax;
+    public final long depthCount;
+    public final double depthSum;
+
+    Snapshot(long messages, LoadGeneratorActor.Latency mailboxWait, LoadGeneratorActor.Latency processing, long depthP50, long depthP99, long depthMax,
+        long depthCount, double depthSum) {
+      this.messages = messages;
+      this.mailboxWait = mailboxWait;
+      this.processing = processing;
+      this.depthP50 = depthP50;
+      this.depthP99 = depthP99;
+      this.depthMax = depthMax;
+      this.depthCount = depthCount;
+      this.depthSum = depthSum;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%,d, wait %s, processing %s, depth p50 %d, p99 %d, max %d]", getClass().getSimpleName(),
+          messages, mailboxWait, processing, depthP50, depthP99, depthMax);
+    }
+  }
+
+  private static class Id extends AbstractExtensionId<MailboxMetrics> {
+    @Override
+    public MailboxMetrics createExtension(ExtendedActorSystem system) {
+      return new MailboxMetrics();
+    }
+  }
+}
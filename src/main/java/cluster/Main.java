@@ -1,5 +1,6 @@
 package cluster;
 
+import java.time.Duration;
 import java.util.Arrays;
 
 import com.typesafe.config.Config;
@@ -8,11 +9,14 @@ import com.typesafe.config.ConfigFactory;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
 import akka.actor.typed.Terminated;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.typed.Cluster;
 import akka.management.javadsl.AkkaManagement;
 
 class Main {
@@ -29,14 +33,30 @@ class Main {
   private static void bootstrap(final ActorContext<Void> context) {
     context.spawn(ClusterListenerActor.create(), "clusterListener");
 
-    final var httpServerActorRef = context.spawn(HttpServerActor.create(), HttpServerActor.class.getSimpleName());
+    final var entityPassivation = EntityPassivation.create(context.getSystem().settings().config());
+    final var shardLoad = shardLoad(context.getSystem());
+    final var changeFeed = ChangeFeed.create(context.getSystem().settings().config());
+    final var activeEntities = new ActiveEntities();
+    context.spawn(ChangeFeedActor.create(changeFeed), ChangeFeedActor.class.getSimpleName());
+    final var httpServerActorRef = context.spawn(HttpServerActor.create(entityPassivation, shardLoad, changeFeed, activeEntities), HttpServerActor.class.getSimpleName(),
+        mailbox(context.getSystem().settings().config(), "http-server-actor"));
 
     context.spawn(ClusterAwareActor.create(httpServerActorRef), ClusterAwareActor.class.getSimpleName());
-    context.spawn(ClusterSingletonAwareActor.create(httpServerActorRef), ClusterSingletonAwareActor.class.getSimpleName());
-    context.spawn(EntityCommandActor.create(), EntityCommandActor.class.getSimpleName());
-    context.spawn(EntityQueryActor.create(), EntityQueryActor.class.getSimpleName());
+    if ("crdt".equals(context.getSystem().settings().config().getString("singleton-aware.ping-counter"))) {
+      context.spawn(ReplicatedPingCounterActor.create(httpServerActorRef), ReplicatedPingCounterActor.class.getSimpleName());
+    } else {
+      context.spawn(ClusterSingletonAwareActor.create(httpServerActorRef), ClusterSingletonAwareActor.class.getSimpleName());
+    }
+    if (context.getSystem().settings().config().getBoolean("load-generator.enabled")) {
+      context.spawn(LoadGeneratorActor.create(httpServerActorRef), LoadGeneratorActor.class.getSimpleName());
+    } else {
+      context.spawn(EntityCommandActor.create(), EntityCommandActor.class.getSimpleName());
+      context.spawn(EntityQueryActor.create(activeEntities), EntityQueryActor.class.getSimpleName());
+    }
 
-    startClusterSharding(context.getSystem(), httpServerActorRef);
+    context.spawn(ShardLoadActor.create(shardLoad), ShardLoadActor.class.getSimpleName());
+
+    startClusterSharding(context.getSystem(), httpServerActorRef, shardLoad, entityPassivation, changeFeed, activeEntities);
   }
 
   public static void main(String[] args) {
@@ -48,32 +68,57 @@ class Main {
     AkkaManagement.get(actorSystem).start();
   }
 
-  private static Config setupClusterNodeConfig(String port) {
+  static Config setupClusterNodeConfig(String port) {
     final var config = ConfigFactory.load();
     final var useLocalhost2 = config.getBoolean("useLocalhost2");
+    final var nodePort = Integer.parseInt(port);
 
     final var localhost1 = "127.0.0.1";
     final var localhost2 = "127.0.0.2";
-    final var hostname = useLocalhost2 && port.compareTo("2555") > 0 ? localhost2 : localhost1;
+    final var hostname = useLocalhost2 && nodePort > 2555 ? localhost2 : localhost1;
     return ConfigFactory
         .parseString(String.format("akka.remote.artery.canonical.hostname = \"%s\"%n", hostname)
             + String.format("akka.remote.artery.canonical.port=%s%n", port)
             + String.format("akka.management.http.hostname = \"%s\"%n", "127.0.0.1")
-            + String.format("akka.management.http.port=%s%n", port.replace("255", "855"))
+            + String.format("akka.management.http.port=%d%n", nodePort + config.getInt("management-port-offset"))
             + String.format("akka.management.http.route-providers-read-only = %s%n", "false")
             + String.format("akka.remote.artery.advanced.tcp.outbound-client-hostname = %s%n", hostname))
         .withFallback(config);
   }
 
-  private static void startClusterSharding(final ActorSystem<?> actorSystem, ActorRef<HttpServer.Statistics> httpServerActorRef) {
+  // The actor type's instrumented-mailbox section when instrumented mailboxes are enabled, else the default mailbox.
+  static Props mailbox(Config config, String actorType) {
+    return config.getBoolean("instrumented-mailbox.enabled")
+        ? MailboxSelector.fromConfig("instrumented-mailbox." + actorType)
+        : MailboxSelector.defaultMailbox();
+  }
+
+  static ShardLoad shardLoad(ActorSystem<?> actorSystem) {
+    final var reportInterval = Duration.parse(actorSystem.settings().config().getString("shard-allocation.report-interval-iso-8601"));
+    return new ShardLoad(reportInterval.multipliedBy(3).toNanos());
+  }
+
+  static void startClusterSharding(final ActorSystem<?> actorSystem, ActorRef<HttpServer.Statistics> httpServerActorRef, ShardLoad shardLoad,
+      EntityPassivation entityPassivation, ChangeFeed changeFeed, ActiveEntities activeEntities) {
     final var clusterSharding = ClusterSharding.get(actorSystem);
-    clusterSharding.init(
-      Entity.of(
+    final var config = actorSystem.settings().config();
+    final var messageExtractor = EntityActor.messageExtractor(actorSystem);
+    final var hotPathLog = HotPathLog.create(config);
+    final var stateStore = EntityStateStore.create(actorSystem);
+    var entity = Entity.of(
         EntityActor.entityTypeKey,
         entityContext ->
-          EntityActor.create(entityContext.getEntityId(), httpServerActorRef)
+          ShardBatchActor.isBatchEntityId(entityContext.getEntityId())
+            ? ShardBatchActor.create(messageExtractor.shardId(entityContext.getEntityId()), entityContext.getShard(), activeEntities, stateStore)
+            : EntityActor.create(entityContext.getEntityId(), messageExtractor.shardId(entityContext.getEntityId()), entityContext.getShard(),
+                httpServerActorRef, shardLoad, entityPassivation, hotPathLog, changeFeed, activeEntities, stateStore)
       )
-      .withStopMessage(EntityActor.Passivate.INSTANCE)
-    );
+      .withMessageExtractor(messageExtractor)
+      .withEntityProps(mailbox(config, "entity-actor"))
+      .withStopMessage(EntityActor.Passivate.INSTANCE);
+    if ("load-aware".equals(config.getString("shard-allocation.strategy"))) {
+      entity = entity.withAllocationStrategy(LoadAwareShardAllocationStrategy.create(config, shardLoad, Cluster.get(actorSystem).selfMember().address()));
+    }
+    clusterSharding.init(entity);
   }
 }
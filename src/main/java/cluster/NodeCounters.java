@@ -0,0 +1,70 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Per member counters keyed by member address. A member gets a slot in a primitive array the first
+ * time it is counted and gives it back when it is no longer in the membership, so the size follows
+ * the cluster instead of a fixed range of ports.
+ */
+class NodeCounters {
+  private final Map<String, Integer> slots = new HashMap<>();
+  private final ArrayList<Integer> freeSlots = new ArrayList<>();
+  private long[] counts = new long[16];
+  private long total;
+
+  void increment(String member) {
+    var slot = slots.get(member);
+    if (slot == null) {
+      slot = allocate();
+      slots.put(member, slot);
+    }
+    ++counts[slot];
+    ++total;
+  }
+
+  long count(String member) {
+    final var slot = slots.get(member);
+    return slot == null ? 0 : counts[slot];
+  }
+
+  long total() {
+    return total;
+  }
+
+  // Drops the counters of members that are not in the given membership.
+  void retain(Set<String> members) {
+    slots.entrySet().removeIf(entry -> {
+      if (members.contains(entry.getKey())) {
+        return false;
+      }
+      counts[entry.getValue()] = 0;
+      freeSlots.add(entry.getValue());
+      return true;
+    });
+  }
+
+  Map<String, Long> snapshot() {
+    final var snapshot = new TreeMap<String, Long>();
+    slots.forEach((member, slot) -> snapshot.put(member, counts[slot]));
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  private int allocate() {
+    if (!freeSlots.isEmpty()) {
+      return freeSlots.remove(freeSlots.size() - 1);
+    }
+    final var slot = slots.size();
+    if (slot == counts.length) {
+      final var grown = new long[counts.length * 2];
+      System.arraycopy(counts, 0, grown, 0, counts.length);
+      counts = grown;
+    }
+    return slot;
+  }
+}
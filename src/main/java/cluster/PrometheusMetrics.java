@@ -0,0 +1,276 @@
+package cluster;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import akka.actor.typed.ActorSystem;
+import akka.cluster.Member;
+import akka.cluster.sharding.ShardRegion;
+import akka.cluster.typed.Cluster;
+
+/**
+ * Renders this node's metrics in the Prometheus text exposition format for the /metrics route.
+ * Nothing is collected on a scrape: the HttpServerActor refreshes the shard region state, cluster
+ * sharding stats, its own mailbox delay and the instrumented mailbox histograms on a timer, and the
+ * remaining values are counters and statistics that are already kept. Rendering appends into one
+ * reused StringBuilder without formatting or streams. A scrape still allocates the resulting
+ * String, the cluster state's member set and a map of member counts by status, the passivation
+ * counters, and the lambdas and iterators that walk the kept maps, all small next to the String.
+ */
+class PrometheusMetrics {
+  private final ActorSystem<?> actorSystem;
+  private final EntityPassivation entityPassivation;
+  private final ShardLoad shardLoad;
+  private final StringBuilder text = new StringBuilder(16 * 1024);
+  private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+  private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+  private final RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+  private final List<GarbageCollectorMXBean> garbageCollectorMXBeans = ManagementFactory.getGarbageCollectorMXBeans();
+  private volatile Map<String, Integer> regionShardEntities = Map.of();
+  private volatile Map<String, Map<String, Integer>> clusterShardEntities = Map.of();
+  private volatile long httpServerActorMailboxDelayNanos;
+  private volatile Map<String, MailboxMetrics.Snapshot> mailboxes = Map.of();
+
+  PrometheusMetrics(ActorSystem<?> actorSystem, EntityPassivation entityPassivation, ShardLoad shardLoad) {
+    this.actorSystem = actorSystem;
+    this.entityPassivation = entityPassivation;
+    this.shardLoad = shardLoad;
+  }
+
+  void load(ShardRegion.CurrentShardRegionState currentShardRegionState) {
+    final var shardEntities = new HashMap<String, Integer>();
+    currentShardRegionState.getShards().forEach(shardState -> shardEntities.put(shardState.shardId(), shardState.getEntityIds().size()));
+    regionShardEntities = shardEntities;
+  }
+
+  void load(ShardRegion.ClusterShardingStats clusterShardingStats) {
+    final var regions = new HashMap<String, Map<String, Integer>>();
+    clusterShardingStats.getRegions().forEach((address, shardRegionStats) -> {
+      final var shards = new HashMap<String, Integer>();
+      shardRegionStats.getStats().forEach((shardId, entities) -> shards.put(shardId, ((Number) entities).intValue()));
+      regions.put(address.toString(), shards);
+    });
+    clusterShardEntities = regions;
+  }
+
+  void load(Map<String, MailboxMetrics.Snapshot> mailboxes) {
+    this.mailboxes = mailboxes;
+  }
+
+  void httpServerActorMailboxDelay(long nanos) {
+    httpServerActorMailboxDelayNanos = nanos;
+  }
+
+  synchronized String render(HttpServer.ClusterAwareStatistics clusterAwareStatistics, HttpServer.SingletonAwareStatistics singletonAwareStatistics) {
+    text.setLength(0);
+    renderMembers();
+    renderSharding();
+    renderPassivation();
+    renderPings(clusterAwareStatistics, singletonAwareStatistics);
+    renderMailboxes();
+    renderJvm();
+    return text.toString();
+  }
+
+  private void renderMembers() {
+    final var counts = new HashMap<String, Integer>();
+    final var state = Cluster.get(actorSystem).state();
+    for (final Member member : state.getMembers()) {
+      counts.merge(member.status().toString().toLowerCase(), 1, Integer::sum);
+    }
+    header("cluster_members", "gauge", "Cluster members seen by this node by member status");
+    counts.forEach((status, count) -> sample("cluster_members", "status", status, count));
+    header("cluster_unreachable_members", "gauge", "Cluster members this node's failure detector marks unreachable");
+    sample("cluster_unreachable_members", state.getUnreachable().size());
+    header("cluster_leader", "gauge", "1 when this node is the cluster leader");
+    sample("cluster_leader", Cluster.get(actorSystem).selfMember().address().equals(state.getLeader()) ? 1 : 0);
+  }
+
+  private void renderSharding() {
+    header("entity_messages_total", "counter", "Messages handled by entity actors on this node");
+    sample("entity_messages_total", shardLoad.totalMessages());
+
+    header("shard_message_rate", "gauge", "Smoothed messages per second per shard as reported by each member, as used for shard allocation");
+    shardLoad.forEachRate((member, shardId, rate) -> sample("shard_message_rate", "member", member, "shard", shardId, rate));
+
+    final var regionShardEntities = this.regionShardEntities;
+    int regionEntities = 0;
+    header("region_shard_entities", "gauge", "Active entities per shard in this node's shard region");
+    for (final var shard : regionShardEntities.entrySet()) {
+      sample("region_shard_entities", "shard", shard.getKey(), shard.getValue());
+      regionEntities += shard.getValue();
+    }
+    header("region_shards", "gauge", "Shards hosted by this node's shard region");
+    sample("region_shards", regionShardEntities.size());
+    header("region_entities", "gauge", "Active entities in this node's shard region");
+    sample("region_entities", regionEntities);
+
+    header("sharding_shard_entities", "gauge", "Active entities per shard and region from cluster sharding stats");
+    clusterShardEntities.forEach((region, shards) ->
+        shards.forEach((shardId, entities) -> sample("sharding_shard_entities", "region", region, "shard", shardId, entities)));
+  }
+
+  private void renderPassivation() {
+    final var counters = entityPassivation.counters();
+    header("entity_passivation_active_entities", "gauge", "Entities tracked by the passivation policy");
+    sample("entity_passivation_active_entities", "strategy", counters.strategy, counters.activeEntities);
+    header("entity_passivation_active_entity_limit", "gauge", "Active entity limit of this node's shard region");
+    sample("entity_passivation_active_entity_limit", "strategy", counters.strategy, counters.activeEntityLimit);
+    header("entity_passivation_hits_total", "counter", "Entity messages to an already active entity");
+    sample("entity_passivation_hits_total", "strategy", counters.strategy, counters.hits);
+    header("entity_passivation_misses_total", "counter", "Entity messages that activated an entity");
+    sample("entity_passivation_misses_total", "strategy", counters.strategy, counters.misses);
+    header("entity_passivation_evictions_total", "counter", "Entities passivated by the policy to stay within the limit");
+    sample("entity_passivation_evictions_total", "strategy", counters.strategy, counters.evictions);
+  }
+
+  private void renderPings(HttpServer.ClusterAwareStatistics clusterAwareStatistics, HttpServer.SingletonAwareStatistics singletonAwareStatistics) {
+    header("http_server_actor_mailbox_delay_seconds", "gauge", "Time the last probe message spent in the HttpServerActor mailbox");
+    sample("http_server_actor_mailbox_delay_seconds", httpServerActorMailboxDelayNanos / 1e9);
+
+    if (clusterAwareStatistics != null) {
+      header("cluster_aware_pings_total", "counter", "Pings received from cluster aware actors on other nodes");
+      sample("cluster_aware_pings_total", clusterAwareStatistics.totalPings);
+      header("cluster_aware_member_pings_total", "counter", "Pings received per sending member");
+      clusterAwareStatistics.nodePings.forEach((member, pings) -> sample("cluster_aware_member_pings_total", "member", member, pings));
+      header("cluster_aware_ping_rate", "gauge", "Pings per second over the sliding window and the 1, 5 and 15 minute moving averages");
+      rates("cluster_aware_ping_rate", clusterAwareStatistics.pingRates);
+      header("cluster_aware_round_trip_seconds", "summary", "Ping round trip time per peer member over the last window");
+      clusterAwareStatistics.nodeRoundTripTimes.forEach((member, latency) -> {
+        sample("cluster_aware_round_trip_seconds", "member", member, "quantile", "0.5", latency.p50Ms / 1000);
+        sample("cluster_aware_round_trip_seconds", "member", member, "quantile", "0.99", latency.p99Ms / 1000);
+        sample("cluster_aware_round_trip_seconds", "member", member, "quantile", "0.999", latency.p999Ms / 1000);
+        sample("cluster_aware_round_trip_seconds", "member", member, "quantile", "1", latency.maxMs / 1000);
+        sample("cluster_aware_round_trip_seconds_sum", "member", member, latency.sumMs / 1000);
+        sample("cluster_aware_round_trip_seconds_count", "member", member, latency.count);
+      });
+    }
+
+    if (singletonAwareStatistics != null) {
+      header("singleton_aware_pings_total", "counter", "Pings counted by the singleton or the replicated ping counter");
+      sample("singleton_aware_pings_total", singletonAwareStatistics.totalPings);
+      header("singleton_aware_member_pings_total", "counter", "Pings counted per sending member");
+      singletonAwareStatistics.nodePings.forEach((member, pings) -> sample("singleton_aware_member_pings_total", "member", member, pings));
+      header("singleton_aware_ping_rate", "gauge", "Pings per second over the sliding window and the 1, 5 and 15 minute moving averages");
+      rates("singleton_aware_ping_rate", singletonAwareStatistics.pingRates);
+    }
+  }
+
+  // Empty unless instrumented-mailbox.enabled, the summaries cover one metrics refresh interval.
+  private void renderMailboxes() {
+    final var mailboxes = this.mailboxes;
+    if (mailboxes.isEmpty()) {
+      return;
+    }
+    header("mailbox_messages_total", "counter", "Messages dequeued from instrumented mailboxes per actor type");
+    mailboxes.forEach((actorType, mailbox) -> sample("mailbox_messages_total", "actor_type", actorType, mailbox.messages));
+    header("mailbox_wait_seconds", "summary", "Time messages waited in the mailbox per actor type");
+    mailboxes.forEach((actorType, mailbox) -> summary("mailbox_wait_seconds", actorType, mailbox.mailboxWait));
+    header("mailbox_processing_seconds", "summary", "Time the actor spent on a message per actor type");
+    mailboxes.forEach((actorType, mailbox) -> summary("mailbox_processing_seconds", actorType, mailbox.processing));
+    header("mailbox_depth", "summary", "Mailbox queue depth seen by each enqueue per actor type");
+    mailboxes.forEach((actorType, mailbox) -> {
+      sample("mailbox_depth", "actor_type", actorType, "quantile", "0.5", mailbox.depthP50);
+      sample("mailbox_depth", "actor_type", actorType, "quantile", "0.99", mailbox.depthP99);
+      sample("mailbox_depth", "actor_type", actorType, "quantile", "1", mailbox.depthMax);
+      sample("mailbox_depth_sum", "actor_type", actorType, mailbox.depthSum);
+      sample("mailbox_depth_count", "actor_type", actorType, mailbox.depthCount);
+    });
+  }
+
+  private void summary(String name, String actorType, LoadGeneratorActor.Latency latency) {
+    sample(name, "actor_type", actorType, "quantile", "0.5", latency.p50Ms / 1000);
+    sample(name, "actor_type", actorType, "quantile", "0.99", latency.p99Ms / 1000);
+    sample(name, "actor_type", actorType, "quantile", "0.999", latency.p999Ms / 1000);
+    sample(name, "actor_type", actorType, "quantile", "1", latency.maxMs / 1000);
+    sample(name + "_sum", "actor_type", actorType, latency.sumMs / 1000);
+    sample(name + "_count", "actor_type", actorType, latency.count);
+  }
+
+  private void renderJvm() {
+    final var heap = memoryMXBean.getHeapMemoryUsage();
+    header("jvm_memory_heap_used_bytes", "gauge", "Used heap");
+    sample("jvm_memory_heap_used_bytes", heap.getUsed());
+    header("jvm_memory_heap_committed_bytes", "gauge", "Committed heap");
+    sample("jvm_memory_heap_committed_bytes", heap.getCommitted());
+    header("jvm_memory_heap_max_bytes", "gauge", "Max heap");
+    sample("jvm_memory_heap_max_bytes", heap.getMax());
+    header("jvm_memory_non_heap_used_bytes", "gauge", "Used non heap memory");
+    sample("jvm_memory_non_heap_used_bytes", memoryMXBean.getNonHeapMemoryUsage().getUsed());
+
+    header("jvm_gc_collections_total", "counter", "Garbage collections per collector");
+    for (final var gc : garbageCollectorMXBeans) {
+      sample("jvm_gc_collections_total", "gc", gc.getName(), gc.getCollectionCount());
+    }
+    header("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection per collector");
+    for (final var gc : garbageCollectorMXBeans) {
+      sample("jvm_gc_collection_seconds_total", "gc", gc.getName(), gc.getCollectionTime() / 1000.0);
+    }
+
+    header("jvm_threads", "gauge", "Live threads");
+    sample("jvm_threads", threadMXBean.getThreadCount());
+    header("process_uptime_seconds", "gauge", "JVM uptime");
+    sample("process_uptime_seconds", runtimeMXBean.getUptime() / 1000.0);
+  }
+
+  private void rates(String name, RateMeter.Rates rates) {
+    sample(name, "window", "sliding", rates.windowPs);
+    sample(name, "window", "1m", rates.oneMinutePs);
+    sample(name, "window", "5m", rates.fiveMinutesPs);
+    sample(name, "window", "15m", rates.fifteenMinutesPs);
+  }
+
+  private void header(String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(String name, long value) {
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  private void sample(String name, double value) {
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  private void sample(String name, String label, String labelValue, long value) {
+    labels(name, label, labelValue).append("} ").append(value).append('\n');
+  }
+
+  private void sample(String name, String label, String labelValue, double value) {
+    labels(name, label, labelValue).append("} ").append(value).append('\n');
+  }
+
+  private void sample(String name, String label1, String labelValue1, String label2, String labelValue2, long value) {
+    label(labels(name, label1, labelValue1).append(','), label2, labelValue2).append("} ").append(value).append('\n');
+  }
+
+  private void sample(String name, String label1, String labelValue1, String label2, String labelValue2, double value) {
+    label(labels(name, label1, labelValue1).append(','), label2, labelValue2).append("} ").append(value).append('\n');
+  }
+
+  private StringBuilder labels(String name, String label, String labelValue) {
+    return label(text.append(name).append('{'), label, labelValue);
+  }
+
+  private static StringBuilder label(StringBuilder text, String label, String labelValue) {
+    text.append(label).append("=\"");
+    for (int i = 0; i < labelValue.length(); i++) {
+      final var c = labelValue.charAt(i);
+      if (c == '\\' || c == '"') {
+        text.append('\\').append(c);
+      } else if (c == '\n') {
+        text.append("\\n");
+      } else {
+        text.append(c);
+      }
+    }
+    return text.append('"');
+  }
+}
@@ -0,0 +1,114 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+/**
+ * Lock free meter with a total count, the rate over a short sliding window and 1, 5 and 15 minute
+ * exponentially weighted moving average rates. Marks go to a LongAdder and the window counter, the
+ * moving averages are advanced in 5 second ticks by whichever thread first sees a tick is due, so
+ * a meter that is marked or read at least every few seconds reports the current load instead of a
+ * lifetime average.
+ */
+class RateMeter {
+  private static final long tickNanos = TimeUnit.SECONDS.toNanos(5);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder uncounted = new LongAdder();
+  private final AtomicLong lastTick;
+  private final SlidingWindowCounter window;
+  private final MovingAverage oneMinute = new MovingAverage(1);
+  private final MovingAverage fiveMinutes = new MovingAverage(5);
+  private final MovingAverage fifteenMinutes = new MovingAverage(15);
+
+  // Window for the windowPs rate when none is given.
+  static final Duration defaultWindow = Duration.ofSeconds(10);
+
+  RateMeter() {
+    this(defaultWindow);
+  }
+
+  RateMeter(Duration window) {
+    this.window = new SlidingWindowCounter(window, 10);
+    lastTick = new AtomicLong(System.nanoTime());
+  }
+
+  void mark() {
+    mark(1);
+  }
+
+  void mark(long n) {
+    final var now = System.nanoTime();
+    tickIfDue(now);
+    count.add(n);
+    uncounted.add(n);
+    window.add(now, n);
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  Rates rates() {
+    final var now = System.nanoTime();
+    tickIfDue(now);
+    return new Rates(window.ratePerSecond(now), oneMinute.ratePerSecond, fiveMinutes.ratePerSecond, fifteenMinutes.ratePerSecond);
+  }
+
+  private void tickIfDue(long now) {
+    final var last = lastTick.get();
+    final var ticks = (now - last) / tickNanos;
+    if (ticks > 0 && lastTick.compareAndSet(last, last + ticks * tickNanos)) {
+      for (long tick = 0; tick < ticks; tick++) {
+        final var events = tick == 0 ? uncounted.sumThenReset() : 0;
+        oneMinute.tick(events);
+        fiveMinutes.tick(events);
+        fifteenMinutes.tick(events);
+      }
+    }
+  }
+
+  // Only the thread that won the tick updates the averages, readers see the last published rate.
+  private static class MovingAverage {
+    private final double alpha;
+    private volatile double ratePerSecond;
+    private boolean initialized;
+
+    MovingAverage(int minutes) {
+      alpha = 1 - Math.exp(-5.0 / 60 / minutes);
+    }
+
+    void tick(long events) {
+      final var instantRate = events / (tickNanos / 1e9);
+      if (initialized) {
+        ratePerSecond += alpha * (instantRate - ratePerSecond);
+      } else {
+        ratePerSecond = instantRate;
+        initialized = true;
+      }
+    }
+  }
+
+  public static class Rates implements CborSerializable {
+    public final double windowPs;
+    public final double oneMinutePs;
+    public final double fiveMinutesPs;
+    public final double fifteenMinutesPs;
+
+    @JsonCreator
+    public Rates(double windowPs, double oneMinutePs, double fiveMinutesPs, double fifteenMinutesPs) {
+      this.windowPs = windowPs;
+      this.oneMinutePs = oneMinutePs;
+      this.fiveMinutesPs = fiveMinutesPs;
+      this.fifteenMinutesPs = fifteenMinutesPs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%.1f/s, 1m %.1f/s, 5m %.1f/s, 15m %.1f/s]", getClass().getSimpleName(), windowPs, oneMinutePs, fiveMinutesPs, fifteenMinutesPs);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.ClusterEvent;
+import akka.cluster.MemberStatus;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.PNCounterMap;
+import akka.cluster.ddata.PNCounterMapKey;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Subscribe;
+
+/**
+ * Distributed Data alternative to the ClusterSingletonAwareActor pings. Instead of every node sending
+ * a ping to the singleton, each node counts its own pings in a replicated PNCounterMap keyed by member
+ * address plus a cluster wide total entry. Updates are local writes that the replicator gossips, and
+ * each node reads the merged counts from its own replica, so no node is a hotspot and the counts
+ * are not lost when the oldest node changes.
+ *
+ * The counts are published to the HTTP server as SingletonAwareStatistics so the dashboard shows
+ * both modes the same way, singleton-aware.ping-counter selects the mode.
+ */
+class ReplicatedPingCounterActor extends AbstractBehavior<ReplicatedPingCounterActor.Message> {
+  private static final Key<PNCounterMap<String>> pingCounterKey = PNCounterMapKey.create("singleton-aware-pings");
+  private static final String totalPingsEntry = "total";
+  private final ActorRef<HttpServer.Statistics> httpServerActor;
+  private final ActorRef<Replicator.Command> replicator;
+  private final SelfUniqueAddress selfUniqueAddress;
+  private final Duration tickInterval = Duration.ofMillis(25 + Math.round(50 * Math.random())); // avg 50ms per tick
+  private final String memberId;
+  private final RateMeter pings = new RateMeter();
+  private long lastTotalPings = -1;
+
+  static Behavior<Message> create(ActorRef<HttpServer.Statistics> httpServerActor) {
+    return Behaviors.setup(actorContext ->
+        Behaviors.withTimers(timers ->
+            DistributedData.<Message, PNCounterMap<String>>withReplicatorMessageAdapter(replicatorAdapter ->
+                new ReplicatedPingCounterActor(actorContext, timers, replicatorAdapter, httpServerActor))));
+  }
+
+  private ReplicatedPingCounterActor(ActorContext<Message> actorContext, TimerScheduler<Message> timers,
+      ReplicatorMessageAdapter<Message, PNCounterMap<String>> replicatorAdapter, ActorRef<HttpServer.Statistics> httpServerActor) {
+    super(actorContext);
+    this.httpServerActor = httpServerActor;
+    final var distributedData = DistributedData.get(actorContext.getSystem());
+    replicator = distributedData.replicator();
+    selfUniqueAddress = distributedData.selfUniqueAddress();
+    memberId = Cluster.get(actorContext.getSystem()).selfMember().address().toString();
+
+    replicatorAdapter.subscribe(pingCounterKey, PingCounterChanged::new);
+    final var memberRemovedAdapter = actorContext.messageAdapter(ClusterEvent.MemberRemoved.class, MemberRemoved::new);
+    Cluster.get(actorContext.getSystem()).subscriptions().tell(Subscribe.create(memberRemovedAdapter, ClusterEvent.MemberRemoved.class));
+    timers.startTimerAtFixedRate(Tick.Instance, tickInterval);
+  }
+
+  @Override
+  public Receive<Message> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(Tick.class, notUsed -> onTick())
+        .onMessage(PingCounterChanged.class, this::onPingCounterChanged)
+        .onMessage(MemberRemoved.class, this::onMemberRemoved)
+        .build();
+  }
+
+  // Local writes are not acknowledged, the replies go to the ignore ref so that a tick is one message to the replicator.
+  private Behavior<Message> onTick() {
+    if (iAmUp()) {
+      update(counters -> counters.increment(selfUniqueAddress, memberId, 1).increment(selfUniqueAddress, totalPingsEntry, 1));
+    }
+    return Behaviors.same();
+  }
+
+  // Changes are delivered at most once per akka.cluster.distributed-data.notify-subscribers-interval.
+  private Behavior<Message> onPingCounterChanged(PingCounterChanged pingCounterChanged) {
+    if (!(pingCounterChanged.subscribeResponse instanceof Replicator.Changed)) {
+      return Behaviors.same();
+    }
+    final var counters = ((Replicator.Changed<PNCounterMap<String>>) pingCounterChanged.subscribeResponse).get(pingCounterKey);
+    final var nodePings = new TreeMap<String, Long>();
+    counters.getEntries().forEach((member, count) -> nodePings.put(member, count.longValue()));
+    final var totalPings = nodePings.getOrDefault(totalPingsEntry, 0L);
+    nodePings.remove(totalPingsEntry);
+    log().debug("Ping counter total {}, {}", totalPings, nodePings);
+
+    // The meter is marked with the growth of the merged total, the first total includes pings from before this node joined.
+    if (lastTotalPings >= 0 && totalPings > lastTotalPings) {
+      pings.mark(totalPings - lastTotalPings);
+    }
+    lastTotalPings = totalPings;
+
+    httpServerActor.tell(new HttpServer.SingletonAwareStatistics(null, totalPings, pings.rates(), Map.copyOf(nodePings)));
+    return Behaviors.same();
+  }
+
+  // Every node removes the entry of a removed member, removes are idempotent so concurrent ones are fine.
+  // The total entry keeps the removed member's pings.
+  private Behavior<Message> onMemberRemoved(MemberRemoved memberRemoved) {
+    final var removedMemberId = memberRemoved.memberRemoved.member().address().toString();
+    update(counters -> counters.contains(removedMemberId) ? counters.remove(removedMemberId, selfUniqueAddress) : counters);
+    return Behaviors.same();
+  }
+
+  private void update(Function<PNCounterMap<String>, PNCounterMap<String>> modify) {
+    replicator.tell(new Replicator.Update<>(pingCounterKey, PNCounterMap.create(), Replicator.writeLocal(),
+        getContext().getSystem().ignoreRef(), modify));
+  }
+
+  private boolean iAmUp() {
+    return Cluster.get(getContext().getSystem()).selfMember().status().equals(MemberStatus.up());
+  }
+
+  private Logger log() {
+    return getContext().getLog();
+  }
+
+  interface Message { }
+
+  private static class PingCounterChanged implements Message {
+    final Replicator.SubscribeResponse<PNCounterMap<String>> subscribeResponse;
+
+    PingCounterChanged(Replicator.SubscribeResponse<PNCounterMap<String>> subscribeResponse) {
+      this.subscribeResponse = subscribeResponse;
+    }
+  }
+
+  private static class MemberRemoved implements Message {
+    final ClusterEvent.MemberRemoved memberRemoved;
+
+    MemberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+      this.memberRemoved = memberRemoved;
+    }
+  }
+
+  enum Tick implements Message {
+    Instance
+  }
+}
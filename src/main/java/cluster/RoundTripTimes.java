@@ -0,0 +1,76 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Ping round trip times per peer member, keyed by member address. Each peer has two HDR histograms
+ * with microsecond values, the current window records and the previous one is kept so that a
+ * snapshot always covers between one and two windows. Two significant digits keep a histogram to a
+ * few KB, so this can stay on with a large cluster.
+ */
+class RoundTripTimes {
+  private static final long highestTrackableMicros = TimeUnit.SECONDS.toMicros(10);
+  private final long windowNanos;
+  private final Map<String, Peer> peers = new HashMap<>();
+
+  RoundTripTimes(Duration window) {
+    windowNanos = window.toNanos();
+  }
+
+  void record(String member, long roundTripNanos) {
+    final var now = System.nanoTime();
+    final var peer = peers.computeIfAbsent(member, m -> new Peer(now));
+    peer.rotate(now, windowNanos);
+    peer.current.recordValue(Math.min(highestTrackableMicros, Math.max(0, roundTripNanos / 1000)));
+  }
+
+  // Drops the histograms of members that are not in the given membership.
+  void retain(Set<String> members) {
+    peers.keySet().retainAll(members);
+  }
+
+  Map<String, LoadGeneratorActor.Latency> snapshot() {
+    final var now = System.nanoTime();
+    final var snapshot = new TreeMap<String, LoadGeneratorActor.Latency>();
+    peers.forEach((member, peer) -> {
+      peer.rotate(now, windowNanos);
+      final var window = peer.previous.copy();
+      window.add(peer.current);
+      snapshot.put(member, new LoadGeneratorActor.Latency(window));
+    });
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  private static class Peer {
+    Histogram current = new Histogram(highestTrackableMicros, 2);
+    Histogram previous = new Histogram(highestTrackableMicros, 2);
+    long windowStart;
+
+    Peer(long now) {
+      windowStart = now;
+    }
+
+    void rotate(long now, long windowNanos) {
+      final var windows = (now - windowStart) / windowNanos;
+      if (windows == 0) {
+        return;
+      }
+      final var recycled = previous;
+      previous = current;
+      current = recycled;
+      current.reset();
+      if (windows > 1) {
+        previous.reset();
+      }
+      windowStart += windows * windowNanos;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import org.slf4j.Logger;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Terminated;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import cluster.EntityActor.Command;
+
+/**
+ * Receives one ChangeValueBatch or GetValueBatch per shard and fans it out to the entities of that
+ * shard. The batch actor is itself an entity whose id pins it to the shard, so the fan out stays
+ * within the local shard region and each batch crosses the network once in each direction. An
+ * active-only GetValueBatch is answered the way a LookupValue is, without messaging the entities.
+ *
+ * It also answers the LookupValue reads for its shard from other nodes, without messaging or
+ * starting the entity: a running entity's value comes from ActiveEntities, and with the
+ * EntityStateStore enabled a passivated entity's value comes from the shard's file, see EntityLookup.
+ *
+ * When the shard is handed off or the batch actor is passivated it stops only after the batches in
+ * flight have been answered, so their senders get the acks of the entities that applied the changes.
+ * Batches that arrive in the meantime are answered right away with all of their ids timed out.
+ */
+class ShardBatchActor extends AbstractBehavior<Command> {
+  private final String shardId;
+  private final ActorRef<ClusterSharding.ShardCommand> shard;
+  private final ClusterSharding clusterSharding;
+  private final Duration batchTimeout;
+  private final long touchIntervalNanos;
+  private final ActiveEntities activeEntities;
+  private final EntityStateStore stateStore;
+  private int batchCount = 0;
+  private int batchesInFlight = 0;
+  private boolean stopping = false;
+
+  static Behavior<Command> create(String shardId, ActorRef<ClusterSharding.ShardCommand> shard, ActiveEntities activeEntities,
+      EntityStateStore stateStore) {
+    return Behaviors.setup(actorContext -> new ShardBatchActor(actorContext, shardId, shard, activeEntities, stateStore));
+  }
+
+  private ShardBatchActor(ActorContext<Command> actorContext, String shardId, ActorRef<ClusterSharding.ShardCommand> shard,
+      ActiveEntities activeEntities, EntityStateStore stateStore) {
+    super(actorContext);
+    this.shardId = shardId;
+    this.shard = shard;
+    this.activeEntities = activeEntities;
+    this.stateStore = stateStore;
+    clusterSharding = ClusterSharding.get(actorContext.getSystem());
+    batchTimeout = Duration.parse(actorContext.getSystem().settings().config().getString("entity-actor.batch-timeout-iso-8601"));
+    touchIntervalNanos = EntityLookup.touchInterval(actorContext.getSystem()).toNanos();
+    actorContext.setReceiveTimeout(EntityActor.idleTimeout(actorContext.getSystem()), EntityActor.Idle.INSTANCE);
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(ChangeValueBatch.class, this::onChangeValueBatch)
+        .onMessage(GetValueBatch.class, this::onGetValueBatch)
+        .onMessage(LookupValue.class, this::onLookupValue)
+        .onMessage(EntityActor.Idle.class, msg -> onIdle())
+        .onMessage(EntityActor.Passivate.class, msg -> onPassivate())
+        .onSignal(Terminated.class, signal -> onBatchAnswered())
+        .build();
+  }
+
+  private Behavior<Command> onChangeValueBatch(ChangeValueBatch changeValueBatch) {
+    if (stopping) {
+      final var timedOut = changeValueBatch.changes.stream().map(change -> change.id).collect(Collectors.toList());
+      changeValueBatch.replyTo.tell(new ChangeValueBatchAck(changeValueBatch.shardId, List.of(), timedOut));
+      return this;
+    }
+    aggregate(BatchAggregator.create(changeValueBatch, clusterSharding, batchTimeout));
+    return this;
+  }
+
+  private Behavior<Command> onGetValueBatch(GetValueBatch getValueBatch) {
+    if (getValueBatch.activeOnly) {
+      final var values = new ArrayList<EntityActor.GetValueAck>();
+      final var notFound = new ArrayList<EntityActor.Id>();
+      getValueBatch.ids.forEach(id -> {
+        final var value = lookup(id);
+        if (value == null) {
+          notFound.add(id);
+        } else {
+          values.add(new EntityActor.GetValueAck(id, value));
+        }
+      });
+      getValueBatch.replyTo.tell(new GetValueBatchAck(getValueBatch.shardId, values, notFound, List.of()));
+    } else if (stopping) {
+      getValueBatch.replyTo.tell(new GetValueBatchAck(getValueBatch.shardId, List.of(), List.of(), getValueBatch.ids));
+    } else {
+      aggregate(BatchAggregator.create(getValueBatch, clusterSharding, batchTimeout));
+    }
+    return this;
+  }
+
+  private void aggregate(Behavior<Command> batchAggregator) {
+    getContext().watch(getContext().spawn(batchAggregator, "batch-" + ++batchCount));
+    batchesInFlight++;
+  }
+
+  private Behavior<Command> onPassivate() {
+    stopping = true;
+    return batchesInFlight == 0 ? Behaviors.stopped() : this;
+  }
+
+  private Behavior<Command> onBatchAnswered() {
+    batchesInFlight--;
+    return stopping && batchesInFlight == 0 ? Behaviors.stopped() : this;
+  }
+
+  // The GetValue goes through sharding rather than to the registered actor, an entity that stops in
+  // between is started again and answers, as it would for a GetValue sent to it directly.
+  private Behavior<Command> onIdle() {
+    if (!stopping) {
+      shard.tell(new ClusterSharding.Passivate<>(getContext().getSelf()));
+    }
+    return this;
+  }
+
+  private Behavior<Command> onLookupValue(LookupValue lookupValue) {
+    final var value = lookup(lookupValue.id);
+    lookupValue.replyTo.tell(value == null
+        ? new EntityActor.GetValueAckNotFound(lookupValue.id)
+        : new EntityActor.GetValueAck(lookupValue.id, value));
+    return this;
+  }
+
+  private EntityActor.Value lookup(EntityActor.Id id) {
+    final var value = activeEntities.read(id.id, touchIntervalNanos, getContext().getSystem().ignoreRef());
+    return value != null ? value : stateStore.load(shardId, shard, id.id);
+  }
+
+  static boolean isBatchEntityId(String entityId) {
+    return entityId.startsWith(JumpHashMessageExtractor.pinnedPrefix);
+  }
+
+  static String batchEntityId(String shardId) {
+    return JumpHashMessageExtractor.pinnedPrefix + shardId;
+  }
+
+  /**
+   * Groups the changes by target shard and sends one ChangeValueBatch to each shard.
+   */
+  static void tell(ClusterSharding clusterSharding, JumpHashMessageExtractor<Command> messageExtractor, List<Change> changes, ActorRef<Command> replyTo) {
+    changes.stream()
+        .collect(Collectors.groupingBy(change -> messageExtractor.shardId(change.id.id)))
+        .forEach((shardId, shardChanges) ->
+            clusterSharding.entityRefFor(EntityActor.entityTypeKey, batchEntityId(shardId))
+                .tell(new ChangeValueBatch(shardId, shardChanges, replyTo)));
+  }
+
+  // Sends the batch's messages to its entities and answers the batch with their replies, or with the
+  // ids that have not replied when the batch timeout expires.
+  private static class BatchAggregator extends AbstractBehavior<Command> {
+    private final String shardId;
+    private final int size;
+    private final ActorRef<Command> replyTo;
+    private final boolean reads;
+    private final Map<String, Integer> pending = new HashMap<>();
+    private final List<EntityActor.ChangeValueAck> changed = new ArrayList<>();
+    private final List<EntityActor.GetValueAck> values = new ArrayList<>();
+    private final List<EntityActor.Id> notFound = new ArrayList<>();
+
+    static Behavior<Command> create(ChangeValueBatch changeValueBatch, ClusterSharding clusterSharding, Duration batchTimeout) {
+      return Behaviors.setup(actorContext ->
+          Behaviors.withTimers(timers -> new BatchAggregator(actorContext, timers, changeValueBatch.shardId, changeValueBatch.replyTo, false,
+              changeValueBatch.changes.stream().map(change -> change.id).collect(Collectors.toList()),
+              changeValueBatch.changes.stream()
+                  .map(change -> new EntityActor.ChangeValue(change.id, change.value, actorContext.getSelf()))
+                  .collect(Collectors.toList()),
+              clusterSharding, batchTimeout)));
+    }
+
+    static Behavior<Command> create(GetValueBatch getValueBatch, ClusterSharding clusterSharding, Duration batchTimeout) {
+      return Behaviors.setup(actorContext ->
+          Behaviors.withTimers(timers -> new BatchAggregator(actorContext, timers, getValueBatch.shardId, getValueBatch.replyTo, true,
+              getValueBatch.ids,
+              getValueBatch.ids.stream()
+                  .map(id -> new EntityActor.GetValue(id, actorContext.getSelf()))
+                  .collect(Collectors.toList()),
+              clusterSharding, batchTimeout)));
+    }
+
+    // messages holds the message for each of the ids, in the same order.
+    private BatchAggregator(ActorContext<Command> actorContext, TimerScheduler<Command> timers, String shardId, ActorRef<Command> replyTo, boolean reads,
+        List<EntityActor.Id> ids, List<? extends Command> messages, ClusterSharding clusterSharding, Duration batchTimeout) {
+      super(actorContext);
+      this.shardId = shardId;
+      this.size = ids.size();
+      this.replyTo = replyTo;
+      this.reads = reads;
+
+      for (int i = 0; i < ids.size(); i++) {
+        final var entityId = ids.get(i).id;
+        pending.merge(entityId, 1, Integer::sum);
+        clusterSharding.entityRefFor(EntityActor.entityTypeKey, entityId).tell(messages.get(i));
+      }
+      timers.startSingleTimer(Timeout.Instance, batchTimeout);
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+      return newReceiveBuilder()
+          .onMessage(EntityActor.ChangeValueAck.class, changeValueAck -> {
+            changed.add(changeValueAck);
+            return answered(changeValueAck.id);
+          })
+          .onMessage(EntityActor.GetValueAck.class, getValueAck -> {
+            values.add(getValueAck);
+            return answered(getValueAck.id);
+          })
+          .onMessage(EntityActor.GetValueAckNotFound.class, getValueAckNotFound -> {
+            notFound.add(getValueAckNotFound.id);
+            return answered(getValueAckNotFound.id);
+          })
+          .onMessage(Timeout.class, t -> reply())
+          .build();
+    }
+
+    private Behavior<Command> answered(EntityActor.Id id) {
+      pending.computeIfPresent(id.id, (entityId, count) -> count > 1 ? count - 1 : null);
+      return pending.isEmpty() ? reply() : this;
+    }
+
+    private Behavior<Command> reply() {
+      final var timedOut = new ArrayList<EntityActor.Id>();
+      pending.forEach((entityId, count) -> {
+        for (int i = 0; i < count; i++) {
+          timedOut.add(new EntityActor.Id(entityId));
+        }
+      });
+      if (!timedOut.isEmpty()) {
+        log().warn("Shard {} batch timed out for {} of {} {}", shardId, timedOut.size(), size, reads ? "reads" : "changes");
+      }
+      replyTo.tell(reads
+          ? new GetValueBatchAck(shardId, values, notFound, timedOut)
+          : new ChangeValueBatchAck(shardId, changed, timedOut));
+      return Behaviors.stopped();
+    }
+
+    private Logger log() {
+      return getContext().getLog();
+    }
+
+    enum Timeout implements Command {
+      Instance
+    }
+  }
+
+  public static class Change implements CborSerializable {
+    public final EntityActor.Id id;
+    public final EntityActor.Value value;
+
+    @JsonCreator
+    public Change(EntityActor.Id id, EntityActor.Value value) {
+      this.id = id;
+      this.value = value;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %s]", getClass().getSimpleName(), id, value);
+    }
+  }
+
+  public static class LookupValue implements Command {
+    public final EntityActor.Id id;
+    public final ActorRef<Command> replyTo;
+
+    @JsonCreator
+    public LookupValue(EntityActor.Id id, ActorRef<Command> replyTo) {
+      this.id = id;
+      this.replyTo = replyTo;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s]", getClass().getSimpleName(), id);
+    }
+  }
+
+  public static class ChangeValueBatch implements Command {
+    public final String shardId;
+    public final List<Change> changes;
+    public final ActorRef<Command> replyTo;
+
+    @JsonCreator
+    public ChangeValueBatch(String shardId, List<Change> changes, ActorRef<Command> replyTo) {
+      this.shardId = shardId;
+      this.changes = changes;
+      this.replyTo = replyTo;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %d]", getClass().getSimpleName(), shardId, changes.size());
+    }
+  }
+
+  public static class GetValueBatch implements Command {
+    public final String shardId;
+    public final List<EntityActor.Id> ids;
+    public final boolean activeOnly;
+    public final ActorRef<Command> replyTo;
+
+    @JsonCreator
+    public GetValueBatch(String shardId, List<EntityActor.Id> ids, boolean activeOnly, ActorRef<Command> replyTo) {
+      this.shardId = shardId;
+      this.ids = ids;
+      this.activeOnly = activeOnly;
+      this.replyTo = replyTo;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %d, %s]", getClass().getSimpleName(), shardId, ids.size(), activeOnly ? "active-only" : "activate");
+    }
+  }
+
+  public static class GetValueBatchAck implements Command {
+    public final String shardId;
+    public final List<EntityActor.GetValueAck> values;
+    public final List<EntityActor.Id> notFound;
+    public final List<EntityActor.Id> timedOut;
+
+    @JsonCreator
+    public GetValueBatchAck(String shardId, List<EntityActor.GetValueAck> values, List<EntityActor.Id> notFound, List<EntityActor.Id> timedOut) {
+      this.shardId = shardId;
+      this.values = values;
+      this.notFound = notFound;
+      this.timedOut = timedOut;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, values %d, not found %d, timed out %d]", getClass().getSimpleName(), shardId, values.size(), notFound.size(),
+          timedOut.size());
+    }
+  }
+
+  public static class ChangeValueBatchAck implements Command {
+    public final String shardId;
+    public final List<EntityActor.ChangeValueAck> acks;
+    public final List<EntityActor.Id> timedOut;
+
+    @JsonCreator
+    public ChangeValueBatchAck(String shardId, List<EntityActor.ChangeValueAck> acks, List<EntityActor.Id> timedOut) {
+      this.shardId = shardId;
+      this.acks = acks;
+      this.timedOut = timedOut;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, acks %d, timed out %d]", getClass().getSimpleName(), shardId, acks.size(), timedOut.size());
+    }
+  }
+}
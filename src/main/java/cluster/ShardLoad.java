@@ -0,0 +1,82 @@
+package cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per node view of shard message rates. Entity actors record each message they handle, the
+ * ShardLoadActor turns the local counts into rates, shares them with the other nodes and loads
+ * the cluster wide rates that the LoadAwareShardAllocationStrategy reads when the shard coordinator
+ * runs on this node.
+ *
+ * The rates are kept per reporting node, each report replaces all of that node's rates. A node that
+ * no longer hosts a shard keeps reporting a decaying rate for it for a while, so a shard's rate is
+ * only read from the node that hosts it.
+ */
+class ShardLoad {
+  private final ConcurrentHashMap<String, LongAdder> localMessages = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, NodeRates> nodeRates = new ConcurrentHashMap<>();
+  private final LongAdder totalMessages = new LongAdder();
+  private final long staleAfterNanos;
+
+  ShardLoad(long staleAfterNanos) {
+    this.staleAfterNanos = staleAfterNanos;
+  }
+
+  void record(String shardId) {
+    localMessages.computeIfAbsent(shardId, id -> new LongAdder()).increment();
+    totalMessages.increment();
+  }
+
+  long totalMessages() {
+    return totalMessages.sum();
+  }
+
+  Map<String, Long> drainLocalMessages() {
+    final var messages = new HashMap<String, Long>();
+    localMessages.forEach((shardId, count) -> {
+      final var sum = count.sumThenReset();
+      if (sum > 0) {
+        messages.put(shardId, sum);
+      }
+    });
+    return messages;
+  }
+
+  void load(String node, Map<String, Double> rates) {
+    nodeRates.put(node, new NodeRates(rates, System.nanoTime()));
+  }
+
+  // The shard's rate as last reported by the node, node is a member address.
+  double rate(String node, String shardId) {
+    final var rates = nodeRates.get(node);
+    return rates == null || System.nanoTime() - rates.reportedAt > staleAfterNanos
+        ? 0.0
+        : rates.rates.getOrDefault(shardId, 0.0);
+  }
+
+  void forEachRate(RateConsumer consumer) {
+    final var now = System.nanoTime();
+    nodeRates.forEach((node, rates) -> {
+      if (now - rates.reportedAt <= staleAfterNanos) {
+        rates.rates.forEach((shardId, rate) -> consumer.accept(node, shardId, rate));
+      }
+    });
+  }
+
+  interface RateConsumer {
+    void accept(String node, String shardId, double rate);
+  }
+
+  private static class NodeRates {
+    final Map<String, Double> rates;
+    final long reportedAt;
+
+    NodeRates(Map<String, Double> rates, long reportedAt) {
+      this.rates = rates;
+      this.reportedAt = reportedAt;
+    }
+  }
+}
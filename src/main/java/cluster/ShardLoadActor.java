@@ -0,0 +1,125 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import org.slf4j.Logger;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+import akka.cluster.typed.Cluster;
+
+class ShardLoadActor extends AbstractBehavior<ShardLoadActor.Message> {
+  private final ShardLoad shardLoad;
+  private final Duration reportInterval;
+  private final String node;
+  private final Map<String, Double> localRates = new HashMap<>();
+  private Set<ActorRef<Message>> serviceInstances = Set.of();
+  private static final double smoothing = 0.5; // weight of the latest interval in the reported rate
+  private static final ServiceKey<Message> serviceKey = ServiceKey.create(Message.class, ShardLoadActor.class.getSimpleName());
+
+  static Behavior<Message> create(ShardLoad shardLoad) {
+    return Behaviors.setup(context ->
+        Behaviors.withTimers(timers -> new ShardLoadActor(context, timers, shardLoad)));
+  }
+
+  private ShardLoadActor(ActorContext<Message> context, TimerScheduler<Message> timers, ShardLoad shardLoad) {
+    super(context);
+    this.shardLoad = shardLoad;
+    reportInterval = Duration.parse(context.getSystem().settings().config().getString("shard-allocation.report-interval-iso-8601"));
+    node = Cluster.get(context.getSystem()).selfMember().address().toString();
+
+    receptionistRegisterSubscribe(context);
+    timers.startTimerAtFixedRate(Tick.Instance, reportInterval);
+  }
+
+  @Override
+  public Receive<Message> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(Listeners.class, this::onListeners)
+        .onMessage(Tick.class, notUsed -> onTick())
+        .onMessage(ShardRates.class, this::onShardRates)
+        .build();
+  }
+
+  private void receptionistRegisterSubscribe(ActorContext<Message> context) {
+    final var listingActorRef = context.messageAdapter(Receptionist.Listing.class, Listeners::new);
+
+    context.getSystem().receptionist()
+        .tell(Receptionist.register(serviceKey, context.getSelf()));
+    context.getSystem().receptionist()
+        .tell(Receptionist.subscribe(serviceKey, listingActorRef));
+  }
+
+  private Behavior<Message> onListeners(Listeners listeners) {
+    serviceInstances = listeners.listing.getServiceInstances(serviceKey);
+    return Behaviors.same();
+  }
+
+  private Behavior<Message> onTick() {
+    final var seconds = reportInterval.toMillis() / 1000.0;
+    final var messages = shardLoad.drainLocalMessages();
+
+    messages.keySet().forEach(shardId -> localRates.putIfAbsent(shardId, 0.0));
+    localRates.replaceAll((shardId, rate) ->
+        smoothing * messages.getOrDefault(shardId, 0L) / seconds + (1 - smoothing) * rate);
+    localRates.values().removeIf(rate -> rate < 0.01);
+
+    // Also sent when empty, to replace the rates of shards this node no longer reports.
+    final var shardRates = new ShardRates(node, Map.copyOf(localRates));
+    serviceInstances.forEach(shardLoadActorRef -> shardLoadActorRef.tell(shardRates));
+    return Behaviors.same();
+  }
+
+  private Behavior<Message> onShardRates(ShardRates shardRates) {
+    log().debug("{}", shardRates);
+    shardLoad.load(shardRates.node, shardRates.rates);
+    return Behaviors.same();
+  }
+
+  private Logger log() {
+    return getContext().getLog();
+  }
+
+  public interface Message {
+  }
+
+  private static class Listeners implements Message {
+    final Receptionist.Listing listing;
+
+    private Listeners(Receptionist.Listing listing) {
+      this.listing = listing;
+    }
+  }
+
+  public static class ShardRates implements Message, CborSerializable {
+    public final String node;
+    public final Map<String, Double> rates;
+
+    @JsonCreator
+    public ShardRates(String node, Map<String, Double> rates) {
+      this.node = node;
+      this.rates = rates;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[%s, %s]", getClass().getSimpleName(), node, rates);
+    }
+  }
+
+  enum Tick implements Message {
+    Instance
+  }
+}
@@ -0,0 +1,266 @@
+package cluster;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One shard's entity values in a memory mapped file, so that stored entities cost no heap. The file
+ * is a header, an open addressing hash table of slots and an append only log of records. A slot is
+ * the 64 bit hash of an entity id and the offset of the entity's latest record, a record is the
+ * entity id and the value in the EntityMessageSerializer encoding. A save appends a record and points
+ * the entity's slot at it. When the table is half full or the log is full the live records are
+ * copied into a new file that replaces the old one, with twice the slots when the table was half
+ * full and a log of twice the live records. So the file stays proportional to the live records
+ * however often the same entities are saved.
+ *
+ * Writes go to the page cache, nothing is forced to disk. Callers are the entity actors of the
+ * shard, on any thread. A replaced or closed file is unmapped right away instead of when its buffer
+ * is garbage collected, which could keep the mappings and the disk space of many replaced files.
+ */
+class ShardStateStore {
+  private static final int magic = 0x45535331; // ESS1
+  private static final int headerBytes = 16;
+  private static final int slotBytes = 12;
+  private static final MethodHandle invokeCleaner = invokeCleaner();
+  private final Path file;
+  private final int minLogBytes;
+  private MappedByteBuffer buffer;
+  private int slotCount;
+  private int logStart;
+  private int logEnd;
+  private int live;
+  private boolean closed;
+
+  private ShardStateStore(Path file, MappedByteBuffer buffer, int minLogBytes) {
+    this.file = file;
+    this.buffer = buffer;
+    this.minLogBytes = minLogBytes;
+    if (buffer.getInt(0) != magic) {
+      throw new IllegalStateException(String.format("%s is not an entity state file", file));
+    }
+    slotCount = buffer.getInt(4);
+    logEnd = buffer.getInt(8);
+    live = buffer.getInt(12);
+    logStart = headerBytes + slotCount * slotBytes;
+  }
+
+  // Creates the shard's file with initialSlots slots, a power of two, and initialLogBytes of log,
+  // replacing a file left by an earlier allocation of the shard or an earlier run of the node.
+  static ShardStateStore create(Path file, int initialSlots, int initialLogBytes) {
+    try {
+      Files.createDirectories(file.getParent());
+      final var temp = file.resolveSibling(file.getFileName() + ".tmp");
+      final var buffer = map(temp, initialSlots, initialLogBytes);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return new ShardStateStore(file, buffer, initialLogBytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static MappedByteBuffer map(Path file, int slotCount, int logBytes) throws IOException {
+    final var logStart = headerBytes + slotCount * slotBytes;
+    try (final var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) logStart + logBytes);
+      buffer.putInt(0, magic).putInt(4, slotCount).putInt(8, logStart).putInt(12, 0);
+      return buffer;
+    }
+  }
+
+  /** The entity's stored value, or null when it has none. */
+  synchronized EntityActor.Value load(String entityId) {
+    if (closed) {
+      return null;
+    }
+    final var slot = find(entityId, hash(entityId));
+    final var offset = buffer.getInt(slot + 8);
+    if (offset == 0) {
+      return null;
+    }
+    final var record = buffer.duplicate();
+    record.position(offset + 4 + buffer.getInt(offset));
+    return EntityMessageSerializer.getValue(record);
+  }
+
+  synchronized void save(String entityId, EntityActor.Value value) {
+    if (closed) {
+      return;
+    }
+    if (live + 1 > slotCount / 2) {
+      rebuild(slotCount * 2, 0);
+    }
+    // A full log is first compacted to its live records. Only a record that does not fit in the
+    // compacted log grows it, by the size of the current log.
+    var extraLogBytes = 0L;
+    while (true) {
+      try {
+        insert(entityId, value);
+        return;
+      } catch (BufferOverflowException e) {
+        rebuild(slotCount, extraLogBytes);
+        extraLogBytes = buffer.capacity() - logStart;
+      }
+    }
+  }
+
+  private void insert(String entityId, EntityActor.Value value) {
+    final var record = buffer.duplicate();
+    record.position(logEnd);
+    EntityMessageSerializer.putString(record, entityId);
+    EntityMessageSerializer.putValue(record, value);
+
+    final var hash = hash(entityId);
+    final var slot = find(entityId, hash);
+    if (buffer.getInt(slot + 8) == 0) {
+      buffer.putInt(12, ++live);
+    }
+    buffer.putLong(slot, hash).putInt(slot + 8, logEnd);
+    logEnd = record.position();
+    buffer.putInt(8, logEnd);
+  }
+
+  // The entity's slot, or the empty slot where it goes. The table is at most half full, so probing ends.
+  private int find(String entityId, long hash) {
+    final var mask = slotCount - 1;
+    for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+      final var slot = headerBytes + i * slotBytes;
+      final var offset = buffer.getInt(slot + 8);
+      if (offset == 0 || buffer.getLong(slot) == hash && idEquals(offset, entityId)) {
+        return slot;
+      }
+    }
+  }
+
+  // Ids are compared in place, ASCII ids byte by byte and others through their UTF-8 bytes.
+  private boolean idEquals(int offset, String entityId) {
+    final var length = buffer.getInt(offset);
+    if (length == entityId.length()) {
+      int i = 0;
+      while (i < length && (buffer.get(offset + 4 + i) & 0xff) == entityId.charAt(i)) {
+        i++;
+      }
+      if (i == length) {
+        return true;
+      }
+    }
+    final var bytes = entityId.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(offset + 4 + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Copies the latest record of each entity into a new file, with a log of twice the live records
+  // and extraLogBytes, at least minLogBytes. Offsets are ints, so a file stays below 2 GiB.
+  private void rebuild(int newSlotCount, long extraLogBytes) {
+    var liveBytes = 0L;
+    for (int i = 0; i < slotCount; i++) {
+      final var offset = buffer.getInt(headerBytes + i * slotBytes + 8);
+      if (offset != 0) {
+        liveBytes += recordEnd(offset) - offset;
+      }
+    }
+    final var logBytes = Math.max(minLogBytes, (liveBytes + extraLogBytes) * 2);
+    if (headerBytes + (long) newSlotCount * slotBytes + logBytes > Integer.MAX_VALUE) {
+      throw new IllegalStateException(String.format("%s can't grow to %d slots and %d log bytes", this, newSlotCount, logBytes));
+    }
+    try {
+      final var temp = file.resolveSibling(file.getFileName() + ".tmp");
+      final var next = new ShardStateStore(temp, map(temp, newSlotCount, (int) logBytes), this.minLogBytes);
+      for (int i = 0; i < slotCount; i++) {
+        final var offset = buffer.getInt(headerBytes + i * slotBytes + 8);
+        if (offset != 0) {
+          final var record = buffer.duplicate();
+          record.position(offset);
+          next.insert(EntityMessageSerializer.getString(record), EntityMessageSerializer.getValue(record));
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      unmap(buffer);
+      buffer = next.buffer;
+      slotCount = next.slotCount;
+      logStart = next.logStart;
+      logEnd = next.logEnd;
+      live = next.live;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int recordEnd(int offset) {
+    final var record = buffer.duplicate();
+    record.position(offset + 4 + buffer.getInt(offset));
+    EntityMessageSerializer.getValue(record);
+    return record.position();
+  }
+
+  // FNV-1a over the id's chars.
+  static long hash(String entityId) {
+    var hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < entityId.length(); i++) {
+      hash = (hash ^ entityId.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  // Called when the shard's file is replaced, later loads and saves of this store do nothing.
+  synchronized void close() {
+    if (!closed) {
+      closed = true;
+      unmap(buffer);
+    }
+  }
+
+  // Only called under the store's lock, and the duplicates of the buffer don't outlive a locked call,
+  // so nothing reads the buffer after it is unmapped.
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      invokeCleaner.invokeExact(buffer);
+    } catch (Throwable e) {
+      throw new IllegalStateException("Can't unmap entity state file", e);
+    }
+  }
+
+  // Unsafe.invokeCleaner, the JDK's way to unmap a buffer, is not a supported API and is looked up by name.
+  private static MethodHandle invokeCleaner() {
+    try {
+      final var unsafeClass = Class.forName("sun.misc.Unsafe");
+      final var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(theUnsafe.get(null))
+          .asType(MethodType.methodType(void.class, MappedByteBuffer.class));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Can't find Unsafe.invokeCleaner to unmap entity state files", e);
+    }
+  }
+
+  synchronized int size() {
+    return live;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s, %d entities, %d slots, %d/%d log bytes]", getClass().getSimpleName(), file, live, slotCount,
+        logEnd - logStart, buffer.capacity() - logStart);
+  }
+}
@@ -0,0 +1,44 @@
+package cluster;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Collapses concurrent loads of the same key into one. The first caller for a key starts the load,
+ * callers that arrive while it is in flight get the same result, and the key is released before the
+ * result is completed so that a caller arriving after that starts a fresh load. Nothing is cached.
+ */
+class SingleFlight<K, V> {
+  private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  CompletionStage<V> load(K key, Function<K, CompletionStage<V>> loader) {
+    final var call = new CompletableFuture<V>();
+    final var existing = inFlight.putIfAbsent(key, call);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      loader.apply(key).whenComplete((value, error) -> complete(key, call, value, error));
+    } catch (RuntimeException e) {
+      complete(key, call, null, e);
+    }
+    return call;
+  }
+
+  // A write to the key makes the in flight load stale, later callers start a new one.
+  void forget(K key) {
+    inFlight.remove(key);
+  }
+
+  private void complete(K key, CompletableFuture<V> call, V value, Throwable error) {
+    inFlight.remove(key, call);
+    if (error == null) {
+      call.complete(value);
+    } else {
+      call.completeExceptionally(error);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package cluster;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free count of the events in the last window, kept in a ring of buckets that each cover
+ * window / buckets. A bucket is reset by the first add that finds it holding an older period, adds
+ * that race with that reset may be lost, so counts are approximate at bucket boundaries.
+ */
+class SlidingWindowCounter {
+  private final long bucketNanos;
+  private final int buckets;
+  private final AtomicLongArray counts;
+  private final AtomicLongArray periods;
+  private final long startNanos;
+
+  SlidingWindowCounter(Duration window, int buckets) {
+    this.buckets = buckets;
+    bucketNanos = Math.max(1, window.toNanos() / buckets);
+    counts = new AtomicLongArray(buckets);
+    periods = new AtomicLongArray(buckets);
+    startNanos = System.nanoTime();
+  }
+
+  void add(long nanoTime, long n) {
+    final var period = period(nanoTime);
+    final var bucket = (int) (period % buckets);
+    final var bucketPeriod = periods.get(bucket);
+    if (bucketPeriod != period && periods.compareAndSet(bucket, bucketPeriod, period)) {
+      counts.set(bucket, n);
+    } else {
+      counts.addAndGet(bucket, n);
+    }
+  }
+
+  long count(long nanoTime) {
+    final var period = period(nanoTime);
+    long count = 0;
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      if (period - periods.get(bucket) < buckets) {
+        count += counts.get(bucket);
+      }
+    }
+    return count;
+  }
+
+  // Events per second over the window, or over the time since start while that is shorter.
+  double ratePerSecond(long nanoTime) {
+    final var elapsedNanos = Math.min(nanoTime - startNanos, (buckets - 1) * bucketNanos + (nanoTime - startNanos) % bucketNanos);
+    return elapsedNanos <= 0 ? 0.0 : count(nanoTime) * 1e9 / elapsedNanos;
+  }
+
+  // Periods are counted from start so that the first bucket begins with the counter.
+  private long period(long nanoTime) {
+    return (nanoTime - startNanos) / bucketNanos + buckets;
+  }
+}
@@ -1,13 +1,13 @@
+// Peers with a p99 ping round trip time above this are shown in red
+const slowRoundTripMs = 100;
+
 const clusterAware = {
   clusterStateUpdateNode: function (clusterStateFromNode) {
-    const selfPort = clusterStateFromNode.selfPort;
-
-    clusterState.members[selfPort - 2551].clusterAwareStatistics = clusterStateFromNode.clusterAwareStatistics;
+    clusterStateMember(clusterStateFromNode.selfAddress).clusterAwareStatistics = clusterStateFromNode.clusterAwareStatistics;
   },
 
-  nodeDetails: function (x, y, w, h, nodeNo) {
-    const selfPort = 2551 + nodeNo;
-    const clusterAwareStatistics = clusterState.members[nodeNo].clusterAwareStatistics;
+  nodeDetails: function (x, y, w, h, selfAddress) {
+    const clusterAwareStatistics = clusterStateMember(selfAddress).clusterAwareStatistics;
 
     if (clusterAwareStatistics) {
       Label()
@@ -36,10 +36,12 @@ const clusterAware = {
         .draw();
 
       let lineY = y + 4;
-      for (let p = 0; p < 9; p++) {
-        const port = 2551 + p;
-        const nodePings = clusterAwareStatistics.nodePings[port];
-        if (nodePings && port != selfPort) {
+      const addresses = Object.keys(clusterAwareStatistics.nodePings).sort((a, b) => addressPort(a) - addressPort(b));
+      for (let a = 0; a < addresses.length && lineY < y + h; a++) {
+        const port = addressPort(addresses[a]);
+        const nodePings = clusterAwareStatistics.nodePings[addresses[a]];
+        const roundTripTime = clusterAwareStatistics.nodeRoundTripTimes ? clusterAwareStatistics.nodeRoundTripTimes[addresses[a]] : undefined;
+        if (nodePings && addresses[a] != selfAddress) {
           Label()
             .setX(x)
             .setY(lineY++)
@@ -47,9 +49,9 @@ const clusterAware = {
             .setH(1)
             .setBorder(0.25)
             .setKey('' + port)
-            .setValue(nodePings.toLocaleString())
+            .setValue(nodePings.toLocaleString() + (roundTripTime ? ' ' + roundTripTime.p99Ms.toFixed(1) + 'ms' : ''))
             .setKeyColor(color(29, 249, 246))
-            .setValueColor(color(255))
+            .setValueColor(roundTripTime && roundTripTime.p99Ms > slowRoundTripMs ? color(255, 75, 75) : color(255))
             .draw();
 
           const progress = nodePings % 100;
@@ -14,7 +14,7 @@ function draw() {
   grid.draw(color(43, 52, 58));
 
   drawSummary();
-  drawNineNodes();
+  drawNodes();
 }
 
 function drawSummary() {
@@ -40,7 +40,7 @@ function drawSummary() {
     .setH(1.9)
     .setBorder(0.3)
     .setKey('Leader')
-    .setValue(clusterState.summary.leader)
+    .setValue(clusterState.summary.leader ? addressPort(clusterState.summary.leader) : 0)
     .setBgColor(isGossipConvergenceNotPossible() ? color(255, 55, 55, 100) : color(100, 75))
     .setKeyColor(color(255, 191, 0))
     .setValueColor(color(255))
@@ -53,17 +53,18 @@ function drawSummary() {
     .setH(1.9)
     .setBorder(0.3)
     .setKey('Oldest')
-    .setValue(clusterState.summary.oldest)
+    .setValue(clusterState.summary.oldest ? addressPort(clusterState.summary.oldest) : 0)
     .setBgColor(color(100, 75))
     .setKeyColor(color(255, 191, 0))
     .setValueColor(color(255))
     .draw();
 
   singletonAware.singletonDetails(1, 5, 16, 15);
-  nineNodes(0, 24, 18, 0.05, clusterState.summary.nodes);
+  nodesGrid(0, 24, 18, 0.05, summaryNodes());
 }
 
-function drawNineNodes() {
+// Detail panels are drawn for the first nine known nodes, the summary grid shows all of them.
+function drawNodes() {
   strokeWeight(2.5);
   stroke(255, 100);
   grid.line(19, 0, 19 + 3 * 18 + 2, 0);
@@ -81,19 +82,17 @@ function drawNineNodes() {
     .setValueColor(color(255))
     .draw();
 
+  const addresses = knownAddresses();
   for (row = 0; row < 3; row++) {
     for (col = 0; col < 3; col++) {
       const x = (col + 1) * 19;
       const y = row * 14 + 1;
-      const nodeNo = row * 3 + col;
+      const address = addresses[row * 3 + col];
       frame(x, y, 18, 13);
-      nodeDetails(x, y, 18, 13, nodeNo);
-    }
-  }
-
-  for (row = 0; row < 3; row++) {
-    for (col = 0; col < 3; col++) {
-      nineNodes((col + 1) * 19 + 9, row * 14 + 5, 9, 0.025, clusterState.members[row * 3 + col].nodes);
+      if (address) {
+        nodeDetails(x, y, 18, 13, address);
+        nodesGrid(x + 9, y + 4, 9, 0.025, memberNodes(address));
+      }
     }
   }
 }
@@ -179,9 +178,8 @@ function frame(x, y, width, height) {
   grid.line(xr, yt - offset, xr, yb + offset); // right vertical
 }
 
-function nodeDetails(x, y, w, h, nodeNo) {
-  const port = 2551 + nodeNo;
-  const node = clusterState.members[nodeNo].nodes[nodeNo];
+function nodeDetails(x, y, w, h, address) {
+  const node = memberNode(address, address);
   if (node.state != 'offline') {
     Label()
       .setX(x)
@@ -189,14 +187,14 @@ function nodeDetails(x, y, w, h, nodeNo) {
       .setW(w)
       .setH(1.5)
       .setBorder(0.2)
-      .setKey('' + port)
+      .setKey('' + node.port)
       .setValue(node.memberState)
       .setBgColor(color(100, 75))
       .setKeyColor(color(255, 191, 0))
       .setValueColor(color(255))
       .draw();
 
-    clusterAware.nodeDetails(x, y, w, h, nodeNo);
+    clusterAware.nodeDetails(x, y, w, h, address);
   }
 
   if (node.seedNode) {
@@ -213,12 +211,13 @@ function nodeDetails(x, y, w, h, nodeNo) {
   }
 }
 
-function nineNodes(x, y, size, border, nodes) {
-  const nodeSize = size / 3;
-  for (let row = 0; row < 3; row++) {
-    for (let col = 0; col < 3; col++) {
-      drawNode(x + nodeSize * col, y + nodeSize * row, nodeSize, border, nodes[row * 3 + col]);
-    }
+// At least 3 x 3, grows to the smallest square that holds all of the nodes.
+function nodesGrid(x, y, size, border, nodes) {
+  const cols = Math.max(3, Math.ceil(Math.sqrt(nodes.length)));
+  const nodeSize = size / cols;
+  for (let n = 0; n < cols * cols; n++) {
+    const node = n < nodes.length ? nodes[n] : clusterStateNodeInit('');
+    drawNode(x + nodeSize * (n % cols), y + nodeSize * Math.floor(n / cols), nodeSize, border, node);
   }
 }
 
@@ -386,9 +385,7 @@ function requestClusterStateInterval() {
 
   clusterStateScanAllForOfflineNodes();
 
-  for (let port = 9551; port <= 9559; port++) {
-    requestClusterStateFromNode(port);
-  }
+  httpPorts.forEach((port) => requestClusterStateFromNode(port));
 }
 
 function requestClusterStateFromNode(port) {
@@ -397,72 +394,83 @@ function requestClusterStateFromNode(port) {
   loadJSON(url, clusterStateUpdateNode, requestClusterStateFromNodeError);
 }
 
-const clusterState = clusterStateInit();
-
-function clusterStateNodeReset(nodes) {
-  const time = new Date().getTime();
+// Seeded with this page's server and the default seed nodes, each response adds the HTTP ports of the nodes it knows.
+const httpPorts = new Set([9551, 9552].concat(location.port ? [parseInt(location.port)] : []));
 
-  for (let n = 0; n < 9; n++) {
-    clusterStateNodeInit(n);
-  }
-}
+const clusterState = clusterStateInit();
 
 function clusterStateScanForOfflineNodes(nodes) {
   const time = new Date().getTime();
 
-  for (let n = 0; n < 9; n++) {
-    if (time - nodes[n].time > 3000) {
+  Object.keys(nodes).forEach((address) => {
+    if (time - nodes[address].time > 3000) {
       // node is offline if no update for over 3 seconds
-      nodes[n] = clusterStateNodeInit(n + 2551);
+      nodes[address] = clusterStateNodeInit(address, nodes[address].time);
     }
-  }
+  });
 }
 
 function clusterStateScanAllForOfflineNodes() {
   clusterStateScanForOfflineNodes(clusterState.summary.nodes);
-  for (let m = 0; m < 9; m++) {
-    clusterStateScanForOfflineNodes(clusterState.members[m].nodes);
-  }
+  Object.values(clusterState.members).forEach((member) => clusterStateScanForOfflineNodes(member.nodes));
 }
 
 function clusterStateInit() {
-  const time = new Date().getTime();
   const clusterState = {};
   clusterState.summary = {};
-  clusterState.summary.leader = 0;
-  clusterState.summary.oldest = 0;
-  clusterState.summary.nodes = [];
+  clusterState.summary.leader = '';
+  clusterState.summary.oldest = '';
+  clusterState.summary.nodes = {};
+  clusterState.members = {};
+  return clusterState;
+}
 
-  for (let node = 0; node < 9; node++) {
-    clusterState.summary.nodes[node] = clusterStateNodeInit(node + 2551);
+function clusterStateNodeInit(address, time) {
+  return { address: address, port: addressPort(address), state: 'offline', memberState: 'unknown', leader: false, oldest: false, time: time || new Date().getTime() };
+}
+
+// Members and nodes are keyed by member address, nodes on different hosts can share a port.
+function clusterStateMember(address) {
+  if (!clusterState.members[address]) {
+    clusterState.members[address] = { nodes: {} };
   }
+  return clusterState.members[address];
+}
 
-  clusterState.members = [];
+// Addresses of all nodes seen so far by any member, in port order.
+function knownAddresses() {
+  const addresses = new Set(Object.keys(clusterState.summary.nodes));
+  Object.keys(clusterState.members).forEach((address) => addresses.add(address));
+  return Array.from(addresses).sort((a, b) => addressPort(a) - addressPort(b) || a.localeCompare(b));
+}
 
-  for (let member = 0; member < 9; member++) {
-    clusterState.members[member] = { nodes: [] };
+function summaryNodes() {
+  return knownAddresses().map((address) => clusterState.summary.nodes[address] || clusterStateNodeInit(address));
+}
 
-    for (let node = 0; node < 9; node++) {
-      clusterState.members[member].nodes[node] = clusterStateNodeInit(node + 2551);
-    }
-  }
-  return clusterState;
+function memberNode(memberAddress, address) {
+  const member = clusterState.members[memberAddress];
+  return (member && member.nodes[address]) || clusterStateNodeInit(address);
+}
+
+function memberNodes(memberAddress) {
+  return knownAddresses().map((address) => memberNode(memberAddress, address));
 }
 
-function clusterStateNodeInit(port) {
-  return { node: port, state: 'offline', memberState: 'unknown', leader: false, oldest: false, time: new Date().getTime() };
+function addressPort(address) {
+  return parseInt(address.substring(address.lastIndexOf(':') + 1));
 }
 
 function clusterStateUpdateNode(clusterStateFromNode) {
-  const selfPort = clusterStateFromNode.selfPort;
+  const member = clusterStateMember(clusterStateFromNode.selfAddress);
 
-  clusterStateNodeReset(clusterState.members[selfPort - 2551].nodes);
+  member.nodes = {};
 
   for (let n = 0; n < clusterStateFromNode.nodes.length; n++) {
-    const port = clusterStateFromNode.nodes[n].port;
     const node = clusterStateFromNode.nodes[n];
     node.time = new Date().getTime();
-    clusterState.members[selfPort - 2551].nodes[port - 2551] = node;
+    member.nodes[node.address] = node;
+    httpPorts.add(node.httpPort);
   }
 
   clusterAware.clusterStateUpdateNode(clusterStateFromNode);
@@ -472,23 +480,22 @@ function clusterStateUpdateNode(clusterStateFromNode) {
 }
 
 function clusterStateUpdateSummary(clusterStateFromNode) {
-  const nowPort = clusterState.summary.leader;
-  const newPort = clusterStateFromNode.selfPort;
-  const nowNodesUp = upCount(clusterState.summary.nodes);
+  const nowAddress = clusterState.summary.leader;
+  const newAddress = clusterStateFromNode.selfAddress;
+  const nowNodesUp = upCount(Object.values(clusterState.summary.nodes));
   const newNodesUp = upCount(clusterStateFromNode.nodes);
   const isNewLeader = clusterStateFromNode.leader;
 
-  if (isNewLeader && (newNodesUp >= nowNodesUp || nowPort == newPort)) {
-    clusterState.summary.leader = newPort;
+  if (isNewLeader && (newNodesUp >= nowNodesUp || nowAddress == newAddress)) {
+    clusterState.summary.leader = newAddress;
 
     for (let n = 0; n < clusterStateFromNode.nodes.length; n++) {
       const node = clusterStateFromNode.nodes[n];
-      const port = node.port;
       node.time = new Date().getTime();
-      clusterState.summary.nodes[port - 2551] = node;
+      clusterState.summary.nodes[node.address] = node;
     }
 
-    clusterState.summary.oldest = oldestNode(clusterStateFromNode.nodes).port;
+    clusterState.summary.oldest = oldestNode(clusterStateFromNode.nodes).address;
   }
 }
 
@@ -501,9 +508,9 @@ function oldestNode(nodes) {
 }
 
 function requestClusterStateFromNodeError(response) {
-  if (inState('offline') == 9) {
-    clusterState.summary.leader = 0;
-    clusterState.summary.oldest = 0;
+  if (inState('up') == 0) {
+    clusterState.summary.leader = '';
+    clusterState.summary.oldest = '';
   }
 }
 
@@ -512,9 +519,9 @@ function nodeStates(nodes) {
 }
 
 function inState(state) {
-  return clusterState.summary.nodes.filter((s) => s.state == state).length;
+  return Object.values(clusterState.summary.nodes).filter((s) => s.state == state).length;
 }
 
 function isGossipConvergenceNotPossible() {
-  return !(undefined === clusterState.summary.nodes.find((node) => node.memberState == 'unreachable'));
+  return !(undefined === Object.values(clusterState.summary.nodes).find((node) => node.memberState == 'unreachable'));
 }
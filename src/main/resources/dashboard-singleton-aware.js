@@ -1,16 +1,17 @@
 const singletonAware = {
   clusterStateUpdateNode: function (clusterStateFromNode) {
-    const selfPort = clusterStateFromNode.selfPort;
+    const selfAddress = clusterStateFromNode.selfAddress;
 
-    clusterState.members[selfPort - 2551].singletonAwareStatistics = clusterStateFromNode.singletonAwareStatistics;
-    if (selfPort == clusterState.summary.oldest) {
+    clusterStateMember(selfAddress).singletonAwareStatistics = clusterStateFromNode.singletonAwareStatistics;
+    if (selfAddress == clusterState.summary.oldest) {
       clusterState.singletonAwareStatistics = clusterStateFromNode.singletonAwareStatistics;
     }
   },
 
   singletonDetails: function (x, y, w, h) {
     const singletonAwareStatistics = clusterState.singletonAwareStatistics;
-    const oldestIsUp = clusterState.summary.oldest >= 2551 ? clusterState.summary.nodes[clusterState.summary.oldest - 2551].state == 'up' : false;
+    const oldest = clusterState.summary.nodes[clusterState.summary.oldest];
+    const oldestIsUp = oldest ? oldest.state == 'up' : false;
 
     if (oldestIsUp && singletonAwareStatistics) {
       Label()
@@ -39,10 +40,11 @@ const singletonAware = {
         .draw();
 
       let lineY = y + 7;
-      for (let p = 0; p < 9; p++) {
-        const port = 2551 + p;
-        const node = clusterState.summary.nodes.find((n) => n.port == port);
-        const nodePings = singletonAwareStatistics.nodePings[port];
+      const addresses = Object.keys(singletonAwareStatistics.nodePings).sort((a, b) => addressPort(a) - addressPort(b));
+      for (let a = 0; a < addresses.length && lineY < y + h; a++) {
+        const port = addressPort(addresses[a]);
+        const node = clusterState.summary.nodes[addresses[a]];
+        const nodePings = singletonAwareStatistics.nodePings[addresses[a]];
         if (node && nodePings) {
           Label()
             .setX(x)
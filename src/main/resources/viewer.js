@@ -1,23 +1,39 @@
 var webSocket;
 var svgHasFocus = true;
+var viewerState = emptyViewerState();
+var viewerSnapshotPending = true;
+
+function emptyViewerState() {
+  return { seq: 0, serverActivities: [], tree: { name: 'cluster', type: 'cluster', children: [] } };
+}
 
 function sendWebSocketRequest(request) {
   if (webSocket && webSocket.readyState == WebSocket.OPEN) {
-    webSocket.send(request);
+    if (request) {
+      webSocket.send(request);
+    }
   } else {
     webSocket = new WebSocket('ws://' + location.host + '/viewer-entities');
-    update({ serverActivities: [], tree: { name: 'cluster', type: 'cluster' } });
+    viewerState = emptyViewerState();
+    viewerSnapshotPending = true;
+    update(viewerState);
 
     webSocket.onopen = function (event) {
       console.log('WebSocket connected', event);
-      webSocket.send(request);
+      webSocket.send('subscribe');
+      if (request) {
+        webSocket.send(request);
+      }
     };
 
     webSocket.onmessage = function (event) {
-      console.log(event);
-      const root = JSON.parse(event.data);
-      if (svgHasFocus) {
-        update(root);
+      if (event.data) {
+        const message = JSON.parse(event.data);
+        if (message.type == 'delta') {
+          applyDelta(message);
+        } else {
+          loadSnapshot(message);
+        }
       }
     };
 
@@ -31,6 +47,91 @@ function sendWebSocketRequest(request) {
   }
 }
 
+function resync() {
+  if (!viewerSnapshotPending) {
+    viewerSnapshotPending = true;
+    webSocket.send('resync');
+  }
+}
+
+function loadSnapshot(snapshot) {
+  viewerState = { seq: snapshot.seq, serverActivities: snapshot.serverActivities, tree: snapshot.tree };
+  viewerSnapshotPending = false;
+  if (svgHasFocus) {
+    update(viewerState);
+  }
+}
+
+function applyDelta(delta) {
+  if (delta.seq <= viewerState.seq) {
+    return;
+  }
+  if (delta.seq > viewerState.seq + 1) {
+    console.log('Viewer delta gap', viewerState.seq, delta.seq);
+    resync();
+    return;
+  }
+  const root = viewerState.tree;
+  delta.removedMembers.forEach((m) => removeChild(root, m));
+  delta.removed.forEach((e) => removeEntity(root, e.member, e.shard, e.entityId));
+  delta.moved.forEach((e) => {
+    removeEntity(root, e.fromMember, e.fromShard, e.entityId);
+    addEntity(root, e.member, e.shard, e.entityId);
+  });
+  delta.added.forEach((e) => addEntity(root, e.member, e.shard, e.entityId));
+  root.children.forEach((m) => (m.type = delta.memberTypes[m.name] || m.type));
+  viewerState.serverActivities = delta.serverActivities;
+  viewerState.seq = delta.seq;
+
+  const shardCountMismatch = delta.shards.find((s) => {
+    const shard = findChild(findChild(root, s.member), s.shard);
+    return (shard ? shard.children.length : 0) != s.entities;
+  });
+  if (shardCountMismatch) {
+    console.log('Viewer shard count mismatch', shardCountMismatch);
+    resync();
+  }
+}
+
+function findChild(parent, name) {
+  return parent && parent.children ? parent.children.find((c) => c.name == name) : undefined;
+}
+
+function findOrAddChild(parent, name, type) {
+  let child = findChild(parent, name);
+  if (!child) {
+    child = { name: name, type: type, events: 0, children: [] };
+    parent.children.push(child);
+  }
+  return child;
+}
+
+function removeChild(parent, name) {
+  const i = parent.children.findIndex((c) => c.name == name);
+  if (i >= 0) {
+    parent.children.splice(i, 1);
+  }
+}
+
+function addEntity(root, memberId, shardId, entityId) {
+  const shard = findOrAddChild(findOrAddChild(root, memberId, 'member'), shardId, 'shard');
+  findOrAddChild(shard, entityId, 'entity');
+}
+
+function removeEntity(root, memberId, shardId, entityId) {
+  const member = findChild(root, memberId);
+  const shard = findChild(member, shardId);
+  if (shard) {
+    removeChild(shard, entityId);
+    if (shard.children.length == 0) {
+      removeChild(member, shardId);
+    }
+    if (member.children.length == 0) {
+      removeChild(root, memberId);
+    }
+  }
+}
+
 const chartDiv = document.getElementById('chart');
 const width = chartDiv.clientWidth;
 const height = chartDiv.clientHeight;
@@ -43,8 +144,6 @@ const widthId = grid * 1.75;
 const widthIp = grid * 5;
 const widthCount = grid * 4;
 
-const messageCountLast = { count: 0, time: new Date() };
-
 const svg = d3.select('svg').style('width', width).style('height', height).style('padding', '0px').style('box-sizing', 'border-box').style('font', 'sans-serif');
 
 svg.append('rect').attr('width', '100%').attr('height', '100%').attr('fill', '#001017');
@@ -57,7 +156,14 @@ const gNode = g.append('g').attr('class', 'nodes').attr('stroke-linejoin', 'roun
 const gStatistics = g.append('g').attr('class', 'statistics');
 
 sendWebSocketRequest();
-setInterval(sendWebSocketRequest, 5000);
+setInterval(refresh, 5000);
+
+function refresh() {
+  sendWebSocketRequest();
+  if (svgHasFocus) {
+    update(viewerState);
+  }
+}
 
 function update(data) {
   const shardingData = tree(d3.hierarchy(data.tree));
@@ -173,6 +279,8 @@ function updateCropCircle(root) {
   node.exit().transition(t1).remove();
 }
 
+const knownMemberPorts = new Set();
+
 function updateClusterView(hierarchy) {
   const side = Math.min(width, height) / 20;
   const members = gMembers.selectAll('g').data(memberData());
@@ -193,33 +301,42 @@ function updateClusterView(hierarchy) {
     .attr('y', (d) => d.y + side / 2)
     .style('font-size', 24)
     .style('fill', '#FFF')
-    .text((d) => d.memberId - 2550);
+    .text((d) => d.memberNo);
 
-  members.select('rect').style('fill', (d) => (d.active ? '#30d35a' : '#555'));
+  members
+    .select('rect')
+    .attr('x', (d) => d.x)
+    .attr('y', (d) => d.y)
+    .style('fill', (d) => (d.active ? '#30d35a' : '#555'));
 
-  members.select('text');
+  members
+    .select('text')
+    .attr('x', (d) => d.x + side / 5)
+    .attr('y', (d) => d.y + side / 2)
+    .text((d) => d.memberNo);
 
+  // Members are laid out in port order in a grid of at least 3 x 3 that grows with the cluster, members
+  // that have left stay in the grid as inactive.
   function memberData() {
-    const members = [];
-    let memberId = 2551;
-    for (var row = 0; row < 3; row++) {
-      for (var col = 0; col < 3; col++) {
-        const x = col * (side + 2) + side / 2 - width / 2;
-        const y = row * (side + 2) + side / 2 - height / 2;
-        members.push({ memberId: memberId, x: x, y: y, active: isActive(memberId), address: address(memberId) });
-        memberId++;
-      }
+    if (hierarchy.children) {
+      hierarchy.children.forEach((d) => knownMemberPorts.add(parseInt(d.name.substring(d.name.lastIndexOf(':') + 1))));
     }
-    return members;
+    const ports = Array.from(knownMemberPorts).sort((a, b) => a - b);
+    const cols = Math.max(3, Math.ceil(Math.sqrt(ports.length)));
+    return ports.map((memberId, i) => {
+      const x = (i % cols) * (side + 2) + side / 2 - width / 2;
+      const y = Math.floor(i / cols) * (side + 2) + side / 2 - height / 2;
+      return { memberId: memberId, memberNo: i + 1, x: x, y: y, active: isActive(memberId), address: address(memberId) };
+    });
   }
 
   function address(m) {
-    const idx = hierarchy.children ? hierarchy.children.findIndex((d) => d.name.endsWith(m)) : -1;
+    const idx = hierarchy.children ? hierarchy.children.findIndex((d) => d.name.endsWith(':' + m)) : -1;
     return idx >= 0 ? hierarchy.children[idx].name : '';
   }
 
   function isActive(m) {
-    return hierarchy.children ? hierarchy.children.findIndex((d) => d.name.endsWith(m)) >= 0 : false;
+    return hierarchy.children ? hierarchy.children.findIndex((d) => d.name.endsWith(':' + m)) >= 0 : false;
   }
 }
 
@@ -298,12 +415,7 @@ function updateStatistics(data, shardingDataLinks) {
   const txColor = '#FFF';
   const entityCount = shardingDataLinks.reduce((a, c) => a + (c.target.data.type == 'entity' ? 1 : 0), 0);
   const messageCount = data.serverActivities.reduce((a, c) => a + c.messageCount, 0);
-  const messageCountDelta = messageCount - messageCountLast.count;
-  const timeDeltaSeconds = Math.round((new Date() - messageCountLast.time) / 1000);
-  const messageRatePerSecond = Math.round(messageCountDelta / timeDeltaSeconds);
-
-  messageCountLast.count = messageCount;
-  messageCountLast.time = new Date();
+  const messageRatePerSecond = Math.round(data.serverActivities.reduce((a, c) => a + c.messageRatePs, 0));
 
   const x = grid - width / 2;
   const y = height / 2 - grid - 3 * (grid + margin);
@@ -0,0 +1,203 @@
+package cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+import scala.jdk.javaapi.CollectionConverters;
+
+/**
+ * Drives the strategy the way the shard coordinator does, with synthetic zipfian shard rates
+ * reported by the node of the region that hosts each shard. Rebalanced shards are handed back to
+ * allocateShard and the rates follow them to their new node before the next round.
+ */
+class LoadAwareShardAllocationStrategyTest {
+  private static final int regions = 5;
+  private static final int shards = 90;
+  private static final int maxMovesPerRound = 2;
+  private static final double relativeThreshold = 0.1;
+  private static ActorSystem actorSystem;
+
+  @BeforeAll
+  static void startActorSystem() {
+    actorSystem = ActorSystem.create("load-aware-test", ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+  }
+
+  @AfterAll
+  static void stopActorSystem() {
+    actorSystem.terminate();
+  }
+
+  @Test
+  void rebalancingZipfianLoadNarrowsTheGapWithinTheMoveLimitAndCooldown() {
+    final var cluster = new Cluster(Duration.ofHours(1));
+    cluster.allocateAll();
+    final var initialRatio = cluster.busiestToAverage();
+
+    final var moved = new HashMap<String, Integer>();
+    var previousRatio = initialRatio;
+    for (int round = 0; round < 20; round++) {
+      final var shardIds = cluster.rebalanceRound();
+      assertTrue(shardIds.size() <= maxMovesPerRound, String.format("round %d moved %s", round, shardIds));
+      for (final var shardId : shardIds) {
+        assertFalse(moved.containsKey(shardId), String.format("shard %s moved in round %d and again in round %d", shardId, moved.get(shardId), round));
+        moved.put(shardId, round);
+      }
+      final var ratio = cluster.busiestToAverage();
+      assertTrue(ratio <= previousRatio + 1e-9, String.format("round %d raised busiest/average from %.3f to %.3f", round, previousRatio, ratio));
+      previousRatio = ratio;
+    }
+
+    assertTrue(moved.values().stream().distinct().count() > 1, String.format("all moves were in one round: %s", moved));
+    assertTrue(previousRatio < initialRatio, String.format("busiest/average %.3f is not below the initial %.3f", previousRatio, initialRatio));
+    assertTrue(previousRatio <= 1 + relativeThreshold, String.format("busiest/average %.3f is above the threshold", previousRatio));
+  }
+
+  @Test
+  void movedShardsCanMoveAgainAfterTheCooldown() throws InterruptedException {
+    final var cluster = new Cluster(Duration.ofMillis(200));
+    cluster.allocateAll();
+    final var firstMoves = cluster.rebalanceRound();
+    assertFalse(firstMoves.isEmpty());
+
+    // Put all of the load back on the region the shards were moved away from.
+    cluster.moveAll(firstMoves, cluster.busiestRegion());
+    assertTrue(cluster.rebalance().stream().noneMatch(firstMoves::contains));
+
+    TimeUnit.MILLISECONDS.sleep(300);
+    assertTrue(cluster.rebalance().stream().anyMatch(firstMoves::contains));
+  }
+
+  // Shard s has just moved from a to b. Counting a's decaying rate for it on b would make b look
+  // like the busiest region and move a shard back.
+  @Test
+  void ratesReportedByANodeThatNoLongerHostsTheShardAreIgnored() {
+    final var a = actorSystem.actorOf(Props.empty());
+    final var b = actorSystem.actorOf(Props.empty());
+    final var nodes = Map.of(a, "akka://cluster@10.0.0.1:2551", b, "akka://cluster@10.0.0.2:2551");
+    final var shardLoad = new ShardLoad(TimeUnit.MINUTES.toNanos(1));
+    final var strategy = new LoadAwareShardAllocationStrategy(shardLoad, nodes::get, relativeThreshold, 5.0, maxMovesPerRound, Duration.ofHours(1));
+    shardLoad.load(nodes.get(a), Map.of("s", 1000.0, "a1", 100.0));
+    shardLoad.load(nodes.get(b), Map.of("b1", 100.0));
+
+    final var currentShardAllocations = Map.<ActorRef, IndexedSeq<String>>of(
+        a, CollectionConverters.asScala(List.of("a1")).toIndexedSeq(),
+        b, CollectionConverters.asScala(List.of("b1", "s")).toIndexedSeq());
+    assertEquals(Set.of(), strategy.rebalance(currentShardAllocations, Set.of()).value().get().get());
+  }
+
+  private static class Cluster {
+    final List<ActorRef> regionRefs = new ArrayList<>();
+    final Map<ActorRef, String> nodes = new HashMap<>();
+    final Map<ActorRef, List<String>> allocations = new LinkedHashMap<>();
+    final List<String> shardIds = new ArrayList<>();
+    final Map<String, Double> rates = new HashMap<>();
+    final ShardLoad shardLoad = new ShardLoad(TimeUnit.MINUTES.toNanos(1));
+    final LoadAwareShardAllocationStrategy strategy;
+
+    Cluster(Duration cooldown) {
+      for (int region = 0; region < regions; region++) {
+        final var regionRef = actorSystem.actorOf(Props.empty());
+        regionRefs.add(regionRef);
+        nodes.put(regionRef, String.format("akka://cluster@10.0.0.%d:2551", region + 1));
+        allocations.put(regionRef, new ArrayList<>());
+      }
+      // Zipfian with theta 0.99 over the shards, shard 0 is the busiest.
+      for (int shard = 0; shard < shards; shard++) {
+        final var shardId = Integer.toString(shard);
+        shardIds.add(shardId);
+        rates.put(shardId, 1000.0 / Math.pow(shard + 1, 0.99));
+      }
+      strategy = new LoadAwareShardAllocationStrategy(shardLoad, nodes::get, relativeThreshold, 5.0, maxMovesPerRound, cooldown);
+    }
+
+    String node(ActorRef region) {
+      return nodes.get(region);
+    }
+
+    // Shards are allocated before there is any load, so by count like the coordinator does at startup.
+    void allocateAll() {
+      shardIds.forEach(shardId -> allocations.get(result(strategy.allocateShard(regionRefs.get(0), shardId, currentShardAllocations()))).add(shardId));
+      report();
+    }
+
+    // One coordinator rebalance, the moved shards are stopped and allocated again.
+    Set<String> rebalanceRound() {
+      final var shardIds = rebalance();
+      shardIds.forEach(shardId -> allocations.get(ownerOf(shardId)).remove(shardId));
+      shardIds.forEach(shardId -> allocations.get(result(strategy.allocateShard(regionRefs.get(0), shardId, currentShardAllocations()))).add(shardId));
+      report();
+      return shardIds;
+    }
+
+    Set<String> rebalance() {
+      return result(strategy.rebalance(currentShardAllocations(), Set.of()));
+    }
+
+    void moveAll(Iterable<String> shardIds, ActorRef region) {
+      shardIds.forEach(shardId -> {
+        allocations.get(ownerOf(shardId)).remove(shardId);
+        allocations.get(region).add(shardId);
+      });
+      report();
+    }
+
+    ActorRef ownerOf(String shardId) {
+      return allocations.entrySet().stream().filter(allocation -> allocation.getValue().contains(shardId)).findFirst().orElseThrow().getKey();
+    }
+
+    ActorRef busiestRegion() {
+      return regionRefs.stream().max((a, b) -> Double.compare(regionLoad(a), regionLoad(b))).orElseThrow();
+    }
+
+    Map<String, Double> ratesOf(ActorRef region) {
+      final var regionRates = new HashMap<String, Double>();
+      allocations.get(region).forEach(shardId -> regionRates.put(shardId, rates.get(shardId)));
+      return regionRates;
+    }
+
+    // The load the strategy sees for the region.
+    double regionLoad(ActorRef region) {
+      return allocations.get(region).stream().mapToDouble(shardId -> shardLoad.rate(node(region), shardId)).sum();
+    }
+
+    double busiestToAverage() {
+      final var total = rates.values().stream().mapToDouble(Double::doubleValue).sum();
+      return regionRefs.stream().mapToDouble(this::regionLoad).max().orElseThrow() / (total / regions);
+    }
+
+    private void report() {
+      regionRefs.forEach(region -> shardLoad.load(node(region), ratesOf(region)));
+    }
+
+    private Map<ActorRef, IndexedSeq<String>> currentShardAllocations() {
+      final var current = new LinkedHashMap<ActorRef, IndexedSeq<String>>();
+      allocations.forEach((region, shardIds) -> current.put(region, CollectionConverters.asScala(new ArrayList<>(shardIds)).toIndexedSeq()));
+      return current;
+    }
+
+    private static <T> T result(Future<T> future) {
+      return future.value().get().get();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardStateStoreTest {
+  @TempDir
+  Path directory;
+
+  // Ids that probe from the same slot of a 16 slot table find their own records and not each other's.
+  @Test
+  void idsInTheSameSlotKeepTheirOwnValues() {
+    final var store = ShardStateStore.create(directory.resolve("shard-1.state"), 16, 1024);
+    final var ids = new ArrayList<String>();
+    for (int i = 0; ids.size() < 4; i++) {
+      if ((ShardStateStore.hash("e-" + i) & 15) == 0) {
+        ids.add("e-" + i);
+      }
+    }
+    saveAll(store, ids.subList(0, 3), "first");
+    store.save(ids.get(1), new EntityActor.Value("second"));
+
+    assertEquals("first", value(store, ids.get(0)));
+    assertEquals("second", value(store, ids.get(1)));
+    assertEquals("first", value(store, ids.get(2)));
+    assertNull(store.load(ids.get(3)));
+    assertEquals(3, store.size());
+  }
+
+  // Saving the same entities over and over fills the log with dead records, which compaction drops.
+  @Test
+  void overwritesAreCompactedAway() throws IOException {
+    final var file = directory.resolve("shard-2.state");
+    final var store = ShardStateStore.create(file, 16, 256);
+    final var ids = List.of("a", "b", "c");
+    for (int round = 0; round < 10000; round++) {
+      saveAll(store, ids, "value-" + round);
+    }
+
+    ids.forEach(id -> assertEquals("value-9999", value(store, id)));
+    assertEquals(3, store.size());
+    assertTrue(Files.size(file) <= 16 + 16 * 12 + 256, String.format("%s grew to %d bytes", store, Files.size(file)));
+  }
+
+  @Test
+  void growsPastTheInitialSlots() {
+    final var store = ShardStateStore.create(directory.resolve("shard-3.state"), 4, 64);
+    final var ids = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      ids.add("entity-" + i);
+    }
+    saveAll(store, ids, "value");
+    store.save("entity-500", new EntityActor.Value(500L));
+
+    assertEquals(1000, store.size());
+    ids.stream().filter(id -> !id.equals("entity-500")).forEach(id -> assertEquals("value", value(store, id)));
+    assertEquals(500L, ((Number) store.load("entity-500").value).longValue());
+    assertNull(store.load("entity-1000"));
+  }
+
+  @Test
+  void closedStoreLoadsAndSavesNothing() {
+    final var store = ShardStateStore.create(directory.resolve("shard-4.state"), 16, 1024);
+    store.save("a", new EntityActor.Value("value"));
+    store.close();
+    store.save("b", new EntityActor.Value("value"));
+
+    assertNull(store.load("a"));
+    assertNull(store.load("b"));
+  }
+
+  private static void saveAll(ShardStateStore store, List<String> ids, String value) {
+    ids.forEach(id -> store.save(id, new EntityActor.Value(value)));
+  }
+
+  private static Object value(ShardStateStore store, String id) {
+    final var value = store.load(id);
+    return value == null ? null : value.value;
+  }
+}